@@ -0,0 +1,70 @@
+package io.kneo.mixer1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Reading a whole track: WAV parse plus decode, and the byte-to-float conversion on its own.
+// Scores are samples per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"16", "24"})
+    public int bits;
+
+    private File file;
+    private byte[] pcm;
+    private PcmCodec codec;
+    private float[] decoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        float[] samples = Fixtures.signal(Fixtures.TRACK_FRAMES, Fixtures.CHANNELS, 1);
+        file = Fixtures.writeWav(samples, bits);
+        codec = new PcmCodec(Fixtures.pcm(bits));
+        pcm = new byte[Fixtures.TRACK_SAMPLES * codec.bytesPerSample()];
+        codec.encode(samples, 0, pcm, 0, samples.length);
+        decoded = new float[Fixtures.BLOCK_SAMPLES];
+    }
+
+    // What readAudioFile did: the whole file into one SampleBuffer
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.TRACK_SAMPLES)
+    public SampleBuffer readAll() throws Exception {
+        try (SampleReader reader = SampleReader.open(file.getPath())) {
+            return reader.readAll();
+        }
+    }
+
+    // Streaming read in the mixers' block size, no whole-track buffer
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.TRACK_SAMPLES)
+    public float readBlocks() throws Exception {
+        float sum = 0.0f;
+        try (SampleReader reader = SampleReader.open(file.getPath())) {
+            while (reader.read(decoded, 0, Fixtures.BLOCK_FRAMES) != -1) {
+                sum += decoded[0];
+            }
+        }
+        return sum;
+    }
+
+    // bytesToFloat
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.TRACK_SAMPLES)
+    public float[] decode() {
+        int bytesPerSample = codec.bytesPerSample();
+        for (int done = 0; done < Fixtures.TRACK_SAMPLES; done += Fixtures.BLOCK_SAMPLES) {
+            int n = Math.min(Fixtures.BLOCK_SAMPLES, Fixtures.TRACK_SAMPLES - done);
+            codec.decode(pcm, done * bytesPerSample, decoded, 0, n);
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,63 @@
+package io.kneo.mixer1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Writing a whole track: float-to-PCM conversion on its own, and through WavStreamWriter and FlacStreamWriter
+// to disk (writeAudioFile). Scores are samples per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"16", "24"})
+    public int bits;
+
+    private float[] samples;
+    private PcmCodec codec;
+    private byte[] pcm;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        samples = Fixtures.signal(Fixtures.TRACK_FRAMES, Fixtures.CHANNELS, 1);
+        codec = new PcmCodec(Fixtures.pcm(bits));
+        pcm = new byte[Fixtures.BLOCK_SAMPLES * codec.bytesPerSample()];
+        output = Fixtures.tempFile();
+    }
+
+    // floatToBytes
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.TRACK_SAMPLES)
+    public byte[] encode() {
+        for (int done = 0; done < Fixtures.TRACK_SAMPLES; done += Fixtures.BLOCK_SAMPLES) {
+            codec.encode(samples, done, pcm, 0, Math.min(Fixtures.BLOCK_SAMPLES, Fixtures.TRACK_SAMPLES - done));
+        }
+        return pcm;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.TRACK_SAMPLES)
+    public long writeFile() throws IOException {
+        try (WavStreamWriter writer = new WavStreamWriter(output.getPath(), Fixtures.pcm(bits))) {
+            writer.write(samples, 0, samples.length);
+            return writer.samplesWritten();
+        }
+    }
+
+    // FLAC frames are encoded on the common fork-join pool, so this scales with its parallelism
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.TRACK_SAMPLES)
+    public long writeFlacFile() throws IOException {
+        try (FlacStreamWriter writer = new FlacStreamWriter(output.getPath(), Fixtures.pcm(bits))) {
+            writer.write(samples, 0, samples.length);
+            return writer.samplesWritten();
+        }
+    }
+}
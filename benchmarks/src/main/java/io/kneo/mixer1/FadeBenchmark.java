@@ -0,0 +1,39 @@
+package io.kneo.mixer1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// applyOutroFade over a 30 s outro, per fade curve. Scores are samples per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FadeBenchmark {
+
+    @Param({"LINEAR", "EXPONENTIAL", "LOGARITHMIC", "EQUAL_POWER", "S_CURVE"})
+    public FadeCurve curve;
+
+    private float[] source;
+    private float[] samples;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = Fixtures.signal(Fixtures.WINDOW_FRAMES, Fixtures.CHANNELS, 1);
+        samples = new float[source.length];
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        System.arraycopy(source, 0, samples, 0, samples.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.WINDOW_SAMPLES)
+    public float[] outroFade() {
+        AudioOutroIntro.applyOutroFade(samples, 0, samples.length, Fixtures.CHANNELS, 0.2f, curve.code());
+        return samples;
+    }
+}
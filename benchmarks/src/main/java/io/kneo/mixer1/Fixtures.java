@@ -0,0 +1,73 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+// Synthetic program material, generated at setup so the benchmarks need no music files.
+// A handful of partials with slow amplitude movement plus some noise, peaking around -6 dBFS: busy enough that
+// codecs and kernels see realistic values rather than silence or one repeating tone.
+final class Fixtures {
+
+    static final float SAMPLE_RATE = 44100.0f;
+    static final int CHANNELS = 2;
+
+    static final int TRACK_SECONDS = 240; // a typical song
+    static final int TRACK_FRAMES = TRACK_SECONDS * (int) SAMPLE_RATE;
+    static final int TRACK_SAMPLES = TRACK_FRAMES * CHANNELS;
+
+    static final int WINDOW_SECONDS = 30; // crossfade and outro regions; longer than any MixProfile fade
+    static final int WINDOW_FRAMES = WINDOW_SECONDS * (int) SAMPLE_RATE;
+    static final int WINDOW_SAMPLES = WINDOW_FRAMES * CHANNELS;
+
+    static final int BLOCK_FRAMES = 8192; // AudioMerger's streaming block size
+    static final int BLOCK_SAMPLES = BLOCK_FRAMES * CHANNELS;
+
+    private static final double[] PARTIALS = {55.0, 110.0, 220.5, 441.0, 882.3, 1763.0, 3527.0};
+
+    private Fixtures() {
+    }
+
+    static float[] signal(int frames, int channels, long seed) {
+        Random random = new Random(seed);
+        double[] phases = new double[PARTIALS.length];
+        for (int p = 0; p < phases.length; p++) {
+            phases[p] = random.nextDouble() * 2 * Math.PI;
+        }
+        float[] samples = new float[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            double t = i / SAMPLE_RATE;
+            double value = 0.0;
+            for (int p = 0; p < PARTIALS.length; p++) {
+                double movement = 0.6 + 0.4 * Math.sin(2 * Math.PI * (0.1 + 0.05 * p) * t);
+                value += movement * Math.sin(2 * Math.PI * PARTIALS[p] * t + phases[p]) / (p + 1);
+            }
+            value *= 0.2;
+            for (int c = 0; c < channels; c++) {
+                samples[i * channels + c] = (float) (value + 0.02 * random.nextGaussian());
+            }
+        }
+        return samples;
+    }
+
+    static AudioFormat pcm(int bits) {
+        return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, SAMPLE_RATE, bits, CHANNELS, bits / 8 * CHANNELS, SAMPLE_RATE, false);
+    }
+
+    // Temporary WAV file, removed when the benchmark JVM exits
+    static File writeWav(float[] samples, int bits) throws IOException {
+        File file = File.createTempFile("mixer1-bench-", ".wav");
+        file.deleteOnExit();
+        try (WavStreamWriter writer = new WavStreamWriter(file.getPath(), pcm(bits))) {
+            writer.write(samples, 0, samples.length);
+        }
+        return file;
+    }
+
+    static File tempFile() throws IOException {
+        File file = File.createTempFile("mixer1-bench-out-", ".wav");
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,66 @@
+package io.kneo.mixer1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// MixKernels implementations side by side on one cache-resident block. The vector variant needs the
+// jdk.incubator.vector module in the benchmark JVM and fails its trial otherwise. Scores are samples per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class KernelBenchmark {
+
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    private MixKernels impl;
+    private float[] dst;
+    private float[] src;
+    private float[] dstGains;
+    private float[] srcGains;
+    private float gain = 1.0f; // a field, so the JIT cannot fold the multiply away
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        // MixKernels must be initialized before VectorMixKernels: its static selection instantiates the subclass
+        MixKernels.get();
+        impl = kernels.equals("vector")
+                ? (MixKernels) Class.forName("io.kneo.mixer1.VectorMixKernels").getDeclaredConstructor().newInstance()
+                : new ScalarMixKernels();
+        dst = Fixtures.signal(Fixtures.BLOCK_FRAMES, Fixtures.CHANNELS, 1);
+        src = Fixtures.signal(Fixtures.BLOCK_FRAMES, Fixtures.CHANNELS, 2);
+        dstGains = new float[dst.length];
+        srcGains = new float[dst.length];
+        FadeEnvelope envelope = new FadeEnvelope(FadeCurve.EQUAL_POWER, Fixtures.BLOCK_FRAMES, Fixtures.CHANNELS);
+        envelope.fadeOut(0, dstGains, dstGains.length, 0.0f);
+        envelope.fadeIn(0, srcGains, srcGains.length, 0.0f);
+    }
+
+    // Unity gain keeps repeated passes from decaying into denormals
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.BLOCK_SAMPLES)
+    public float[] scale() {
+        impl.scale(dst, 0, dst.length, gain);
+        return dst;
+    }
+
+    // Converges on a mix of the two blocks instead of decaying
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.BLOCK_SAMPLES)
+    public float[] mix() {
+        impl.mix(dst, 0, dstGains, src, 0, srcGains, dst.length);
+        return dst;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.BLOCK_SAMPLES)
+    public float[] addAndClamp() {
+        impl.add(dst, 0, src, 0, dst.length);
+        impl.clamp(dst, 0, dst.length, -1.0f, 1.0f);
+        return dst;
+    }
+}
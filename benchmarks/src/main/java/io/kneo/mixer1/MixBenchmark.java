@@ -0,0 +1,63 @@
+package io.kneo.mixer1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The crossfade loop of mergeAudioFiles, per MixProfile. Each invocation mixes one 30 s window in streaming-size
+// blocks, walking through the profile's fade envelope; profiles without a crossfade (RADIO_STYLE, GAPLESS) use a
+// 1 s fade so their curve settings are still covered. Scores are output samples per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixBenchmark {
+
+    @Param({"DJ_CROSSFADE", "RADIO_STYLE", "SMOOTH_BLEND", "QUICK_CUT", "LONG_FADE", "OVERLAP_MIX", "GAPLESS", "MANUAL"})
+    public AudioMerger.MixProfile profile;
+
+    private AudioMerger.MixSettings settings;
+    private int fadeLength;
+    private float[] song1Source;
+    private float[] song1;
+    private float[] song2;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        settings = profile.getSettings();
+        fadeLength = AudioFormats.frames(Math.max(1, settings.crossfadeSeconds), Fixtures.SAMPLE_RATE);
+        song1Source = Fixtures.signal(Fixtures.WINDOW_FRAMES, Fixtures.CHANNELS, 1);
+        song1 = new float[song1Source.length];
+        song2 = Fixtures.signal(Fixtures.WINDOW_FRAMES, Fixtures.CHANNELS, 2);
+    }
+
+    // The mix works in place; start every pass from the original material so gains never compound
+    @Setup(Level.Invocation)
+    public void reset() {
+        System.arraycopy(song1Source, 0, song1, 0, song1.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.WINDOW_SAMPLES)
+    public float[] crossfade() {
+        int channels = Fixtures.CHANNELS;
+        for (int frame = 0; frame < Fixtures.WINDOW_FRAMES; ) {
+            int position = frame % fadeLength;
+            int n = Math.min(Math.min(Fixtures.BLOCK_FRAMES, fadeLength - position), Fixtures.WINDOW_FRAMES - frame);
+            AudioMerger.mixCrossfade(settings, fadeLength, position, channels,
+                    song1, frame * channels, song2, frame * channels, n * channels);
+            frame += n;
+        }
+        return song1;
+    }
+
+    // Track volume applied before the mix
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.WINDOW_SAMPLES)
+    public float[] volume() {
+        AudioMerger.scale(song1, song1.length, settings.song1Volume);
+        return song1;
+    }
+}
@@ -0,0 +1,59 @@
+package io.kneo.mixer1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Whole render jobs from WAV files to a WAV file, the way MixDaemon and BatchRenderer run them back to back on one
+// thread: a streaming crossfade, an outro with an intro on top, and an append. Copy-through is off, so every sample
+// is decoded, mixed and encoded. Scores are input samples per second; with the GC profiler, gc.alloc.rate.norm times
+// 88200 is the garbage per second of stereo input, which with a warm BufferPool is a few bytes of per-job bookkeeping.
+// -jvmArgsAppend -Dmixer1.bufferPool=false gives the same jobs without pooling.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+    private File song1;
+    private File song2;
+    private File output;
+    private AudioMerger.MixSettings crossfade;
+    private AudioOutroIntro.OutroIntroSettings outro;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        song1 = Fixtures.writeWav(Fixtures.signal(Fixtures.WINDOW_FRAMES, Fixtures.CHANNELS, 1), 16);
+        song2 = Fixtures.writeWav(Fixtures.signal(Fixtures.WINDOW_FRAMES, Fixtures.CHANNELS, 2), 16);
+        output = Fixtures.tempFile();
+        crossfade = AudioMerger.MixProfile.DJ_CROSSFADE.getSettings();
+        crossfade.copyThrough = false;
+        outro = new AudioOutroIntro.OutroIntroSettings();
+        outro.copyThrough = false;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * Fixtures.WINDOW_SAMPLES)
+    public long crossfade() throws Exception {
+        AudioMerger.mergeAudioFilesStreaming(song1.getPath(), song2.getPath(), output.getPath(), crossfade);
+        return output.length();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * Fixtures.WINDOW_SAMPLES)
+    public long outroIntro() throws Exception {
+        AudioOutroIntro.createOutroIntroMix(song1.getPath(), song2.getPath(), output.getPath(), outro);
+        return output.length();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * Fixtures.WINDOW_SAMPLES)
+    public long append() throws Exception {
+        AudioOutroIntro.addSongToEnd(song1.getPath(), song2.getPath(), output.getPath(), false);
+        return output.length();
+    }
+}
@@ -0,0 +1,128 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Streaming output file: what the mixers write through, whatever the container.
+// open() picks the container from the output path, so each job chooses its own: *.flac is written by
+// FlacStreamWriter, anything else by WavStreamWriter.
+// With a TruePeakLimiter set, written samples pass through it before encoding; it is flushed on close and truncate.
+public abstract class AudioFileWriter implements SampleSink, Closeable {
+
+    private static final int LIMIT_BLOCK_FRAMES = 4096;
+
+    protected final AudioFormat format;
+    protected MixMetrics metrics = MixMetrics.NONE;
+    private TruePeakLimiter limiter;
+    private float[] limited;
+
+    protected AudioFileWriter(AudioFormat format) {
+        this.format = format;
+    }
+
+    public static AudioFileWriter open(String outputPath, AudioFormat format) throws IOException {
+        if (outputPath.toLowerCase(Locale.ROOT).endsWith(".flac")) {
+            return new FlacStreamWriter(outputPath, format);
+        }
+        return new WavStreamWriter(outputPath, format);
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    // Charges writes to ENCODE and copies to COPY of the job's metrics
+    public void setMetrics(MixMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Limits everything written from now on; the limiter must match the output's sample rate and channels
+    public void setLimiter(TruePeakLimiter limiter) {
+        BufferPool.release(limited);
+        this.limiter = limiter;
+        this.limited = limiter == null ? null : BufferPool.floats(LIMIT_BLOCK_FRAMES * format.getChannels());
+    }
+
+    protected boolean hasLimiter() {
+        return limiter != null;
+    }
+
+    @Override
+    public void write(float[] samples, int offset, int length) throws IOException {
+        if (limiter == null) {
+            encode(samples, offset, length);
+            return;
+        }
+        // Whole frames go through the limiter in blocks; what comes out of its delay line is encoded
+        int channels = format.getChannels();
+        for (int frames = length / channels; frames > 0; ) {
+            int n = Math.min(frames, LIMIT_BLOCK_FRAMES);
+            long start = metrics.start();
+            int out = limiter.process(samples, offset, n, limited, 0);
+            metrics.stop(MixMetrics.Stage.LIMIT, start, (long) n * channels);
+            encode(limited, 0, out * channels);
+            offset += n * channels;
+            frames -= n;
+        }
+    }
+
+    public void writeSilence(long count) throws IOException {
+        float[] silence = BufferPool.floats(LIMIT_BLOCK_FRAMES * format.getChannels());
+        Arrays.fill(silence, 0, (int) Math.min(count, silence.length), 0.0f);
+        while (count > 0) {
+            int n = (int) Math.min(count, silence.length);
+            write(silence, 0, n);
+            count -= n;
+        }
+        BufferPool.release(silence);
+    }
+
+    public void write(SampleBuffer samples) throws IOException {
+        write(samples.array(), 0, samples.size());
+    }
+
+    // True if reader's encoded bytes can be appended to this file as they are; see copyFrom
+    public boolean canCopyFrom(SampleReader reader) {
+        return false;
+    }
+
+    // Appends the reader's next frames frames without decoding and re-encoding them; only when canCopyFrom
+    public long copyFrom(SampleReader reader, long frames) throws IOException {
+        throw new IllegalArgumentException("Cannot copy " + reader.getFormat() + " data into " + format);
+    }
+
+    // Samples written so far, counting any the limiter still holds back as not written
+    public abstract long samplesWritten();
+
+    // Drops everything written after the first count samples; later writes continue from there
+    public abstract void truncate(long count) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushLimiter();
+        } finally {
+            BufferPool.release(limited);
+            limited = null;
+            finish();
+        }
+    }
+
+    // Converts and stores length interleaved samples, after the limiter
+    protected abstract void encode(float[] samples, int offset, int length) throws IOException;
+
+    // Completes the file (sizes, checksums) and closes it
+    protected abstract void finish() throws IOException;
+
+    // Writes out what the limiter still holds
+    protected void flushLimiter() throws IOException {
+        if (limiter != null) {
+            float[] tail = BufferPool.floats(limiter.latency() * format.getChannels());
+            encode(tail, 0, limiter.flush(tail, 0) * format.getChannels());
+            BufferPool.release(tail);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// Format helpers shared by the mixers: output format selection, input compatibility and time-to-frame math
+public final class AudioFormats {
+
+    private AudioFormats() {
+    }
+
+    // 16-bit PCM with the source's sample rate and channel count
+    public static AudioFormat outputFormat(AudioFormat source) {
+        return outputFormat(source.getSampleRate(), source.getChannels());
+    }
+
+    public static AudioFormat outputFormat(float sampleRate, int channels) {
+        return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16, channels, 2 * channels, sampleRate, false);
+    }
+
+    // Inputs that are mixed together must share sample rate and channel layout.
+    // The mixers open later inputs through Resampler, so in practice only a channel mismatch fails here.
+    public static void requireCompatible(AudioFormat expected, String expectedPath, AudioFormat actual, String actualPath)
+            throws UnsupportedAudioFileException {
+        requireCompatible(expected.getChannels(), expected.getSampleRate(), expectedPath,
+                actual.getChannels(), actual.getSampleRate(), actualPath);
+    }
+
+    public static void requireCompatible(int expectedChannels, float expectedRate, String expectedPath,
+                                         int actualChannels, float actualRate, String actualPath)
+            throws UnsupportedAudioFileException {
+        if (expectedChannels != actualChannels || expectedRate != actualRate) {
+            throw new UnsupportedAudioFileException("Input formats do not match: "
+                    + expectedPath + " is " + expectedRate + " Hz / " + expectedChannels + " ch, "
+                    + actualPath + " is " + actualRate + " Hz / " + actualChannels + " ch");
+        }
+    }
+
+    public static int frames(float seconds, float sampleRate) {
+        return (int) (seconds * sampleRate);
+    }
+}
@@ -2,13 +2,11 @@ package io.kneo.mixer1;
 
 import javax.sound.sampled.*;
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.List;
 
 public class AudioMerger {
 
+    private static final int GAIN_BLOCK_SIZE = 1024;   // frames
+
     public enum MixProfile {
         MANUAL,
         DJ_CROSSFADE,
@@ -23,7 +21,7 @@ public class AudioMerger {
             return switch (this) {
                 case DJ_CROSSFADE -> new MixSettings(
                         8, 0.0f, 0.0f, 1.0f, 1.0f,
-                        0.0f, -1.0f, 0.0f, -1.0f, -3.0f, 1
+                        0.0f, -1.0f, 0.0f, -1.0f, -3.0f, 2
                 );
                 case RADIO_STYLE -> new MixSettings(
                         0, 1.0f, 1.0f, 1.0f, 1.0f,
@@ -31,7 +29,7 @@ public class AudioMerger {
                 );
                 case SMOOTH_BLEND -> new MixSettings(
                         12, 0.3f, 0.3f, 1.0f, 1.0f,
-                        0.0f, -1.0f, 0.0f, -1.0f, -6.0f, -1
+                        0.0f, -1.0f, 0.0f, -1.0f, -6.0f, 3
                 );
                 case QUICK_CUT -> new MixSettings(
                         2, 0.0f, 0.0f, 1.0f, 1.0f,
@@ -56,9 +54,9 @@ public class AudioMerger {
         public String getDescription() {
             return switch (this) {
                 case MANUAL -> "Manual settings - customize all parameters";
-                case DJ_CROSSFADE -> "DJ-style crossfade with exponential curve";
+                case DJ_CROSSFADE -> "DJ-style equal-power crossfade";
                 case RADIO_STYLE -> "Radio-style with 2-second gap, no crossfade";
-                case SMOOTH_BLEND -> "Smooth logarithmic blend with partial volumes";
+                case SMOOTH_BLEND -> "Smooth S-curve blend with partial volumes";
                 case QUICK_CUT -> "Quick 2-second crossfade";
                 case LONG_FADE -> "Long 20-second fade for ambient music";
                 case OVERLAP_MIX -> "Both songs audible during long overlap";
@@ -78,7 +76,14 @@ public class AudioMerger {
         public float song2StartTime;
         public float song2EndTime;
         public float gapSeconds;
-        public int fadeCurve;
+        public int fadeCurve; // FadeCurve code: 0=linear, 1=exponential, -1=logarithmic, 2=equal-power, 3=S-curve
+        public Resampler.Quality resampleQuality = Resampler.Quality.HIGH; // used when song 2's rate differs from song 1's
+        public boolean copyThrough = true; // streaming merge copies untouched WAV regions byte for byte instead of re-encoding
+        public boolean autoAnalyze; // fill song1EndTime, song2StartTime and crossfadeSeconds from TrackAnalyzer
+        public float targetLufs; // scale each song to this integrated loudness before mixing; 0 leaves volumes as set
+        public boolean truePeakLimit; // run the output through a TruePeakLimiter instead of letting the encoder clip
+        public float limiterCeilingDb = -1.0f; // dBTP
+        public boolean parallel; // render chunks of the output on all cores; WAV output without limiter only
 
         public MixSettings() {
             // Default manual settings
@@ -100,6 +105,19 @@ public class AudioMerger {
             this.gapSeconds = gapSeconds;
             this.fadeCurve = fadeCurve;
         }
+
+        MixSettings copy() {
+            MixSettings copy = new MixSettings(crossfadeSeconds, song1MinVolume, song2MinVolume, song1Volume, song2Volume,
+                    song1StartTime, song1EndTime, song2StartTime, song2EndTime, gapSeconds, fadeCurve);
+            copy.resampleQuality = resampleQuality;
+            copy.copyThrough = copyThrough;
+            copy.autoAnalyze = autoAnalyze;
+            copy.targetLufs = targetLufs;
+            copy.truePeakLimit = truePeakLimit;
+            copy.limiterCeilingDb = limiterCeilingDb;
+            copy.parallel = parallel;
+            return copy;
+        }
     }
 
     public static void main(String[] args) {
@@ -140,205 +158,200 @@ public class AudioMerger {
         System.out.println("Song1 start/end: " + settings.song1StartTime + "s / " + (settings.song1EndTime == -1 ? "full" : settings.song1EndTime + "s"));
         System.out.println("Song2 start/end: " + settings.song2StartTime + "s / " + (settings.song2EndTime == -1 ? "full" : settings.song2EndTime + "s"));
         System.out.println("Gap between songs: " + settings.gapSeconds + " seconds");
-        System.out.println("Fade curve: " + (settings.fadeCurve == 0 ? "Linear" : settings.fadeCurve == 1 ? "Exponential" : "Logarithmic"));
+        System.out.println("Fade curve: " + FadeCurve.fromCode(settings.fadeCurve));
     }
 
     public static void mergeAudioFiles(String file1Path, String file2Path, String outputPath, MixSettings settings)
             throws IOException, UnsupportedAudioFileException {
-
-        // Read both audio files
-        List<Float> samples1 = readAudioFile(file1Path);
-        List<Float> samples2 = readAudioFile(file2Path);
-
-        // Apply trimming and volume to samples
-        samples1 = processAudioSamples(samples1, settings.song1StartTime, settings.song1EndTime, settings.song1Volume);
-        samples2 = processAudioSamples(samples2, settings.song2StartTime, settings.song2EndTime, settings.song2Volume);
-
-        // Concatenate audio files with dramatic crossfade transition
-        int fadeLength = 44100 * settings.crossfadeSeconds; // Configurable crossfade duration
-        int gapSamples = (int) (44100 * settings.gapSeconds); // Gap in samples
-        List<Float> mergedSamples = new ArrayList<>();
-
-        // Add all of first file
-        mergedSamples.addAll(samples1);
-
-        // Add gap or calculate overlap
-        if (gapSamples > 0) {
-            // Add silence gap
-            for (int i = 0; i < gapSamples; i++) {
-                mergedSamples.add(0.0f);
-            }
-            fadeLength = 0; // No crossfade with gap
+        MixMetrics metrics = MixMetrics.begin("mergeAudioFiles", outputPath, file1Path, file2Path);
+        try {
+            mergeAudioFiles(file1Path, file2Path, outputPath, settings, metrics);
+            metrics.finish(null);
+        } catch (Throwable e) {
+            metrics.finish(e);
+            throw e;
         }
+    }
 
-        // Calculate overlap start position
-        int overlapStart = Math.max(0, mergedSamples.size() - fadeLength);
-
-        // Add second file with crossfade mixing
-        for (int i = 0; i < samples2.size(); i++) {
-            float sample2 = samples2.get(i);
-            int mergedIndex = overlapStart + i;
-
-            if (i < fadeLength && mergedIndex < mergedSamples.size() && gapSamples <= 0) {
-                // We're in the crossfade region - mix the samples
-                float fadeProgress = (float) i / fadeLength; // 0.0 to 1.0
-
-                // Apply fade curve
-                float adjustedProgress = applyFadeCurve(fadeProgress, settings.fadeCurve);
-
-                // Fade out first file (from 1.0 to song1MinVolume), fade in second file (from song2MinVolume to 1.0)
-                float song1FadeVolume = 1.0f - adjustedProgress * (1.0f - settings.song1MinVolume);
-                float song2FadeVolume = settings.song2MinVolume + adjustedProgress * (1.0f - settings.song2MinVolume);
+    private static void mergeAudioFiles(String file1Path, String file2Path, String outputPath, MixSettings settings,
+                                        MixMetrics metrics) throws IOException, UnsupportedAudioFileException {
+        if (settings.autoAnalyze) {
+            settings = TrackAnalyzer.autoFill(file1Path, file2Path, settings);
+        }
+        if (settings.targetLufs != 0.0f) {
+            settings = normalizeLoudness(file1Path, file2Path, settings);
+        }
 
-                float sample1 = mergedSamples.get(mergedIndex) * song1FadeVolume;
-                sample2 *= song2FadeVolume;
+        // Mismatched inputs are turned away from their headers, before either file is decoded
+        float sampleRate;
+        try (SampleReader reader1 = SampleReader.open(file1Path);
+             SampleReader reader2 = SampleReader.open(file2Path, reader1.sampleRate(), settings.resampleQuality)) {
+            AudioFormats.requireCompatible(reader1.getFormat(), file1Path, reader2.getFormat(), file2Path);
+            sampleRate = reader1.sampleRate();
+        }
 
-                // Mix both samples
-                mergedSamples.set(mergedIndex, sample1 + sample2);
+        // Read only the trimmed part of both audio files; trimming happens inside the read and counts as decode
+        DecodedTrackCache cache = DecodedTrackCache.shared();
+        long start = metrics.start();
+        SampleBuffer samples1 = cache.readRange(file1Path, 0.0f, null, settings.song1StartTime, settings.song1EndTime);
+        SampleBuffer samples2 = cache.readRange(file2Path, sampleRate, settings.resampleQuality,
+                settings.song2StartTime, settings.song2EndTime);
+        metrics.stop(MixMetrics.Stage.DECODE, start, samples1.size() + samples2.size());
+        int channels = samples1.channels();
+
+        // The trimmed buffers play through the same graph as the streaming merge
+        MixSettings mix = settings;
+        RenderGraph graph = crossfadeGraph(new SampleBufferReader(samples1), new SampleBufferReader(samples2),
+                mix, false, metrics);
+        try (AudioFileWriter writer = openWriter(outputPath, AudioFormats.outputFormat(sampleRate, channels),
+                mix, metrics)) {
+            if (mix.parallel && ParallelRenderer.canRender(writer, graph.frames())) {
+                // Every chunk reads the shared buffers through readers of its own
+                ParallelRenderer.render(writer, graph.frames(), (from, to, sink, part) ->
+                        crossfadeGraph(new SampleBufferReader(samples1), new SampleBufferReader(samples2), mix,
+                                false, part).render(sink, from, to), metrics);
             } else {
-                // Beyond crossfade region - just add second file samples
-                mergedSamples.add(sample2);
+                graph.render(writer);
             }
         }
+    }
 
-        // Write merged audio to output file
-        writeAudioFile(mergedSamples, outputPath);
+    // Same mix as mergeAudioFiles, but both songs are pulled from their files block by block as the output is
+    // written, so memory does not grow with track length. With copyThrough, untouched WAV regions are copied byte for
+    // byte rather than re-encoded, so they can differ from mergeAudioFiles' output by up to 1 LSB
+    public static void mergeAudioFilesStreaming(String file1Path, String file2Path, String outputPath, MixSettings settings)
+            throws IOException, UnsupportedAudioFileException {
+        MixMetrics metrics = MixMetrics.begin("mergeAudioFilesStreaming", outputPath, file1Path, file2Path);
+        try {
+            mergeAudioFilesStreaming(file1Path, file2Path, outputPath, settings, metrics);
+            metrics.finish(null);
+        } catch (Throwable e) {
+            metrics.finish(e);
+            throw e;
+        }
     }
 
-    private static List<Float> processAudioSamples(List<Float> samples, float startTime, float endTime, float volume) {
-        int sampleRate = 44100;
-        int startSample = (int) (startTime * sampleRate);
-        int endSample = endTime == -1 ? samples.size() : (int) (endTime * sampleRate);
+    private static void mergeAudioFilesStreaming(String file1Path, String file2Path, String outputPath,
+                                                 MixSettings settings, MixMetrics metrics)
+            throws IOException, UnsupportedAudioFileException {
+        if (settings.autoAnalyze) {
+            settings = TrackAnalyzer.autoFill(file1Path, file2Path, settings);
+        }
+        if (settings.targetLufs != 0.0f) {
+            settings = normalizeLoudness(file1Path, file2Path, settings);
+        }
 
-        // Ensure bounds
-        startSample = Math.max(0, Math.min(startSample, samples.size()));
-        endSample = Math.max(startSample, Math.min(endSample, samples.size()));
+        MixSettings mix = settings;
+        try (SampleReader reader1 = SampleReader.open(file1Path);
+             SampleReader reader2 = SampleReader.open(file2Path, reader1.sampleRate(), mix.resampleQuality)) {
+            AudioFormats.requireCompatible(reader1.getFormat(), file1Path, reader2.getFormat(), file2Path);
+            RenderGraph graph = crossfadeGraph(reader1, reader2, mix, true, metrics);
+            try (AudioFileWriter writer = openWriter(outputPath, AudioFormats.outputFormat(reader1.getFormat()),
+                    mix, metrics)) {
+                // Only WAV inputs seek without decoding everything before the chunk
+                if (mix.parallel && reader1 instanceof WavReader && reader2 instanceof WavReader
+                        && ParallelRenderer.canRender(writer, graph.frames())) {
+                    ParallelRenderer.render(writer, graph.frames(), (from, to, sink, part) -> {
+                        try (SampleReader chunk1 = SampleReader.open(file1Path);
+                             SampleReader chunk2 = SampleReader.open(file2Path)) {
+                            crossfadeGraph(chunk1, chunk2, mix, true, part).render(sink, from, to);
+                        }
+                    }, metrics);
+                } else {
+                    graph.render(writer);
+                }
+            }
+        }
+    }
 
-        // Extract and apply volume
-        List<Float> processed = new ArrayList<>();
-        for (int i = startSample; i < endSample; i++) {
-            processed.add(samples.get(i) * volume);
+    // Song 1 from the start of the output, then song 2 overlapping its last crossfadeSeconds or after gapSeconds of
+    // silence; song 1 fades from 1.0 to song1MinVolume over the overlap while song 2 rises from song2MinVolume.
+    // With trim the readers are trimmed to the song start and end times, otherwise they are taken as already trimmed.
+    // Only a song 1 of unknown length is decoded into memory, to find where song 2 starts.
+    static RenderGraph crossfadeGraph(SampleReader reader1, SampleReader reader2, MixSettings settings, boolean trim,
+                                      MixMetrics metrics) throws IOException {
+        float sampleRate = reader1.sampleRate();
+        int fadeLength = AudioFormats.frames(settings.crossfadeSeconds, sampleRate);
+        int gapFrames = AudioFormats.frames(settings.gapSeconds, sampleRate);
+        if (gapFrames > 0) {
+            fadeLength = 0; // No crossfade with gap
         }
+        FadeCurve curve = FadeCurve.fromCode(settings.fadeCurve);
 
-        return processed;
-    }
+        RenderGraph graph = new RenderGraph(reader1.channels(), metrics).copyThrough(settings.copyThrough);
+        RenderGraph.Track song1 = graph.add(reader1, 0);
+        if (trim) {
+            song1.trim(settings.song1StartTime, settings.song1EndTime);
+        }
+        long frames1 = song1.gain(settings.song1Volume).measure().frames();
+        long overlap = Math.min(fadeLength, frames1);
 
-    private static float applyFadeCurve(float progress, int fadeCurve) {
-        switch (fadeCurve) {
-            case 1: // Exponential
-                return progress * progress;
-            case -1: // Logarithmic
-                return (float) Math.sqrt(progress);
-            default: // Linear
-                return progress;
+        RenderGraph.Track song2 = graph.add(reader2, frames1 - overlap + Math.max(gapFrames, 0));
+        if (trim) {
+            song2.trim(settings.song2StartTime, settings.song2EndTime);
         }
+        long mixFrames = Math.min(overlap, song2.frames());
+        song1.fadeOut(curve, fadeLength, settings.song1MinVolume, frames1 - overlap, mixFrames);
+        song2.gain(settings.song2Volume).fadeIn(curve, fadeLength, settings.song2MinVolume, 0, mixFrames);
+        return graph;
     }
 
-    private static List<Float> readAudioFile(String filePath)
+    // Copy of settings with both song volumes scaled so each track plays at targetLufs; the gains come from the
+    // tracks' cached analyses, so a track is only measured once
+    static MixSettings normalizeLoudness(String file1Path, String file2Path, MixSettings settings)
             throws IOException, UnsupportedAudioFileException {
-        List<Float> samples = new ArrayList<>();
-
-        try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(new File(filePath))) {
-            AudioFormat format = audioInputStream.getFormat();
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-
-            while ((bytesRead = audioInputStream.read(buffer)) != -1) {
-                // Convert bytes to float samples
-                for (int i = 0; i < bytesRead; i += format.getFrameSize()) {
-                    float sample = bytesToFloat(buffer, i, format);
-                    samples.add(sample);
-                }
-            }
-        }
-        return samples;
+        MixSettings normalized = settings.copy();
+        normalized.song1Volume *= LoudnessMeter.normalizationGain(file1Path, settings.targetLufs);
+        normalized.song2Volume *= LoudnessMeter.normalizationGain(file2Path, settings.targetLufs);
+        return normalized;
     }
 
-    private static float bytesToFloat(byte[] buffer, int offset, AudioFormat format) {
-        if (format.getSampleSizeInBits() == 16) {
-            // 16-bit signed PCM
-            ByteBuffer bb = ByteBuffer.wrap(buffer, offset, 2);
-            if (format.isBigEndian()) {
-                bb.order(ByteOrder.BIG_ENDIAN);
-            } else {
-                bb.order(ByteOrder.LITTLE_ENDIAN);
-            }
-            short sample = bb.getShort();
-            return sample / 32768.0f; // Convert to -1.0 to 1.0 range
-        } else if (format.getSampleSizeInBits() == 8) {
-            // 8-bit unsigned PCM
-            int sample = buffer[offset] & 0xFF;
-            return (sample - 128) / 128.0f;
-        }
-        return 0.0f;
+    // Skips to the trim start and returns how many frames the trimmed range holds
+    static long seekToStart(SampleReader reader, float startTime, float endTime) throws IOException {
+        long startFrame = trimStart(reader, startTime);
+        long skipped = reader.skip(startFrame);
+        return skipped < startFrame ? 0 : trimmedLength(reader, startTime, endTime);
     }
 
-    private static void writeAudioFile(List<Float> samples, String outputPath) throws IOException {
-        AudioFormat format = new AudioFormat(
-                AudioFormat.Encoding.PCM_SIGNED, // encoding
-                44100.0f,  // sample rate
-                16,        // sample size in bits
-                1,         // channels (mono)
-                2,         // frame size
-                44100.0f,  // frame rate
-                false      // big endian
-        );
-
-        try (FileOutputStream fos = new FileOutputStream(outputPath);
-             BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-
-            // Write WAV header
-            writeWavHeader(bos, samples.size() * 2, format);
-
-            // Write audio data
-            byte[] buffer = new byte[2];
-            for (float sample : samples) {
-                // Convert float to 16-bit PCM
-                short pcmSample = (short) (sample * 32767);
-                buffer[0] = (byte) (pcmSample & 0xFF);
-                buffer[1] = (byte) ((pcmSample >> 8) & 0xFF);
-                bos.write(buffer);
-            }
-        }
+    static long trimStart(SampleReader reader, float startTime) {
+        long length = reader.length() == -1 ? Long.MAX_VALUE : reader.length();
+        return Math.max(0, Math.min((long) (startTime * reader.sampleRate()), length));
     }
 
-    private static void writeWavHeader(OutputStream out, int dataLength, AudioFormat format)
-            throws IOException {
-        int sampleRate = (int) format.getSampleRate();
-        int channels = format.getChannels();
-        int bitsPerSample = format.getSampleSizeInBits();
-        int byteRate = sampleRate * channels * bitsPerSample / 8;
-        int blockAlign = channels * bitsPerSample / 8;
-
-        // RIFF header
-        out.write("RIFF".getBytes());
-        writeInt(out, 36 + dataLength); // File size - 8
-        out.write("WAVE".getBytes());
-
-        // fmt chunk
-        out.write("fmt ".getBytes());
-        writeInt(out, 16); // fmt chunk size
-        writeShort(out, 1); // PCM format
-        writeShort(out, channels);
-        writeInt(out, sampleRate);
-        writeInt(out, byteRate);
-        writeShort(out, blockAlign);
-        writeShort(out, bitsPerSample);
-
-        // data chunk
-        out.write("data".getBytes());
-        writeInt(out, dataLength);
+    // Frames in the trimmed range, without seeking
+    static long trimmedLength(SampleReader reader, float startTime, float endTime) {
+        long length = reader.length() == -1 ? Long.MAX_VALUE : reader.length();
+        long startFrame = trimStart(reader, startTime);
+        long endFrame = endTime == -1 ? length : Math.max(startFrame, Math.min((long) (endTime * reader.sampleRate()), length));
+        return endFrame - startFrame;
     }
 
-    private static void writeInt(OutputStream out, int value) throws IOException {
-        out.write(value & 0xFF);
-        out.write((value >> 8) & 0xFF);
-        out.write((value >> 16) & 0xFF);
-        out.write((value >> 24) & 0xFF);
+    // Mixes length interleaved samples of song 2 into song 1, starting at frame `position` of the crossfade:
+    // song 1 fades from 1.0 to song1MinVolume, song 2 fades from song2MinVolume to 1.0
+    static void mixCrossfade(MixSettings settings, int fadeLength, int position, int channels,
+                             float[] song1, int song1Offset, float[] song2, int song2Offset, int length) {
+        MixKernels kernels = MixKernels.get();
+        FadeEnvelope envelope = new FadeEnvelope(FadeCurve.fromCode(settings.fadeCurve), fadeLength, channels);
+        float[] song1Gains = BufferPool.floats(GAIN_BLOCK_SIZE * channels);
+        float[] song2Gains = BufferPool.floats(GAIN_BLOCK_SIZE * channels);
+        for (int done = 0; done < length; ) {
+            int n = Math.min(song1Gains.length, length - done);
+            envelope.fadeOut(position + done / channels, song1Gains, n, settings.song1MinVolume);
+            envelope.fadeIn(position + done / channels, song2Gains, n, settings.song2MinVolume);
+            kernels.mix(song1, song1Offset + done, song1Gains, song2, song2Offset + done, song2Gains, n);
+            done += n;
+        }
+        BufferPool.release(song1Gains);
+        BufferPool.release(song2Gains);
     }
 
-    private static void writeShort(OutputStream out, int value) throws IOException {
-        out.write(value & 0xFF);
-        out.write((value >> 8) & 0xFF);
+    static AudioFileWriter openWriter(String outputPath, AudioFormat format, MixSettings settings,
+                                      MixMetrics metrics) throws IOException {
+        AudioFileWriter writer = AudioFileWriter.open(outputPath, format);
+        writer.setMetrics(metrics);
+        if (settings.truePeakLimit) {
+            writer.setLimiter(new TruePeakLimiter(format.getSampleRate(), format.getChannels(), settings.limiterCeilingDb));
+        }
+        return writer;
     }
-}
\ No newline at end of file
+}
@@ -2,24 +2,28 @@ package io.kneo.mixer1;
 
 import javax.sound.sampled.*;
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.List;
 
 public class AudioOutroIntro {
 
-    private static final int SAMPLE_RATE = 44100;
-
     public static class OutroIntroSettings {
         public float outroFadeStartSeconds; // When to start fading the main song
         public float introStartDelay; // How long before intro starts (overlap with outro)
         public float introVolume; // Volume of intro track
         public float mainSongVolume; // Volume of main song
         public float fadeToVolume; // Final volume level (0.0 = silence, 0.5 = 50%, etc.)
-        public int fadeCurve; // 0=linear, 1=exponential, -1=logarithmic
+        public int fadeCurve; // FadeCurve code: 0=linear, 1=exponential, -1=logarithmic, 2=equal-power, 3=S-curve
         public boolean autoFadeBasedOnIntro; // Auto-calculate fade based on intro length
         public float extraFadeTime; // Additional fade time beyond intro length
+        public Resampler.Quality resampleQuality = Resampler.Quality.HIGH; // used when the intro's rate differs from the main song's
+        public boolean copyThrough = true; // main song audio before the outro is copied byte for byte when possible
+        public float targetLufs; // scale both tracks to this integrated loudness; 0 leaves volumes as set
+        public boolean truePeakLimit; // limit the output to limiterCeilingDb instead of hard-clipping the overlap
+        public float limiterCeilingDb = -1.0f; // dBTP
+        public boolean duck; // instead of the timed fade, turn the main song down while the intro is loud (voice-overs)
+        public float duckThresholdDb = -35.0f; // intro peak level (dBFS, after introVolume) where ducking sets in
+        public float duckRatio = 4.0f; // dB of intro over the threshold per dB the main song keeps
+        public float duckAttackMs = 10.0f;
+        public float duckReleaseMs = 400.0f;
 
         public OutroIntroSettings() {
             this(20.0f, 15.0f, 1.0f, 1.0f, 0.0f, 0, true, 7.0f);
@@ -68,26 +72,107 @@ public class AudioOutroIntro {
     // NEW FUNCTION - Just append a song to the end
     public static void addSongToEnd(String existingMixPath, String songToAddPath, String outputPath)
             throws IOException, UnsupportedAudioFileException {
+        addSongToEnd(existingMixPath, songToAddPath, outputPath, true);
+    }
+
+    // With copyThrough, WAV inputs already in the output format are copied byte for byte instead of decoded and re-encoded
+    public static void addSongToEnd(String existingMixPath, String songToAddPath, String outputPath, boolean copyThrough)
+            throws IOException, UnsupportedAudioFileException {
+        MixMetrics metrics = MixMetrics.begin("addSongToEnd", outputPath, existingMixPath, songToAddPath);
+        try {
+            addSongToEnd(existingMixPath, songToAddPath, outputPath, copyThrough, metrics);
+            metrics.finish(null);
+        } catch (Throwable e) {
+            metrics.finish(e);
+            throw e;
+        }
+    }
 
-        List<Float> existingMix = readAudioFile(existingMixPath);
-        List<Float> songToAdd = readAudioFile(songToAddPath);
+    private static void addSongToEnd(String existingMixPath, String songToAddPath, String outputPath, boolean copyThrough,
+                                     MixMetrics metrics) throws IOException, UnsupportedAudioFileException {
+
+        try (SampleReader existingMix = SampleReader.open(existingMixPath);
+             SampleReader songToAdd = SampleReader.open(songToAddPath, existingMix.sampleRate(), Resampler.Quality.HIGH)) {
+            AudioFormats.requireCompatible(existingMix.getFormat(), existingMixPath, songToAdd.getFormat(), songToAddPath);
+            int channels = existingMix.channels();
+
+            try (AudioFileWriter writer = AudioFileWriter.open(outputPath,
+                    AudioFormats.outputFormat(existingMix.sampleRate(), channels))) {
+                writer.setMetrics(metrics);
+                // Remove silence from END of existing mix
+                if (existingMix instanceof WavReader wav) {
+                    // Scan back from the end, then pass everything up to the last loud frame through
+                    long start = metrics.start();
+                    long keepFrames = loudLength(wav);
+                    wav.seek(0);
+                    metrics.stop(MixMetrics.Stage.TRIM, start, (wav.length() - keepFrames) * channels);
+                    writeUntouched(wav, keepFrames, 1.0f, copyThrough, writer, metrics);
+                } else {
+                    SampleBuffer mix = metrics.readFrames(existingMix, Long.MAX_VALUE);
+                    long start = metrics.start();
+                    int endIndex = lastLoudSample(mix.array(), 0, mix.size());
+                    if (endIndex < 0) {
+                        endIndex = mix.size() - 1;
+                    }
+                    metrics.stop(MixMetrics.Stage.TRIM, start, mix.size() - 1 - endIndex);
+                    // Keep the whole frame of the last loud sample
+                    writer.write(mix.array(), 0, (Math.floorDiv(endIndex, channels) + 1) * channels);
+                }
 
-        // Remove silence from END of existing mix
-        int endIndex = existingMix.size() - 1;
-        for (int i = existingMix.size() - 1; i >= 0; i--) {
-            if (Math.abs(existingMix.get(i)) > 0.01f) {
-                endIndex = i;
-                break;
+                // Add the new song
+                writeUntouched(songToAdd, Long.MAX_VALUE, 1.0f, copyThrough, writer, metrics);
             }
         }
+    }
 
-        // Trim the existing mix
-        List<Float> trimmedMix = new ArrayList<>(existingMix.subList(0, endIndex + 1));
+    // Frames up to and including the last one with a sample above the silence threshold; all of them if none is
+    private static long loudLength(WavReader reader) throws IOException {
+        int channels = reader.channels();
+        float[] block = BufferPool.floats(SampleReader.BLOCK_SIZE * channels);
+        try {
+            for (long end = reader.length(); end > 0; ) {
+                long start = Math.max(0, end - SampleReader.BLOCK_SIZE);
+                reader.seek(start);
+                int n = reader.read(block, 0, (int) (end - start));
+                int last = n > 0 ? lastLoudSample(block, 0, n * channels) : -1;
+                if (last >= 0) {
+                    return start + last / channels + 1;
+                }
+                end = start;
+            }
+            return reader.length();
+        } finally {
+            BufferPool.release(block);
+        }
+    }
 
-        // Add the new song
-        trimmedMix.addAll(songToAdd);
+    static int lastLoudSample(float[] samples, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (Math.abs(samples[i]) > 0.01f) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        writeAudioFile(trimmedMix, outputPath);
+    // Writes the reader's next frames frames at volume; with copyThrough they go out as raw bytes when nothing changes them
+    private static void writeUntouched(SampleReader reader, long frames, float volume, boolean copyThrough,
+                                       AudioFileWriter writer, MixMetrics metrics) throws IOException {
+        if (copyThrough && volume == 1.0f && writer.canCopyFrom(reader)) {
+            writer.copyFrom(reader, frames);
+            return;
+        }
+        int channels = reader.channels();
+        float[] block = BufferPool.floats(SampleReader.BLOCK_SIZE * channels);
+        int n;
+        while (frames > 0 && (n = metrics.read(reader, block, 0, (int) Math.min(SampleReader.BLOCK_SIZE, frames))) != -1) {
+            long start = metrics.start();
+            MixKernels.get().scale(block, 0, n * channels, volume);
+            metrics.stop(MixMetrics.Stage.GAIN, start, n * channels);
+            writer.write(block, 0, n * channels);
+            frames -= n;
+        }
+        BufferPool.release(block);
     }
 
     private static void printSettings(OutroIntroSettings settings) {
@@ -97,180 +182,115 @@ public class AudioOutroIntro {
         System.out.println("Intro volume: " + (settings.introVolume * 100) + "%");
         System.out.println("Main song volume: " + (settings.mainSongVolume * 100) + "%");
         System.out.println("Fade to volume: " + (settings.fadeToVolume * 100) + "%");
-        System.out.println("Fade curve: " + (settings.fadeCurve == 0 ? "Linear" : settings.fadeCurve == 1 ? "Exponential" : "Logarithmic"));
+        System.out.println("Fade curve: " + FadeCurve.fromCode(settings.fadeCurve));
     }
 
     public static void createOutroIntroMix(String mainSongPath, String introSongPath,
                                            String outputPath, OutroIntroSettings settings)
             throws IOException, UnsupportedAudioFileException {
-
-        // Read both audio files
-        List<Float> mainSongSamples = readAudioFile(mainSongPath);
-        List<Float> introSamples = readAudioFile(introSongPath);
-
-        // Apply volume to samples
-        applyVolume(mainSongSamples, settings.mainSongVolume);
-        applyVolume(introSamples, settings.introVolume);
-
-        int fadeStartSample = (int) ((mainSongSamples.size() / (float)SAMPLE_RATE - settings.outroFadeStartSeconds) * SAMPLE_RATE);
-        int introStartSample = mainSongSamples.size() - (int)(settings.introStartDelay * SAMPLE_RATE);
-
-        // Ensure valid bounds
-        fadeStartSample = Math.max(0, Math.min(fadeStartSample, mainSongSamples.size()));
-        introStartSample = Math.max(0, Math.min(introStartSample, mainSongSamples.size()));
-
-        // Apply outro fade to main song
-        applyOutroFade(mainSongSamples, fadeStartSample, settings.fadeToVolume, settings.fadeCurve);
-
-        // Create output samples
-        List<Float> outputSamples = new ArrayList<>(mainSongSamples);
-
-        // Add intro samples starting at specified position
-        for (int i = 0; i < introSamples.size(); i++) {
-            int outputIndex = introStartSample + i;
-
-            if (outputIndex < outputSamples.size()) {
-                // Mix with existing audio
-                float mixed = outputSamples.get(outputIndex) + introSamples.get(i);
-                outputSamples.set(outputIndex, Math.max(-1.0f, Math.min(1.0f, mixed)));
-            } else {
-                // Extend beyond main song
-                outputSamples.add(introSamples.get(i));
-            }
-        }
-
-        // Write output file
-        writeAudioFile(outputSamples, outputPath);
-    }
-
-    private static void applyVolume(List<Float> samples, float volume) {
-        for (int i = 0; i < samples.size(); i++) {
-            samples.set(i, samples.get(i) * volume);
-        }
-    }
-
-    private static void applyOutroFade(List<Float> samples, int fadeStartSample, float fadeToVolume, int fadeCurve) {
-        int fadeLength = samples.size() - fadeStartSample;
-
-        for (int i = fadeStartSample; i < samples.size(); i++) {
-            float progress = (float)(i - fadeStartSample) / fadeLength;
-
-            // Apply fade curve
-            float adjustedProgress = applyFadeCurve(progress, fadeCurve);
-
-            // Calculate volume: start at 1.0, end at fadeToVolume
-            float volume = 1.0f - adjustedProgress * (1.0f - fadeToVolume);
-            samples.set(i, samples.get(i) * volume);
-        }
-    }
-
-    private static float applyFadeCurve(float progress, int fadeCurve) {
-        switch (fadeCurve) {
-            case 1: // Exponential
-                return progress * progress;
-            case -1: // Logarithmic
-                return (float) Math.sqrt(progress);
-            default: // Linear
-                return progress;
+        MixMetrics metrics = MixMetrics.begin("createOutroIntroMix", outputPath, mainSongPath, introSongPath);
+        try {
+            createOutroIntroMix(mainSongPath, introSongPath, outputPath, settings, metrics);
+            metrics.finish(null);
+        } catch (Throwable e) {
+            metrics.finish(e);
+            throw e;
         }
     }
 
-    private static List<Float> readAudioFile(String filePath)
+    private static void createOutroIntroMix(String mainSongPath, String introSongPath, String outputPath,
+                                            OutroIntroSettings settings, MixMetrics metrics)
             throws IOException, UnsupportedAudioFileException {
-        List<Float> samples = new ArrayList<>();
 
-        try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(new File(filePath))) {
-            AudioFormat format = audioInputStream.getFormat();
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+        float mainSongVolume = settings.mainSongVolume;
+        float introVolume = settings.introVolume;
+        if (settings.targetLufs != 0.0f) {
+            mainSongVolume *= LoudnessMeter.normalizationGain(mainSongPath, settings.targetLufs);
+            introVolume *= LoudnessMeter.normalizationGain(introSongPath, settings.targetLufs);
+        }
 
-            while ((bytesRead = audioInputStream.read(buffer)) != -1) {
-                for (int i = 0; i < bytesRead; i += format.getFrameSize()) {
-                    float sample = bytesToFloat(buffer, i, format);
-                    samples.add(sample);
+        try (SampleReader mainSong = SampleReader.open(mainSongPath);
+             SampleReader intro = openIntro(introSongPath, mainSong.sampleRate(), settings.resampleQuality, metrics)) {
+            int channels = mainSong.channels();
+            float sampleRate = mainSong.sampleRate();
+            AudioFormats.requireCompatible(channels, sampleRate, mainSongPath,
+                    intro.channels(), intro.sampleRate(), introSongPath);
+
+            RenderGraph graph = outroIntroGraph(mainSong, intro, settings, mainSongVolume, introVolume, metrics);
+            try (AudioFileWriter writer = AudioFileWriter.open(outputPath, AudioFormats.outputFormat(sampleRate, channels))) {
+                writer.setMetrics(metrics);
+                if (settings.truePeakLimit) {
+                    writer.setLimiter(new TruePeakLimiter(sampleRate, channels, settings.limiterCeilingDb));
                 }
+                graph.render(writer);
             }
         }
-        return samples;
     }
 
-    private static float bytesToFloat(byte[] buffer, int offset, AudioFormat format) {
-        if (format.getSampleSizeInBits() == 16) {
-            ByteBuffer bb = ByteBuffer.wrap(buffer, offset, 2);
-            if (format.isBigEndian()) {
-                bb.order(ByteOrder.BIG_ENDIAN);
-            } else {
-                bb.order(ByteOrder.LITTLE_ENDIAN);
-            }
-            short sample = bb.getShort();
-            return sample / 32768.0f;
-        } else if (format.getSampleSizeInBits() == 8) {
-            int sample = buffer[offset] & 0xFF;
-            return (sample - 128) / 128.0f;
-        }
-        return 0.0f;
+    // The main song fading out from outroFadeStartSeconds before its end, with the intro on top from
+    // introStartDelay before the end; the overlap is hard-clipped unless the output goes through the limiter.
+    // With duck the main song is not faded but keyed on the intro: a Ducker follows the intro's level block by block
+    // and turns the song down by duckRatio above duckThresholdDb, to no less than fadeToVolume, and back up in the
+    // intro's pauses and after it.
+    // Main song audio before the fade and the intro is streamed, or copied through as raw bytes; only a main song
+    // of unknown length is decoded into memory, to find where the outro starts.
+    static RenderGraph outroIntroGraph(SampleReader mainSong, SampleReader intro, OutroIntroSettings settings,
+                                       float mainSongVolume, float introVolume, MixMetrics metrics) throws IOException {
+        return outroIntroGraph(mainSong, 0.0f, -1.0f, intro, 0.0f, -1.0f, settings, mainSongVolume, introVolume,
+                metrics);
     }
 
-    private static void writeAudioFile(List<Float> samples, String outputPath) throws IOException {
-        AudioFormat format = new AudioFormat(
-                AudioFormat.Encoding.PCM_SIGNED,
-                44100.0f,
-                16,
-                1,
-                2,
-                44100.0f,
-                false
-        );
-
-        try (FileOutputStream fos = new FileOutputStream(outputPath);
-             BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-
-            writeWavHeader(bos, samples.size() * 2, format);
-
-            byte[] buffer = new byte[2];
-            for (float sample : samples) {
-                short pcmSample = (short) (sample * 32767);
-                buffer[0] = (byte) (pcmSample & 0xFF);
-                buffer[1] = (byte) ((pcmSample >> 8) & 0xFF);
-                bos.write(buffer);
-            }
+    // Same, with both tracks trimmed to [startTime, endTime) first (endTime -1 = to the end), as a playlist plays them
+    static RenderGraph outroIntroGraph(SampleReader mainSong, float mainStartTime, float mainEndTime,
+                                       SampleReader intro, float introStartTime, float introEndTime,
+                                       OutroIntroSettings settings, float mainSongVolume, float introVolume,
+                                       MixMetrics metrics) throws IOException {
+        float sampleRate = mainSong.sampleRate();
+        RenderGraph graph = new RenderGraph(mainSong.channels(), metrics)
+                .copyThrough(settings.copyThrough)
+                .clampOverlaps(!settings.truePeakLimit);
+        RenderGraph.Track main = graph.add(mainSong, 0).trim(mainStartTime, mainEndTime).gain(mainSongVolume)
+                .measure();
+        int mainFrames = (int) main.frames();
+        int fadeStartFrame = fadeStartFrame(settings, mainFrames, sampleRate);
+        int introStartFrame = introStartFrame(settings, mainFrames, sampleRate);
+
+        RenderGraph.Track introTrack = graph.add(intro, introStartFrame).trim(introStartTime, introEndTime)
+                .gain(introVolume);
+        if (settings.duck) {
+            main.duck(introTrack, new Ducker(sampleRate, mainSong.channels(), settings.duckThresholdDb,
+                    settings.duckRatio, settings.duckAttackMs, settings.duckReleaseMs, settings.fadeToVolume));
+        } else {
+            int fadeLength = mainFrames - fadeStartFrame;
+            main.fadeOut(FadeCurve.fromCode(settings.fadeCurve), fadeLength, settings.fadeToVolume, fadeStartFrame,
+                    fadeLength);
         }
+        return graph;
     }
 
-    private static void writeWavHeader(OutputStream out, int dataLength, AudioFormat format)
-            throws IOException {
-        int sampleRate = (int) format.getSampleRate();
-        int channels = format.getChannels();
-        int bitsPerSample = format.getSampleSizeInBits();
-        int byteRate = sampleRate * channels * bitsPerSample / 8;
-        int blockAlign = channels * bitsPerSample / 8;
-
-        out.write("RIFF".getBytes());
-        writeInt(out, 36 + dataLength);
-        out.write("WAVE".getBytes());
-
-        out.write("fmt ".getBytes());
-        writeInt(out, 16);
-        writeShort(out, 1);
-        writeShort(out, channels);
-        writeInt(out, sampleRate);
-        writeInt(out, byteRate);
-        writeShort(out, blockAlign);
-        writeShort(out, bitsPerSample);
-
-        out.write("data".getBytes());
-        writeInt(out, dataLength);
+    // Frame of a mainFrames long main song where its outro fade starts, outroFadeStartSeconds before its end
+    static int fadeStartFrame(OutroIntroSettings settings, int mainFrames, float sampleRate) {
+        int frame = (int) ((mainFrames / sampleRate - settings.outroFadeStartSeconds) * sampleRate);
+        return Math.max(0, Math.min(frame, mainFrames));
     }
 
-    private static void writeInt(OutputStream out, int value) throws IOException {
-        out.write(value & 0xFF);
-        out.write((value >> 8) & 0xFF);
-        out.write((value >> 16) & 0xFF);
-        out.write((value >> 24) & 0xFF);
+    // Frame of the main song where the intro comes in, introStartDelay before its end
+    static int introStartFrame(OutroIntroSettings settings, int mainFrames, float sampleRate) {
+        int frame = mainFrames - AudioFormats.frames(settings.introStartDelay, sampleRate);
+        return Math.max(0, Math.min(frame, mainFrames));
     }
 
-    private static void writeShort(OutputStream out, int value) throws IOException {
-        out.write(value & 0xFF);
-        out.write((value >> 8) & 0xFF);
+    // The intro from the DecodedTrackCache when it is on, so a jingle used over and over is decoded once; otherwise
+    // streamed from the file, as holding a decoded copy that is thrown away after the job gains nothing
+    private static SampleReader openIntro(String filePath, float sampleRate, Resampler.Quality quality, MixMetrics metrics)
+            throws IOException, UnsupportedAudioFileException {
+        DecodedTrackCache cache = DecodedTrackCache.shared();
+        if (!cache.isEnabled()) {
+            return SampleReader.open(filePath, sampleRate, quality);
+        }
+        long start = metrics.start();
+        SampleBuffer samples = cache.read(filePath, sampleRate, quality);
+        metrics.stop(MixMetrics.Stage.DECODE, start, samples.size());
+        return new SampleBufferReader(samples);
     }
-}
\ No newline at end of file
+}
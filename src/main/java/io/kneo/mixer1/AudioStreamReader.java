@@ -0,0 +1,92 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.*;
+import java.io.*;
+
+// Block-wise sample reader on top of an AudioInputStream, for formats WavReader does not handle.
+// Reads decode into caller-provided float arrays so whole tracks never have to be held in memory.
+public class AudioStreamReader implements SampleReader {
+
+    private static final int BUFFER_FRAMES = 4096;
+
+    private final AudioInputStream stream;
+    private final AudioFormat format;
+    private final PcmCodec codec;
+    private final int frameSize;
+    private final int channels;
+    private byte[] buffer;
+
+    public AudioStreamReader(AudioInputStream stream) throws UnsupportedAudioFileException {
+        this.stream = stream;
+        this.format = stream.getFormat();
+        if (!PcmCodec.isSupported(format)) {
+            throw new UnsupportedAudioFileException("Unsupported sample format: " + format);
+        }
+        this.codec = new PcmCodec(format);
+        this.frameSize = format.getFrameSize();
+        this.channels = format.getChannels();
+        this.buffer = BufferPool.bytes(BUFFER_FRAMES * frameSize);
+    }
+
+    public static AudioStreamReader open(String filePath) throws IOException, UnsupportedAudioFileException {
+        AudioInputStream stream = AudioSystem.getAudioInputStream(new File(filePath));
+        try {
+            return new AudioStreamReader(stream);
+        } catch (UnsupportedAudioFileException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long length() {
+        long frames = stream.getFrameLength();
+        return frames == AudioSystem.NOT_SPECIFIED ? -1 : frames;
+    }
+
+    @Override
+    public int read(float[] dst, int offset, int frames) throws IOException {
+        int produced = 0;
+        while (produced < frames) {
+            int count = Math.min(BUFFER_FRAMES, frames - produced);
+            int bytesRead = stream.read(buffer, 0, count * frameSize);
+            if (bytesRead == -1) {
+                break;
+            }
+            int framesRead = bytesRead / frameSize;
+            codec.decode(buffer, 0, dst, offset + produced * channels, framesRead * channels);
+            produced += framesRead;
+        }
+        return produced == 0 && frames > 0 ? -1 : produced;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long n = stream.skip((count - skipped) * frameSize) / frameSize;
+            if (n <= 0) {
+                // Some streams cannot skip; fall back to reading
+                int bytesRead = stream.read(buffer, 0, (int) Math.min(BUFFER_FRAMES, count - skipped) * frameSize);
+                if (bytesRead == -1) {
+                    break;
+                }
+                n = bytesRead / frameSize;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        BufferPool.release(buffer);
+        buffer = null;
+        stream.close();
+    }
+}
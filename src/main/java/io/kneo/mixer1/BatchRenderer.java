@@ -0,0 +1,308 @@
+package io.kneo.mixer1;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Runs a manifest of mix jobs concurrently in one JVM.
+// Manifest lines are tab separated: type, input 1, input 2, output, then options. '#' starts a comment.
+//   crossfade  a.wav  b.wav  out.wav  DJ_CROSSFADE crossfadeSeconds=6
+//   outro      main.wav  intro.wav  out.wav  introStartDelay=10 fadeToVolume=0.2
+//   append     mix.wav  song.wav  out.flac
+//   preview    a.wav  b.wav  preview.wav  OVERLAP_MIX
+// An output ending in .flac is written as FLAC, anything else as WAV.
+// Options are a MixProfile name (crossfade and preview only) and field=value overrides of MixSettings (crossfade,
+// preview) or OutroIntroSettings (outro only); append takes no options.
+// Jobs run in no particular order, so one job must not read another job's output.
+// A failing job is reported and the batch carries on.
+public class BatchRenderer {
+
+    public enum JobType {
+        CROSSFADE, // AudioMerger.mergeAudioFilesStreaming
+        OUTRO,     // AudioOutroIntro.createOutroIntroMix
+        APPEND,    // AudioOutroIntro.addSongToEnd
+        PREVIEW    // TransitionPreview.render, with crossfade options
+    }
+
+    public static class BatchSettings {
+        public int threads; // worker threads; lowered further if the memory budget does not cover them
+        public int queueCapacity; // jobs waiting for a worker before the manifest reader blocks
+        public long memoryBudgetBytes; // heap the batch may use for decoded audio
+        public long jobMemoryBytes; // assumed peak heap of one job
+        public long cacheBytes; // part of the memory budget given to the shared DecodedTrackCache; 0 leaves it as configured
+
+        public BatchSettings() {
+            this(Runtime.getRuntime().availableProcessors(), 2 * Runtime.getRuntime().availableProcessors(),
+                    Runtime.getRuntime().maxMemory() / 4 * 3, 256L << 20, Runtime.getRuntime().maxMemory() / 4);
+        }
+
+        public BatchSettings(int threads, int queueCapacity, long memoryBudgetBytes, long jobMemoryBytes, long cacheBytes) {
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.memoryBudgetBytes = memoryBudgetBytes;
+            this.jobMemoryBytes = jobMemoryBytes;
+            this.cacheBytes = cacheBytes;
+        }
+
+        int workers() {
+            long byMemory = jobMemoryBytes > 0 ? (memoryBudgetBytes - cacheBytes) / jobMemoryBytes : threads;
+            return (int) Math.max(1, Math.min(threads, byMemory));
+        }
+    }
+
+    public static class Job {
+        public final int line;
+        public final JobType type;
+        public final String input1;
+        public final String input2;
+        public final String output;
+        public final AudioMerger.MixSettings mixSettings;
+        public final AudioOutroIntro.OutroIntroSettings outroIntroSettings;
+
+        public Job(int line, JobType type, String input1, String input2, String output,
+                   AudioMerger.MixSettings mixSettings, AudioOutroIntro.OutroIntroSettings outroIntroSettings) {
+            this.line = line;
+            this.type = type;
+            this.input1 = input1;
+            this.input2 = input2;
+            this.output = output;
+            this.mixSettings = mixSettings;
+            this.outroIntroSettings = outroIntroSettings;
+        }
+
+        void run() throws Exception {
+            switch (type) {
+                case CROSSFADE -> AudioMerger.mergeAudioFilesStreaming(input1, input2, output, mixSettings);
+                case OUTRO -> AudioOutroIntro.createOutroIntroMix(input1, input2, output, outroIntroSettings);
+                case APPEND -> AudioOutroIntro.addSongToEnd(input1, input2, output);
+                case PREVIEW -> TransitionPreview.render(input1, input2, output, mixSettings);
+            }
+        }
+    }
+
+    // Outcome of one manifest line; job is null if the line could not be parsed
+    public static class JobResult {
+        public final int line;
+        public final Job job;
+        public final long millis;
+        public final Throwable error;
+
+        JobResult(int line, Job job, long millis, Throwable error) {
+            this.line = line;
+            this.job = job;
+            this.millis = millis;
+            this.error = error;
+        }
+
+        public boolean succeeded() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            String target = job != null ? job.type + " " + job.output + " (line " + line + ")" : "line " + line;
+            return succeeded()
+                    ? String.format("ok    %6d ms  %s", millis, target)
+                    : String.format("FAIL  %6d ms  %s: %s", millis, target, error);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: BatchRenderer <manifest.tsv>");
+            System.exit(2);
+        }
+        BatchSettings settings = new BatchSettings();
+        try {
+            long start = System.nanoTime();
+            List<JobResult> results = run(Path.of(args[0]), settings, result -> {
+                if (result.succeeded()) {
+                    System.out.println(result);
+                } else {
+                    System.err.println(result);
+                }
+            });
+            long failed = results.stream().filter(r -> !r.succeeded()).count();
+            long jobMillis = results.stream().mapToLong(r -> r.millis).sum();
+            System.out.printf("%d jobs, %d failed, %d workers, wall %d ms, job time %d ms%n", results.size(), failed,
+                    settings.workers(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), jobMillis);
+            System.out.println(DecodedTrackCache.shared().stats());
+            System.exit(failed == 0 ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Error running batch: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    // Runs every job in the manifest and returns the results in manifest order.
+    // listener sees each result as it completes, on the worker thread that ran it.
+    public static List<JobResult> run(Path manifest, BatchSettings settings, Consumer<JobResult> listener)
+            throws IOException, InterruptedException {
+        if (settings.cacheBytes > 0) {
+            // Intros and songs recur across jobs; in-memory mixes decode them once
+            DecodedTrackCache.shared().setBudgetBytes(settings.cacheBytes);
+        }
+        int workers = settings.workers();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        // Bounds queued plus running jobs, so reading a huge manifest never outruns the workers.
+        // The permit is returned just before a task ends, so the queue itself is left unbounded.
+        Semaphore inFlight = new Semaphore(workers + Math.max(1, settings.queueCapacity));
+        List<Future<JobResult>> futures = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(manifest)) {
+            String text;
+            int lineNumber = 0;
+            while ((text = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = text.strip();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                int line = lineNumber;
+                String entry = text;
+                inFlight.acquire();
+                futures.add(executor.submit(() -> {
+                    try {
+                        JobResult result = execute(line, entry);
+                        listener.accept(result);
+                        return result;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<JobResult> results = new ArrayList<>(futures.size());
+        for (Future<JobResult> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // Only the listener can get here; execute() reports job failures in its result
+                throw new IllegalStateException("Batch listener failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private static JobResult execute(int line, String text) {
+        long start = System.nanoTime();
+        Job job = null;
+        try {
+            job = parse(line, text);
+            job.run();
+            return new JobResult(line, job, elapsedMillis(start), null);
+        } catch (Exception | OutOfMemoryError e) {
+            return new JobResult(line, job, elapsedMillis(start), e);
+        }
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public static Job parse(int line, String text) {
+        String[] fields = text.strip().split("\t");
+        if (fields.length < 4) {
+            throw new IllegalArgumentException("Expected type, input 1, input 2 and output, got: " + text);
+        }
+        JobType type = JobType.valueOf(fields[0].strip().toUpperCase(Locale.ROOT));
+        List<String> options = new ArrayList<>();
+        for (int i = 4; i < fields.length; i++) {
+            for (String option : fields[i].strip().split("\\s+")) {
+                if (!option.isEmpty()) {
+                    options.add(option);
+                }
+            }
+        }
+        return job(line, type, fields[1].strip(), fields[2].strip(), fields[3].strip(), options);
+    }
+
+    // A job from its options: MixProfile names and field=value overrides, applied in order
+    public static Job job(int line, JobType type, String input1, String input2, String output, List<String> options) {
+        AudioMerger.MixSettings mixSettings = null;
+        AudioOutroIntro.OutroIntroSettings outroIntroSettings = null;
+        Object target = null;
+        if (type == JobType.CROSSFADE || type == JobType.PREVIEW) {
+            mixSettings = new AudioMerger.MixSettings();
+            target = mixSettings;
+        } else if (type == JobType.OUTRO) {
+            outroIntroSettings = new AudioOutroIntro.OutroIntroSettings();
+            target = outroIntroSettings;
+        }
+
+        for (String option : options) {
+            if (target == null) {
+                throw new IllegalArgumentException(type + " jobs take no options: " + option);
+            }
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                if (mixSettings == null) {
+                    throw new IllegalArgumentException("Expected field=value: " + option);
+                }
+                // A profile replaces everything set so far
+                mixSettings = AudioMerger.MixProfile.valueOf(option).getSettings();
+                target = mixSettings;
+            } else {
+                setField(target, option.substring(0, eq), option.substring(eq + 1));
+            }
+        }
+        return new Job(line, type, input1, input2, output, mixSettings, outroIntroSettings);
+    }
+
+    private static void setField(Object settings, String name, String value) {
+        try {
+            Field field = settings.getClass().getField(name);
+            Class<?> type = field.getType();
+            if (type == int.class) {
+                field.setInt(settings, Integer.parseInt(value));
+            } else if (type == float.class) {
+                field.setFloat(settings, Float.parseFloat(value));
+            } else if (type == boolean.class) {
+                field.setBoolean(settings, parseBoolean(name, value));
+            } else if (type.isEnum()) {
+                field.set(settings, enumConstant(type, name, value));
+            } else {
+                throw new IllegalArgumentException("Unsupported option type for " + name);
+            }
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Unknown option " + name + " for " + settings.getClass().getSimpleName());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Only "true" or "false", so a typo fails the job instead of quietly meaning false
+    private static boolean parseBoolean(String name, String value) {
+        return switch (value) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new IllegalArgumentException("Expected true or false for " + name + ", got " + value);
+        };
+    }
+
+    private static Object enumConstant(Class<?> type, String name, String value) {
+        for (Object constant : type.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(value)) {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException("No " + type.getSimpleName() + " " + value + " for " + name);
+    }
+}
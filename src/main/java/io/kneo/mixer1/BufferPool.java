@@ -0,0 +1,87 @@
+package io.kneo.mixer1;
+
+import java.util.Arrays;
+
+// Per-thread free lists of the block buffers that readers, writers and render graphs work in.
+// A thread that renders job after job (a MixDaemon worker, a LiveMixService mixer) gets the same arrays back instead
+// of allocating them per job or per block. Not everything goes through the pool: buffers with their own lifetime are
+// kept where they are used (FlacStreamWriter's sample blocks, LiveMixService's broadcast ring), and what a job
+// produces once, such as encoded FLAC frames and its readers and writers, is still allocated.
+// Buffers are matched by exact length, since callers size their loops by it; borrowed buffers hold whatever the last
+// user left in them unless taken with floatsZeroed. Return a buffer once, when nothing refers to it any more; a buffer
+// released on another thread simply moves to that thread's pool. Buffers over MAX_BUFFER_BYTES are never kept.
+// -Dmixer1.bufferPool=false turns pooling off, so every borrow allocates.
+public final class BufferPool {
+
+    private static final int SLOTS = 16; // per thread and element type
+    private static final int MAX_BUFFER_BYTES = 1 << 20;
+    private static final boolean ENABLED = !"false".equals(System.getProperty("mixer1.bufferPool"));
+    private static final ThreadLocal<BufferPool> POOLS = ThreadLocal.withInitial(BufferPool::new);
+
+    private final float[][] floats = new float[SLOTS][];
+    private final byte[][] bytes = new byte[SLOTS][];
+
+    private BufferPool() {
+    }
+
+    public static float[] floats(int length) {
+        if (ENABLED) {
+            float[][] free = POOLS.get().floats;
+            for (int i = 0; i < SLOTS; i++) {
+                float[] buffer = free[i];
+                if (buffer != null && buffer.length == length) {
+                    free[i] = null;
+                    return buffer;
+                }
+            }
+        }
+        return new float[length];
+    }
+
+    public static float[] floatsZeroed(int length) {
+        float[] buffer = floats(length);
+        Arrays.fill(buffer, 0.0f);
+        return buffer;
+    }
+
+    public static byte[] bytes(int length) {
+        if (ENABLED) {
+            byte[][] free = POOLS.get().bytes;
+            for (int i = 0; i < SLOTS; i++) {
+                byte[] buffer = free[i];
+                if (buffer != null && buffer.length == length) {
+                    free[i] = null;
+                    return buffer;
+                }
+            }
+        }
+        return new byte[length];
+    }
+
+    // Hands buffer back to this thread's pool; null is ignored. With every slot taken the buffer is dropped in favour
+    // of the oldest one, so a thread's pool follows the sizes it currently uses.
+    public static void release(float[] buffer) {
+        if (ENABLED && buffer != null && buffer.length <= MAX_BUFFER_BYTES / Float.BYTES) {
+            float[][] free = POOLS.get().floats;
+            free[slot(free)] = buffer;
+        }
+    }
+
+    public static void release(byte[] buffer) {
+        if (ENABLED && buffer != null && buffer.length <= MAX_BUFFER_BYTES) {
+            byte[][] free = POOLS.get().bytes;
+            free[slot(free)] = buffer;
+        }
+    }
+
+    // First empty slot; if there is none, the contents shift down one and the last slot is freed
+    private static int slot(Object[] free) {
+        for (int i = 0; i < SLOTS; i++) {
+            if (free[i] == null) {
+                return i;
+            }
+        }
+        System.arraycopy(free, 1, free, 0, SLOTS - 1);
+        return SLOTS - 1;
+    }
+}
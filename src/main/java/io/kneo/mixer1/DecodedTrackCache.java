@@ -0,0 +1,411 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// Decoded PCM of recently used input files, so tracks that appear in many transitions are decoded once.
+// Entries are keyed by real path, modification time and size, so a changed file is simply a new key. They hold the
+// file's own sample rate; requests for another rate resample the cached samples.
+// Memory is bounded by a byte budget with least-recently-used eviction. With a spill directory, evicted tracks are
+// written there as raw float files and mapped back in on the next request, also across runs. A track that cannot be
+// spilled (disk full, directory gone) is only dropped from memory: the failure is counted, reported on stderr and
+// does not fail the request that evicted it.
+// Callers get their own copy of the samples, so they can scale or truncate it in place as before; stored buffers are
+// never modified, so copies are made outside the lock.
+// The shared instance is off unless -Dmixer1.cache.bytes is set; -Dmixer1.cache.dir enables spilling.
+public class DecodedTrackCache {
+
+    private static final int SPILL_MAGIC = 0x4D584631; // "MXF1"
+    private static final int SPILL_CHUNK = 1 << 20; // bytes per spill write
+
+    private static final DecodedTrackCache SHARED = new DecodedTrackCache(
+            Long.getLong("mixer1.cache.bytes", 0L),
+            System.getProperty("mixer1.cache.dir") == null ? null : Path.of(System.getProperty("mixer1.cache.dir")));
+
+    private final LinkedHashMap<String, SampleBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FutureTask<SampleBuffer>> loading = new HashMap<>();
+    private final Path spillDirectory;
+    private long budgetBytes;
+    private long usedBytes;
+
+    private long hits;
+    private long misses;
+    private long diskHits;
+    private long evictions;
+    private long spills;
+    private long spillFailures;
+
+    public DecodedTrackCache(long budgetBytes, Path spillDirectory) {
+        this.budgetBytes = Math.max(0, budgetBytes);
+        this.spillDirectory = spillDirectory;
+    }
+
+    public static DecodedTrackCache shared() {
+        return SHARED;
+    }
+
+    public static class Stats {
+        public final long hits;      // served from memory, including callers that waited on a concurrent decode
+        public final long misses;    // decoded from the source file
+        public final long diskHits;  // mapped back in from a spill file
+        public final long evictions;
+        public final long spills;
+        public final long spillFailures; // evicted tracks that could not be written out, and were dropped instead
+        public final long usedBytes;
+        public final long budgetBytes;
+
+        Stats(long hits, long misses, long diskHits, long evictions, long spills, long spillFailures, long usedBytes,
+              long budgetBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.diskHits = diskHits;
+            this.evictions = evictions;
+            this.spills = spills;
+            this.spillFailures = spillFailures;
+            this.usedBytes = usedBytes;
+            this.budgetBytes = budgetBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "cache hits=%d misses=%d diskHits=%d evictions=%d spills=%d spillFailures=%d used=%dMB/%dMB",
+                    hits, misses, diskHits, evictions, spills, spillFailures, usedBytes >> 20, budgetBytes >> 20);
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, diskHits, evictions, spills, spillFailures, usedBytes, budgetBytes);
+    }
+
+    public synchronized boolean isEnabled() {
+        return budgetBytes > 0 || spillDirectory != null;
+    }
+
+    // Shrinking the budget evicts (and spills) straight away
+    public void setBudgetBytes(long budgetBytes) {
+        List<Map.Entry<String, SampleBuffer>> evicted;
+        synchronized (this) {
+            this.budgetBytes = Math.max(0, budgetBytes);
+            evicted = evictOverBudget();
+        }
+        spill(evicted);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    // Samples of filePath at sampleRate, resampled with quality if the file has another rate
+    public SampleBuffer read(String filePath, float sampleRate, Resampler.Quality quality)
+            throws IOException, UnsupportedAudioFileException {
+        SampleBuffer samples = isEnabled() ? lookup(filePath) : decode(filePath);
+        if (samples.sampleRate() == sampleRate) {
+            return isEnabled() ? copy(samples) : samples;
+        }
+        return resample(samples, sampleRate, quality);
+    }
+
+    // Only [startTime, endTime) of filePath (endTime -1 = to the end), at sampleRate or, for 0, the file's own rate.
+    // Served from the cache when it is enabled; otherwise the reader seeks to the window and decodes just that.
+    public SampleBuffer readRange(String filePath, float sampleRate, Resampler.Quality quality, float startTime, float endTime)
+            throws IOException, UnsupportedAudioFileException {
+        if (isEnabled()) {
+            SampleBuffer samples = lookup(filePath);
+            if (sampleRate > 0.0f && samples.sampleRate() != sampleRate) {
+                samples = resample(samples, sampleRate, quality);
+            }
+            int frames = samples.frames();
+            int startFrame = Math.max(0, Math.min(AudioFormats.frames(startTime, samples.sampleRate()), frames));
+            int endFrame = endTime == -1 ? frames
+                    : Math.max(startFrame, Math.min(AudioFormats.frames(endTime, samples.sampleRate()), frames));
+            return samples.copyRange(startFrame * samples.channels(), endFrame * samples.channels());
+        }
+        try (SampleReader reader = sampleRate > 0.0f
+                ? SampleReader.open(filePath, sampleRate, quality)
+                : SampleReader.open(filePath)) {
+            return reader.readFrames(AudioMerger.seekToStart(reader, startTime, endTime));
+        }
+    }
+
+    // All channels at the file's own sample rate
+    public SampleBuffer read(String filePath) throws IOException, UnsupportedAudioFileException {
+        return isEnabled() ? copy(lookup(filePath)) : decode(filePath);
+    }
+
+    // The stored buffer itself, which callers must not modify
+    private SampleBuffer lookup(String filePath) throws IOException, UnsupportedAudioFileException {
+        String key = key(filePath);
+        FutureTask<SampleBuffer> task;
+        SampleBuffer cached;
+        boolean owner = false;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+            }
+            task = cached != null ? null : loading.get(key);
+            if (cached == null && task == null) {
+                task = new FutureTask<>(() -> load(key, filePath));
+                loading.put(key, task);
+                owner = true;
+            } else if (cached == null) {
+                hits++;
+            }
+        }
+        if (cached != null) {
+            return cached;
+        }
+
+        try {
+            if (owner) {
+                task.run();
+            }
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof UnsupportedAudioFileException unsupported) {
+                throw unsupported;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + filePath, e);
+        } finally {
+            if (owner) {
+                synchronized (this) {
+                    loading.remove(key);
+                }
+            }
+        }
+    }
+
+    private SampleBuffer load(String key, String filePath) throws IOException, UnsupportedAudioFileException {
+        SampleBuffer samples = readSpill(key);
+        boolean fromDisk = samples != null;
+        if (!fromDisk) {
+            samples = decode(filePath);
+            // Stored trimmed to size, so the budget counts exactly what is held
+            samples = samples.copyRange(0, samples.size());
+        }
+
+        List<Map.Entry<String, SampleBuffer>> evicted;
+        synchronized (this) {
+            if (fromDisk) {
+                diskHits++;
+            } else {
+                misses++;
+            }
+            entries.put(key, samples);
+            usedBytes += bytes(samples);
+            evicted = evictOverBudget();
+        }
+        spill(evicted);
+        return samples;
+    }
+
+    private static SampleBuffer resample(SampleBuffer samples, float sampleRate, Resampler.Quality quality) throws IOException {
+        try (SampleReader reader = new Resampler(new SampleBufferReader(samples), sampleRate, quality)) {
+            return reader.readAll();
+        }
+    }
+
+    // The whole track; its PeakIndex sidecar is written on the way if it is missing or stale
+    private static SampleBuffer decode(String filePath) throws IOException, UnsupportedAudioFileException {
+        BasicFileAttributes attributes = Files.readAttributes(Path.of(filePath), BasicFileAttributes.class);
+        SampleBuffer samples;
+        try (SampleReader reader = SampleReader.open(filePath)) {
+            samples = reader.readAll();
+        }
+        PeakIndex.Builder peaks = PeakIndex.builderFor(filePath, attributes, samples.sampleRate(), samples.channels());
+        if (peaks != null) {
+            peaks.add(samples.array(), 0, samples.frames());
+            PeakIndex.store(filePath, attributes, peaks.build());
+        }
+        return samples;
+    }
+
+    // Least recently used entries beyond the budget; an entry larger than the whole budget goes straight out again
+    private List<Map.Entry<String, SampleBuffer>> evictOverBudget() {
+        List<Map.Entry<String, SampleBuffer>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, SampleBuffer>> it = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<String, SampleBuffer> eldest = it.next();
+            it.remove();
+            usedBytes -= bytes(eldest.getValue());
+            evictions++;
+            evicted.add(Map.entry(eldest.getKey(), eldest.getValue()));
+        }
+        return evicted;
+    }
+
+    private static SampleBuffer copy(SampleBuffer samples) {
+        return samples.copyRange(0, samples.size());
+    }
+
+    private static long bytes(SampleBuffer samples) {
+        return 4L * samples.size();
+    }
+
+    // Identity of an input file: real path, modification time and size
+    static String key(String filePath) throws IOException {
+        Path path = Path.of(filePath).toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return path + "|" + attributes.lastModifiedTime().toMillis() + "|" + attributes.size();
+    }
+
+    // Spill file: magic, key length, key (UTF-8), channels, sample rate, sample count, padding to 4 bytes, float samples
+
+    private Path spillPath(String key) {
+        return spillDirectory.resolve(String.format("%016x.f32", hash64(key)));
+    }
+
+    private void spill(List<Map.Entry<String, SampleBuffer>> evicted) {
+        if (spillDirectory == null) {
+            return;
+        }
+        for (Map.Entry<String, SampleBuffer> entry : evicted) {
+            try {
+                if (spill(entry.getKey(), entry.getValue())) {
+                    synchronized (this) {
+                        spills++;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    spillFailures++;
+                }
+                System.err.println("Cannot spill " + entry.getKey() + " to " + spillDirectory + ": " + e);
+            }
+        }
+    }
+
+    // Writes a temp file and moves it into place, so a failed spill leaves nothing behind; false if already spilled
+    private boolean spill(String key, SampleBuffer samples) throws IOException {
+        Path target = spillPath(key);
+        if (Files.exists(target)) {
+            return false;
+        }
+        Files.createDirectories(spillDirectory);
+        Path temp = Files.createTempFile(spillDirectory, "spill", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer header = spillHeader(key, samples);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                ByteBuffer chunk = ByteBuffer.allocateDirect(SPILL_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+                float[] data = samples.array();
+                for (int offset = 0; offset < samples.size(); ) {
+                    int n = Math.min(SPILL_CHUNK / 4, samples.size() - offset);
+                    chunk.clear();
+                    chunk.asFloatBuffer().put(data, offset, n);
+                    chunk.limit(4 * n);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                    offset += n;
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    private static ByteBuffer spillHeader(String key, SampleBuffer samples) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + keyBytes.length + 16;
+        ByteBuffer header = ByteBuffer.allocate((length + 3) & ~3).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(SPILL_MAGIC).putInt(keyBytes.length).put(keyBytes)
+                .putInt(samples.channels()).putFloat(samples.sampleRate()).putLong(samples.size());
+        header.clear();
+        return header;
+    }
+
+    private SampleBuffer readSpill(String key) throws IOException {
+        if (spillDirectory == null) {
+            return null;
+        }
+        Path path = spillPath(key);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.remaining() < 8 || mapped.getInt() != SPILL_MAGIC) {
+                return null;
+            }
+            // A file cut short or overwritten is treated as missing and the track is decoded again
+            int keyLength = mapped.getInt();
+            if (keyLength < 0 || keyLength > mapped.remaining() - 16) {
+                return null;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            mapped.get(keyBytes);
+            if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+                return null; // hash collision with another track
+            }
+            int channels = mapped.getInt();
+            float sampleRate = mapped.getFloat();
+            long size = mapped.getLong();
+            int dataStart = (mapped.position() + 3) & ~3;
+            if (channels < 1 || size < 0 || size > Integer.MAX_VALUE || size % channels != 0
+                    || dataStart + 4 * size > mapped.capacity()) {
+                return null;
+            }
+            // Straight from the mapping into the buffer's own array
+            SampleBuffer samples = new SampleBuffer(channels, sampleRate, (int) size);
+            samples.addSilence((int) size);
+            mapped.position(dataStart);
+            mapped.asFloatBuffer().get(samples.array(), 0, (int) size);
+            return samples;
+        }
+    }
+
+    // 64-bit FNV-1a
+    private static long hash64(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,58 @@
+package io.kneo.mixer1;
+
+// Sidechain ducking: turns the level of a key signal (a spoken intro) into a gain for the signal under it (the song).
+// The key's peak level per frame goes through a one-pole envelope follower with separate attack and release times;
+// where the envelope is above the threshold the gain comes down by ratio, as a compressor keyed on the key would
+// (ratio 4: 12 dB over the threshold takes 9 dB off), but never below floor.
+// The envelope is carried from one block to the next, so ducking runs block by block in the same pass as the mix,
+// with no look at the key before it plays. All state is a few fields; processing allocates nothing.
+public class Ducker {
+
+    private final int channels;
+    private final float threshold; // linear
+    private final float slope; // 1 - 1 / ratio
+    private final float attack; // per-frame envelope coefficients
+    private final float release;
+    private final float floor;
+    private float envelope;
+
+    public Ducker(float sampleRate, int channels, float thresholdDb, float ratio, float attackMillis,
+                  float releaseMillis, float floor) {
+        this.channels = channels;
+        this.threshold = (float) Math.pow(10.0, thresholdDb / 20.0);
+        this.slope = ratio <= 1.0f ? 0.0f : 1.0f - 1.0f / ratio;
+        this.attack = coefficient(sampleRate, attackMillis);
+        this.release = coefficient(sampleRate, releaseMillis);
+        this.floor = floor;
+    }
+
+    // Multiplies frames frames of interleaved gains by the ducking gain for key, whose samples play at keyGain;
+    // a null key is silence, during which the envelope releases
+    public void apply(float[] key, float keyGain, float[] gains, int frames) {
+        float envelope = this.envelope;
+        float threshold = this.threshold;
+        for (int f = 0; f < frames; f++) {
+            float level = 0.0f;
+            if (key != null) {
+                for (int c = 0, i = f * channels; c < channels; c++, i++) {
+                    level = Math.max(level, Math.abs(key[i]));
+                }
+                level *= Math.abs(keyGain);
+            }
+            envelope += (level > envelope ? attack : release) * (level - envelope);
+            if (envelope > threshold) {
+                // Above the threshold the level drops by slope dB per dB: gain = (envelope / threshold)^-slope
+                float gain = Math.max(floor, (float) Math.exp(-slope * Math.log(envelope / threshold)));
+                for (int c = 0, i = f * channels; c < channels; c++, i++) {
+                    gains[i] *= gain;
+                }
+            }
+        }
+        this.envelope = envelope < 1.0e-9f ? 0.0f : envelope; // no denormals after a long silence
+    }
+
+    // Share of the distance to the target covered per frame, for a time constant of millis
+    private static float coefficient(float sampleRate, float millis) {
+        return millis <= 0.0f ? 1.0f : (float) (1.0 - Math.exp(-1000.0 / (sampleRate * millis)));
+    }
+}
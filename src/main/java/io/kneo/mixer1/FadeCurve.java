@@ -0,0 +1,77 @@
+package io.kneo.mixer1;
+
+// Fade shapes shared by the mixers, identified by the int codes used in MixSettings/OutroIntroSettings.fadeCurve.
+// Each curve is sampled once into fade-in and fade-out lookup tables; FadeEnvelope interpolates them.
+public enum FadeCurve {
+    LINEAR(0),
+    EXPONENTIAL(1),
+    LOGARITHMIC(-1),
+    EQUAL_POWER(2), // sin/cos, constant power through the crossfade
+    S_CURVE(3);     // smoothstep, slow start and end
+
+    static final int TABLE_SIZE = 4096;
+
+    private final int code;
+    private volatile float[][] tables; // {fadeIn, fadeOut}, built on first use
+
+    FadeCurve(int code) {
+        this.code = code;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    // Unknown codes fall back to linear, as the original switch did
+    public static FadeCurve fromCode(int code) {
+        for (FadeCurve curve : values()) {
+            if (curve.code == code) {
+                return curve;
+            }
+        }
+        return LINEAR;
+    }
+
+    // Fade-in gain at progress 0.0 to 1.0
+    public double fadeIn(double progress) {
+        return switch (this) {
+            case LINEAR -> progress;
+            case EXPONENTIAL -> progress * progress;
+            case LOGARITHMIC -> Math.sqrt(progress);
+            case EQUAL_POWER -> Math.sin(progress * Math.PI / 2);
+            case S_CURVE -> progress * progress * (3 - 2 * progress);
+        };
+    }
+
+    // Fade-out gain at progress 0.0 to 1.0
+    public double fadeOut(double progress) {
+        return this == EQUAL_POWER ? Math.cos(progress * Math.PI / 2) : 1.0 - fadeIn(progress);
+    }
+
+    float[] fadeInTable() {
+        return tables()[0];
+    }
+
+    float[] fadeOutTable() {
+        return tables()[1];
+    }
+
+    private float[][] tables() {
+        float[][] t = tables;
+        if (t == null) {
+            // One extra entry past the end so interpolation at progress 1.0 needs no bounds check
+            float[] in = new float[TABLE_SIZE + 2];
+            float[] out = new float[TABLE_SIZE + 2];
+            for (int i = 0; i <= TABLE_SIZE; i++) {
+                double progress = (double) i / TABLE_SIZE;
+                in[i] = (float) fadeIn(progress);
+                out[i] = (float) fadeOut(progress);
+            }
+            in[TABLE_SIZE + 1] = in[TABLE_SIZE];
+            out[TABLE_SIZE + 1] = out[TABLE_SIZE];
+            t = new float[][]{in, out};
+            tables = t;
+        }
+        return t;
+    }
+}
@@ -0,0 +1,47 @@
+package io.kneo.mixer1;
+
+// A fade curve stretched over a fixed number of frames.
+// Fills blocks of gains by interpolating the curve's lookup table, so per-sample cost is a lookup and a multiply-add.
+// Gains are interleaved like the samples they apply to: every channel of a frame gets the same gain.
+public class FadeEnvelope {
+
+    private final float[] fadeIn;
+    private final float[] fadeOut;
+    private final double step; // table entries per frame
+    private final int channels;
+
+    public FadeEnvelope(FadeCurve curve, int fadeLength) {
+        this(curve, fadeLength, 1);
+    }
+
+    public FadeEnvelope(FadeCurve curve, int fadeLength, int channels) {
+        this.fadeIn = curve.fadeInTable();
+        this.fadeOut = curve.fadeOutTable();
+        this.step = fadeLength > 0 ? (double) FadeCurve.TABLE_SIZE / fadeLength : 0.0;
+        this.channels = channels;
+    }
+
+    // length gains starting at fade frame `position`, rising from floor to 1.0
+    public void fadeIn(int position, float[] gains, int length, float floor) {
+        fill(fadeIn, position, gains, length, floor);
+    }
+
+    // length gains starting at fade frame `position`, falling from 1.0 to floor
+    public void fadeOut(int position, float[] gains, int length, float floor) {
+        fill(fadeOut, position, gains, length, floor);
+    }
+
+    private void fill(float[] table, int position, float[] gains, int length, float floor) {
+        float range = 1.0f - floor;
+        int frames = length / channels;
+        for (int f = 0; f < frames; f++) {
+            double x = Math.min((position + f) * step, FadeCurve.TABLE_SIZE);
+            int index = (int) x;
+            float fraction = (float) (x - index);
+            float gain = floor + (table[index] + fraction * (table[index + 1] - table[index])) * range;
+            for (int c = 0; c < channels; c++) {
+                gains[f * channels + c] = gain;
+            }
+        }
+    }
+}
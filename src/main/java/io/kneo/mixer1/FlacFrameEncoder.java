@@ -0,0 +1,618 @@
+package io.kneo.mixer1;
+
+import java.util.Arrays;
+
+// Encodes one FLAC frame from interleaved integer samples. Frames depend on nothing but their own samples, which
+// is what lets FlacStreamWriter hand them to a thread pool; an instance holds only stream constants and can be
+// shared between threads.
+// Every channel is tried as a constant, with the fixed predictors of order 0-4 and with the LPC order that
+// Levinson-Durbin suggests; stereo additionally tries the left/side, right/side and mid/side decorrelations.
+// Residuals are Rice coded in as many partitions as comes out smallest. Sizes are estimated first and only the
+// winning subframes are written.
+final class FlacFrameEncoder {
+
+    static final int MAX_FIXED_ORDER = 4;
+    static final int MAX_LPC_ORDER = 8;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 30;
+    private static final int LPC_PRECISION = 14; // quantized coefficient bits, sign included
+
+    private static final int CHANNELS_LEFT_SIDE = 8;
+    private static final int CHANNELS_RIGHT_SIDE = 9;
+    private static final int CHANNELS_MID_SIDE = 10;
+
+    private final int channels;
+    private final int bitsPerSample;
+    private final int sampleRateCode;
+    private final int sampleSizeCode;
+
+    FlacFrameEncoder(int sampleRate, int channels, int bitsPerSample) {
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.sampleRateCode = sampleRateCode(sampleRate);
+        this.sampleSizeCode = sampleSizeCode(bitsPerSample);
+    }
+
+    // One complete frame, header to CRC-16, for frames frames of interleaved samples
+    byte[] encode(int[] samples, int frames, long frameNumber) {
+        int[][] signals = new int[channels][frames];
+        for (int c = 0; c < channels; c++) {
+            int[] signal = signals[c];
+            for (int f = 0, i = c; f < frames; f++, i += channels) {
+                signal[f] = samples[i];
+            }
+        }
+
+        Subframe[] chosen = new Subframe[channels];
+        int assignment = channels - 1;
+        if (channels == 2) {
+            int[] side = new int[frames];
+            int[] mid = new int[frames];
+            for (int f = 0; f < frames; f++) {
+                side[f] = signals[0][f] - signals[1][f];
+                mid[f] = (signals[0][f] + signals[1][f]) >> 1;
+            }
+            Subframe left = plan(signals[0], bitsPerSample);
+            Subframe right = plan(signals[1], bitsPerSample);
+            Subframe sideFrame = plan(side, bitsPerSample + 1);
+            Subframe midFrame = plan(mid, bitsPerSample);
+            long independent = left.bits + right.bits;
+            long leftSide = left.bits + sideFrame.bits;
+            long rightSide = sideFrame.bits + right.bits;
+            long midSide = midFrame.bits + sideFrame.bits;
+            long best = Math.min(Math.min(independent, leftSide), Math.min(rightSide, midSide));
+            if (best == independent) {
+                chosen[0] = left;
+                chosen[1] = right;
+            } else if (best == leftSide) {
+                assignment = CHANNELS_LEFT_SIDE;
+                chosen[0] = left;
+                chosen[1] = sideFrame;
+            } else if (best == rightSide) {
+                assignment = CHANNELS_RIGHT_SIDE;
+                chosen[0] = sideFrame;
+                chosen[1] = right;
+            } else {
+                assignment = CHANNELS_MID_SIDE;
+                chosen[0] = midFrame;
+                chosen[1] = sideFrame;
+            }
+        } else {
+            for (int c = 0; c < channels; c++) {
+                chosen[c] = plan(signals[c], bitsPerSample);
+            }
+        }
+
+        long estimate = 16 * 8;
+        for (Subframe subframe : chosen) {
+            estimate += subframe.bits;
+        }
+        BitWriter out = new BitWriter((int) (estimate / 8) + 64);
+        writeHeader(out, frames, frameNumber, assignment);
+        for (Subframe subframe : chosen) {
+            subframe.write(out);
+        }
+        out.alignToByte();
+        out.writeBits(crc16(out.buffer(), 0, out.length()), 16);
+        return out.toByteArray();
+    }
+
+    private void writeHeader(BitWriter out, int frames, long frameNumber, int assignment) {
+        int blockSizeCode = blockSizeCode(frames);
+        out.writeBits(0xFFF8, 16); // sync code, fixed block size
+        out.writeBits(blockSizeCode, 4);
+        out.writeBits(sampleRateCode, 4);
+        out.writeBits(assignment, 4);
+        out.writeBits(sampleSizeCode, 3);
+        out.writeBits(0, 1);
+        writeUtf8(out, frameNumber);
+        if (blockSizeCode == 6) {
+            out.writeBits(frames - 1, 8);
+        } else if (blockSizeCode == 7) {
+            out.writeBits(frames - 1, 16);
+        }
+        out.writeBits(crc8(out.buffer(), 0, out.length()), 8);
+    }
+
+    // Picks the cheapest encoding of signal; bits is the subframe's exact size except for Rice partitions,
+    // which are estimated
+    static Subframe plan(int[] signal, int bits) {
+        int n = signal.length;
+        int or = 0;
+        boolean constant = true;
+        for (int i = 0; i < n; i++) {
+            or |= signal[i];
+            constant &= signal[i] == signal[0];
+        }
+        if (constant) {
+            return Subframe.constant(signal[0], bits);
+        }
+
+        // Low bits that are zero in every sample are stripped and only signalled once
+        int wasted = Integer.numberOfTrailingZeros(or);
+        int[] x = signal;
+        if (wasted > 0) {
+            x = new int[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = signal[i] >> wasted;
+            }
+            bits -= wasted;
+        }
+
+        Subframe best = Subframe.verbatim(x, bits, wasted);
+        int[] residual = new int[n];
+        for (int order = 0; order <= Math.min(MAX_FIXED_ORDER, n - 1); order++) {
+            fixedResidual(x, order, residual);
+            Subframe candidate = Subframe.predicted(x, bits, wasted, order, null, 0, residual);
+            if (candidate.bits < best.bits) {
+                best = candidate;
+                residual = new int[n];
+            }
+        }
+
+        if (n > 2 * MAX_LPC_ORDER) {
+            Subframe lpc = planLpc(x, bits, wasted, residual);
+            if (lpc != null && lpc.bits < best.bits) {
+                best = lpc;
+            }
+        }
+        return best;
+    }
+
+    private static Subframe planLpc(int[] x, int bits, int wasted, int[] residual) {
+        int n = x.length;
+        double[] windowed = new double[n];
+        double half = (n + 1) / 2.0;
+        for (int i = 0; i < n; i++) {
+            double t = (i - (n - 1) / 2.0) / half;
+            windowed[i] = x[i] * (1.0 - t * t); // Welch window
+        }
+        double[] autocorrelation = new double[MAX_LPC_ORDER + 1];
+        for (int lag = 0; lag <= MAX_LPC_ORDER; lag++) {
+            double sum = 0.0;
+            for (int i = lag; i < n; i++) {
+                sum += windowed[i] * windowed[i - lag];
+            }
+            autocorrelation[lag] = sum;
+        }
+        if (autocorrelation[0] == 0.0) {
+            return null;
+        }
+
+        // Levinson-Durbin; the order with the smallest expected size wins
+        double[][] coefficients = new double[MAX_LPC_ORDER + 1][];
+        double[] a = new double[MAX_LPC_ORDER];
+        double error = autocorrelation[0];
+        int bestOrder = 0;
+        double bestBits = Double.MAX_VALUE;
+        for (int m = 0; m < MAX_LPC_ORDER; m++) {
+            double acc = autocorrelation[m + 1];
+            for (int j = 0; j < m; j++) {
+                acc -= a[j] * autocorrelation[m - j];
+            }
+            double k = acc / error;
+            double[] previous = Arrays.copyOf(a, m);
+            a[m] = k;
+            for (int j = 0; j < m; j++) {
+                a[j] = previous[j] - k * previous[m - 1 - j];
+            }
+            error *= 1.0 - k * k;
+            int order = m + 1;
+            coefficients[order] = Arrays.copyOf(a, order);
+            double perSample = error > 0.0 ? Math.max(0.0, 0.5 * Math.log(error / n) / Math.log(2.0)) : 0.0;
+            double expected = perSample * (n - order) + order * (bits + LPC_PRECISION);
+            if (expected < bestBits) {
+                bestBits = expected;
+                bestOrder = order;
+            }
+            if (error <= 0.0) {
+                break;
+            }
+        }
+        if (bestOrder == 0) {
+            return null;
+        }
+
+        // Quantize with error feedback so rounding errors do not pile up in one coefficient
+        double[] lpc = coefficients[bestOrder];
+        double max = 0.0;
+        for (double c : lpc) {
+            max = Math.max(max, Math.abs(c));
+        }
+        if (max == 0.0 || Double.isNaN(max)) {
+            return null;
+        }
+        int shift = Math.min(15, LPC_PRECISION - 1 - (Math.getExponent(max) + 1));
+        if (shift < 0) {
+            return null;
+        }
+        int limit = (1 << (LPC_PRECISION - 1)) - 1;
+        int[] quantized = new int[bestOrder];
+        double carry = 0.0;
+        for (int j = 0; j < bestOrder; j++) {
+            carry += lpc[j] * (1 << shift);
+            int q = (int) Math.max(-limit - 1, Math.min(limit, Math.round(carry)));
+            quantized[j] = q;
+            carry -= q;
+        }
+
+        for (int i = 0; i < bestOrder; i++) {
+            residual[i] = x[i];
+        }
+        for (int i = bestOrder; i < n; i++) {
+            long sum = 0;
+            for (int j = 0; j < bestOrder; j++) {
+                sum += (long) quantized[j] * x[i - j - 1];
+            }
+            long r = x[i] - (sum >> shift);
+            if (r > Integer.MAX_VALUE / 2 || r < Integer.MIN_VALUE / 2) {
+                return null; // would overflow the Rice coder
+            }
+            residual[i] = (int) r;
+        }
+        return Subframe.predicted(x, bits, wasted, bestOrder, quantized, shift, residual);
+    }
+
+    // Residual of the order'th fixed polynomial predictor; the first order entries are the warm-up samples
+    static void fixedResidual(int[] x, int order, int[] residual) {
+        int n = x.length;
+        System.arraycopy(x, 0, residual, 0, Math.min(order, n));
+        switch (order) {
+            case 0 -> System.arraycopy(x, 0, residual, 0, n);
+            case 1 -> {
+                for (int i = 1; i < n; i++) {
+                    residual[i] = x[i] - x[i - 1];
+                }
+            }
+            case 2 -> {
+                for (int i = 2; i < n; i++) {
+                    residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                }
+            }
+            case 3 -> {
+                for (int i = 3; i < n; i++) {
+                    residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                }
+            }
+            case 4 -> {
+                for (int i = 4; i < n; i++) {
+                    residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                }
+            }
+            default -> throw new IllegalArgumentException("Fixed predictor order " + order);
+        }
+    }
+
+    // One channel's subframe as it will be written
+    static final class Subframe {
+        final int type; // 0 constant, 1 verbatim, 2 fixed, 3 LPC
+        final int bitsPerSample; // after removing wasted bits
+        final int wasted;
+        final int[] samples; // the value for a constant, the samples for verbatim and predicted subframes
+        final int order;
+        final int[] coefficients;
+        final int shift;
+        final int[] residual;
+        int partitionOrder;
+        int[] parameters;
+        long bits;
+
+        private Subframe(int type, int bitsPerSample, int wasted, int[] samples, int order, int[] coefficients,
+                         int shift, int[] residual) {
+            this.type = type;
+            this.bitsPerSample = bitsPerSample;
+            this.wasted = wasted;
+            this.samples = samples;
+            this.order = order;
+            this.coefficients = coefficients;
+            this.shift = shift;
+            this.residual = residual;
+        }
+
+        static Subframe constant(int value, int bits) {
+            Subframe subframe = new Subframe(0, bits, 0, new int[]{value}, 0, null, 0, null);
+            subframe.bits = 8 + bits;
+            return subframe;
+        }
+
+        static Subframe verbatim(int[] x, int bits, int wasted) {
+            Subframe subframe = new Subframe(1, bits, wasted, x, 0, null, 0, null);
+            subframe.bits = 8 + wasted + (long) x.length * bits;
+            return subframe;
+        }
+
+        static Subframe predicted(int[] x, int bits, int wasted, int order, int[] coefficients, int shift, int[] residual) {
+            Subframe subframe = new Subframe(coefficients == null ? 2 : 3, bits, wasted, x, order, coefficients, shift, residual);
+            subframe.bits = 8 + wasted + (long) order * bits
+                    + (coefficients == null ? 0 : 4 + 5 + (long) order * LPC_PRECISION)
+                    + subframe.choosePartitions();
+            return subframe;
+        }
+
+        // Picks the partition order and Rice parameters with the smallest estimated size and returns that size
+        private long choosePartitions() {
+            int n = residual.length;
+            int maxOrder = 0;
+            while (maxOrder < MAX_PARTITION_ORDER && (n & (1 << (maxOrder + 1)) - 1) == 0
+                    && (n >> (maxOrder + 1)) > order) {
+                maxOrder++;
+            }
+            // Sums of the zigzagged residuals per finest partition, merged pairwise for coarser orders
+            long[] sums = new long[1 << maxOrder];
+            int size = n >> maxOrder;
+            for (int p = 0, i = 0; p < sums.length; p++) {
+                long sum = 0;
+                for (int end = (p + 1) * size; i < end; i++) {
+                    if (i >= order) {
+                        int r = residual[i];
+                        sum += ((r << 1) ^ (r >> 31)) & 0xFFFFFFFFL;
+                    }
+                }
+                sums[p] = sum;
+            }
+            long bestBits = Long.MAX_VALUE;
+            for (int po = maxOrder; po >= 0; po--) {
+                int partitions = 1 << po;
+                int partitionSize = n >> po;
+                int[] parameters = new int[partitions];
+                long total = 2 + 4;
+                for (int p = 0; p < partitions; p++) {
+                    int count = p == 0 ? partitionSize - order : partitionSize;
+                    int k = riceParameter(sums[p], count);
+                    parameters[p] = k;
+                    total += riceBits(sums[p], count, k);
+                }
+                int width = 4;
+                for (int k : parameters) {
+                    if (k > 14) {
+                        width = 5;
+                    }
+                }
+                total += (long) partitions * width;
+                if (total < bestBits) {
+                    bestBits = total;
+                    partitionOrder = po;
+                    this.parameters = parameters;
+                }
+                if (po > 0) {
+                    for (int p = 0; p < partitions / 2; p++) {
+                        sums[p] = sums[2 * p] + sums[2 * p + 1];
+                    }
+                }
+            }
+            return bestBits;
+        }
+
+        private static int riceParameter(long sum, int count) {
+            if (count == 0 || sum < count) {
+                return 0;
+            }
+            int k = 63 - Long.numberOfLeadingZeros(sum / count);
+            int best = Math.min(k, MAX_RICE_PARAMETER);
+            if (best + 1 <= MAX_RICE_PARAMETER && riceBits(sum, count, best + 1) < riceBits(sum, count, best)) {
+                best++;
+            }
+            return best;
+        }
+
+        private static long riceBits(long sum, int count, int k) {
+            return (long) count * (k + 1) + (sum >> k);
+        }
+
+        void write(BitWriter out) {
+            out.writeBits(0, 1);
+            switch (type) {
+                case 0 -> out.writeBits(0, 6);
+                case 1 -> out.writeBits(1, 6);
+                case 2 -> out.writeBits(8 | order, 6);
+                default -> out.writeBits(32 | (order - 1), 6);
+            }
+            if (wasted > 0) {
+                out.writeBits(1, 1);
+                out.writeUnary(wasted - 1);
+            } else {
+                out.writeBits(0, 1);
+            }
+            if (type == 0) {
+                out.writeBits(samples[0], bitsPerSample);
+                return;
+            }
+            if (type == 1) {
+                for (int sample : samples) {
+                    out.writeBits(sample, bitsPerSample);
+                }
+                return;
+            }
+            for (int i = 0; i < order; i++) {
+                out.writeBits(samples[i], bitsPerSample);
+            }
+            if (type == 3) {
+                out.writeBits(LPC_PRECISION - 1, 4);
+                out.writeBits(shift, 5);
+                for (int c : coefficients) {
+                    out.writeBits(c, LPC_PRECISION);
+                }
+            }
+
+            boolean wide = false;
+            for (int k : parameters) {
+                wide |= k > 14;
+            }
+            out.writeBits(wide ? 1 : 0, 2);
+            out.writeBits(partitionOrder, 4);
+            int partitionSize = residual.length >> partitionOrder;
+            for (int p = 0, i = order; p < parameters.length; p++) {
+                int k = parameters[p];
+                out.writeBits(k, wide ? 5 : 4);
+                for (int end = (p + 1) * partitionSize; i < end; i++) {
+                    int r = residual[i];
+                    out.writeRice((r << 1) ^ (r >> 31), k);
+                }
+            }
+        }
+    }
+
+    // MSB-first bit packer over a growing byte array
+    static final class BitWriter {
+        private byte[] bytes;
+        private int length;
+        private long accumulator;
+        private int pending; // bits in accumulator
+
+        BitWriter(int capacity) {
+            this.bytes = new byte[Math.max(16, capacity)];
+        }
+
+        // Low count bits of value, count up to 32
+        void writeBits(int value, int count) {
+            if (count == 0) {
+                return;
+            }
+            accumulator = (accumulator << count) | (value & (0xFFFFFFFFL >>> (32 - count)));
+            pending += count;
+            while (pending >= 8) {
+                pending -= 8;
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, length * 2);
+                }
+                bytes[length++] = (byte) (accumulator >>> pending);
+            }
+        }
+
+        void writeLong(long value, int count) {
+            if (count > 32) {
+                writeBits((int) (value >>> 32), count - 32);
+                count = 32;
+            }
+            writeBits((int) value, count);
+        }
+
+        // q zeros and a one
+        void writeUnary(int q) {
+            while (q >= 31) {
+                writeBits(0, 31);
+                q -= 31;
+            }
+            writeBits(1, q + 1);
+        }
+
+        void writeRice(int value, int k) {
+            int q = value >>> k;
+            if (q + 1 + k <= 32) {
+                writeBits((1 << k) | (value & ((1 << k) - 1)), q + 1 + k);
+            } else {
+                writeUnary(q);
+                writeBits(value, k);
+            }
+        }
+
+        void alignToByte() {
+            if (pending > 0) {
+                writeBits(0, 8 - pending);
+            }
+        }
+
+        // Whole bytes written so far
+        int length() {
+            return length;
+        }
+
+        byte[] buffer() {
+            return bytes;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    static void writeUtf8(BitWriter out, long value) {
+        if (value < 0x80) {
+            out.writeBits((int) value, 8);
+            return;
+        }
+        int continuation = 1;
+        while (value >= 1L << (5 * continuation + 6) && continuation < 6) {
+            continuation++;
+        }
+        int lead = (0xFF00 >> (continuation + 1)) & 0xFF;
+        out.writeBits(lead | (int) (value >>> (6 * continuation)), 8);
+        for (int i = continuation - 1; i >= 0; i--) {
+            out.writeBits(0x80 | (int) ((value >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    static int blockSizeCode(int frames) {
+        return switch (frames) {
+            case 192 -> 1;
+            case 576, 1152, 2304, 4608 -> 2 + Integer.numberOfTrailingZeros(frames / 576);
+            case 256, 512, 1024, 2048, 4096, 8192, 16384, 32768 -> 8 + Integer.numberOfTrailingZeros(frames / 256);
+            default -> frames <= 256 ? 6 : 7; // size follows the header as 8 or 16 bits
+        };
+    }
+
+    // Header code for the rate, or 0 to take it from STREAMINFO
+    static int sampleRateCode(int sampleRate) {
+        return switch (sampleRate) {
+            case 88200 -> 1;
+            case 176400 -> 2;
+            case 192000 -> 3;
+            case 8000 -> 4;
+            case 16000 -> 5;
+            case 22050 -> 6;
+            case 24000 -> 7;
+            case 32000 -> 8;
+            case 44100 -> 9;
+            case 48000 -> 10;
+            case 96000 -> 11;
+            default -> 0;
+        };
+    }
+
+    static int sampleSizeCode(int bits) {
+        return switch (bits) {
+            case 8 -> 1;
+            case 12 -> 2;
+            case 16 -> 4;
+            case 20 -> 5;
+            case 24 -> 6;
+            default -> 0;
+        };
+    }
+
+    private static final int[] CRC8 = new int[256];
+    private static final int[] CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int b = 0; b < 8; b++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8[i] = crc8 & 0xFF;
+            CRC16[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC8[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = crc16(crc, data[i]);
+        }
+        return crc;
+    }
+
+    static int crc16(int crc, byte value) {
+        return ((crc << 8) ^ CRC16[((crc >>> 8) ^ value) & 0xFF]) & 0xFFFF;
+    }
+}
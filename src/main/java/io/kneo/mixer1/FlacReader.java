@@ -0,0 +1,479 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// FLAC reader, pure Java, so rendered FLAC archives can be mixed again without a conversion step.
+// Decodes any 4 to 24-bit stream: fixed and LPC subframes up to order 32, both Rice codings with escaped
+// partitions, wasted bits, all stereo decorrelations and fixed or variable block sizes. Each frame's CRC-16 is
+// checked. Samples are delivered as floats scaled like PcmCodec scales integer PCM of the same width.
+public class FlacReader implements SampleReader {
+
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final InputStream input;
+    private final AudioFormat format;
+    private final int channels;
+    private final int bitsPerSample;
+    private final long totalFrames; // 0 if STREAMINFO does not say
+    private final float scale;
+    private final int[][] decoded;
+    private int blockFrames; // frames in the decoded block
+    private int blockPosition; // next frame of it to deliver
+    private long position;
+    private boolean finished;
+
+    // Bit reader state
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private int bufferPosition;
+    private int bufferLimit;
+    private long accumulator;
+    private int available; // bits in accumulator
+    private int crc;
+
+    private FlacReader(InputStream input, int sampleRate, int channels, int bitsPerSample, int maxBlockSize,
+                       long totalFrames) {
+        this.input = input;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.totalFrames = totalFrames;
+        int containerBits = (bitsPerSample + 7) / 8 * 8;
+        this.format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, containerBits, channels,
+                channels * containerBits / 8, sampleRate, false);
+        this.scale = 1.0f / (1L << (bitsPerSample - 1));
+        this.decoded = new int[channels][Math.max(maxBlockSize, 1)];
+    }
+
+    public static boolean isFlac(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            ByteBuffer id = ByteBuffer.allocate(10);
+            channel.read(id, 0);
+            byte[] bytes = id.array();
+            if (id.position() >= 4 && bytes[0] == 'f' && bytes[1] == 'L' && bytes[2] == 'a' && bytes[3] == 'C') {
+                return true;
+            }
+            // An ID3v2 tag in front of the stream
+            if (id.position() < 10 || bytes[0] != 'I' || bytes[1] != 'D' || bytes[2] != '3') {
+                return false;
+            }
+            ByteBuffer marker = ByteBuffer.allocate(4);
+            channel.read(marker, 10 + id3Size(bytes));
+            return marker.position() == 4 && new String(marker.array(), StandardCharsets.US_ASCII).equals("fLaC");
+        }
+    }
+
+    public static FlacReader open(String filePath) throws IOException, UnsupportedAudioFileException {
+        InputStream input = Files.newInputStream(Path.of(filePath));
+        try {
+            return parse(input, filePath);
+        } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    private static FlacReader parse(InputStream input, String filePath) throws IOException, UnsupportedAudioFileException {
+        byte[] marker = input.readNBytes(4);
+        if (marker.length == 4 && marker[0] == 'I' && marker[1] == 'D' && marker[2] == '3') {
+            byte[] rest = input.readNBytes(6);
+            byte[] id3 = new byte[10];
+            System.arraycopy(marker, 0, id3, 0, 4);
+            System.arraycopy(rest, 0, id3, 4, rest.length);
+            input.skipNBytes(id3Size(id3));
+            marker = input.readNBytes(4);
+        }
+        if (marker.length < 4 || marker[0] != 'f' || marker[1] != 'L' || marker[2] != 'a' || marker[3] != 'C') {
+            throw new UnsupportedAudioFileException("Not a FLAC file: " + filePath);
+        }
+
+        // Metadata blocks; only STREAMINFO matters here
+        byte[] streamInfo = null;
+        boolean last = false;
+        while (!last) {
+            byte[] header = input.readNBytes(4);
+            if (header.length < 4) {
+                throw new UnsupportedAudioFileException("Truncated FLAC metadata: " + filePath);
+            }
+            last = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7F;
+            int length = ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            if (type == 0) {
+                streamInfo = input.readNBytes(length);
+                if (streamInfo.length < 34) {
+                    throw new UnsupportedAudioFileException("Truncated STREAMINFO: " + filePath);
+                }
+            } else {
+                input.skipNBytes(length);
+            }
+        }
+        if (streamInfo == null) {
+            throw new UnsupportedAudioFileException("No STREAMINFO block: " + filePath);
+        }
+
+        int maxBlockSize = ((streamInfo[2] & 0xFF) << 8) | (streamInfo[3] & 0xFF);
+        int sampleRate = ((streamInfo[10] & 0xFF) << 12) | ((streamInfo[11] & 0xFF) << 4) | ((streamInfo[12] & 0xF0) >> 4);
+        int channels = ((streamInfo[12] & 0x0E) >> 1) + 1;
+        int bitsPerSample = (((streamInfo[12] & 0x01) << 4) | ((streamInfo[13] & 0xF0) >> 4)) + 1;
+        long totalFrames = ((long) (streamInfo[13] & 0x0F) << 32) | ((streamInfo[14] & 0xFFL) << 24)
+                | ((streamInfo[15] & 0xFF) << 16) | ((streamInfo[16] & 0xFF) << 8) | (streamInfo[17] & 0xFF);
+        if (sampleRate == 0 || bitsPerSample < 4 || bitsPerSample > 24) {
+            throw new UnsupportedAudioFileException("Unsupported FLAC stream: " + sampleRate + " Hz, "
+                    + bitsPerSample + " bits: " + filePath);
+        }
+        return new FlacReader(input, sampleRate, channels, bitsPerSample, maxBlockSize == 0 ? 65535 : maxBlockSize,
+                totalFrames);
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long length() {
+        return totalFrames == 0 ? -1 : totalFrames;
+    }
+
+    @Override
+    public int read(float[] dst, int offset, int frames) throws IOException {
+        int produced = 0;
+        while (produced < frames) {
+            if (blockPosition == blockFrames && !nextFrame()) {
+                break;
+            }
+            int count = Math.min(frames - produced, blockFrames - blockPosition);
+            for (int c = 0; c < channels; c++) {
+                int[] samples = decoded[c];
+                for (int f = 0, i = offset + produced * channels + c; f < count; f++, i += channels) {
+                    dst[i] = samples[blockPosition + f] * scale;
+                }
+            }
+            blockPosition += count;
+            produced += count;
+        }
+        position += produced;
+        return produced == 0 && frames > 0 ? -1 : produced;
+    }
+
+    // Decodes and drops frames; FLAC has no cheaper way forward without a seek table
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            if (blockPosition == blockFrames && !nextFrame()) {
+                break;
+            }
+            int n = (int) Math.min(count - skipped, blockFrames - blockPosition);
+            blockPosition += n;
+            skipped += n;
+        }
+        position += skipped;
+        return skipped;
+    }
+
+    // Current position in frames
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    // Decodes the next frame into decoded; false at the end of the stream
+    private boolean nextFrame() throws IOException {
+        if (finished) {
+            return false;
+        }
+        crc = 0; // the previous frame ended byte aligned, with nothing fetched beyond it
+        if (!fill(16)) {
+            finished = true;
+            return false;
+        }
+        int sync = readBits(15);
+        if (sync != 0x7FFC) {
+            throw new IOException("Lost FLAC frame sync at frame offset " + position);
+        }
+        boolean variable = readBits(1) == 1;
+        int blockSizeCode = readBits(4);
+        int sampleRateCode = readBits(4);
+        int assignment = readBits(4);
+        int sampleSizeCode = readBits(3);
+        readBits(1);
+        readUtf8();
+        int frames = switch (blockSizeCode) {
+            case 1 -> 192;
+            case 2, 3, 4, 5 -> 576 << (blockSizeCode - 2);
+            case 6 -> readBits(8) + 1;
+            case 7 -> readBits(16) + 1;
+            case 8, 9, 10, 11, 12, 13, 14, 15 -> 256 << (blockSizeCode - 8);
+            default -> throw new IOException("Reserved FLAC block size code");
+        };
+        switch (sampleRateCode) {
+            case 12 -> readBits(8);
+            case 13, 14 -> readBits(16);
+            case 15 -> throw new IOException("Invalid FLAC sample rate code");
+            default -> {
+            }
+        }
+        int bits = switch (sampleSizeCode) {
+            case 0 -> bitsPerSample;
+            case 1 -> 8;
+            case 2 -> 12;
+            case 4 -> 16;
+            case 5 -> 20;
+            case 6 -> 24;
+            case 7 -> 32;
+            default -> throw new IOException("Reserved FLAC sample size code");
+        };
+        readBits(8); // header CRC-8, covered by the frame CRC-16 as well
+        if (frames > decoded[0].length) {
+            throw new IOException("FLAC frame of " + frames + " frames exceeds STREAMINFO maximum " + decoded[0].length);
+        }
+        int frameChannels = assignment < 8 ? assignment + 1 : 2;
+        if (frameChannels != channels) {
+            throw new IOException("FLAC frame has " + frameChannels + " channels, stream has " + channels);
+        }
+
+        for (int c = 0; c < channels; c++) {
+            // The side channel carries one extra bit
+            boolean side = (assignment == 8 && c == 1) || (assignment == 9 && c == 0) || (assignment == 10 && c == 1);
+            readSubframe(decoded[c], frames, bits + (side ? 1 : 0));
+        }
+        int[] a = decoded[0];
+        int[] b = channels > 1 ? decoded[1] : null;
+        switch (assignment) {
+            case 8 -> { // left, side
+                for (int i = 0; i < frames; i++) {
+                    b[i] = a[i] - b[i];
+                }
+            }
+            case 9 -> { // side, right
+                for (int i = 0; i < frames; i++) {
+                    a[i] += b[i];
+                }
+            }
+            case 10 -> { // mid, side
+                for (int i = 0; i < frames; i++) {
+                    long mid = ((long) a[i] << 1) | (b[i] & 1);
+                    a[i] = (int) ((mid + b[i]) >> 1);
+                    b[i] = (int) ((mid - b[i]) >> 1);
+                }
+            }
+            default -> {
+            }
+        }
+
+        available -= available % 8; // byte alignment padding
+        int expected = crc;
+        int stored = readBits(16);
+        if (stored != expected) {
+            throw new IOException("FLAC frame CRC mismatch at frame offset " + position);
+        }
+        if (bits != bitsPerSample) {
+            int shift = bitsPerSample - bits;
+            for (int c = 0; c < channels; c++) {
+                for (int i = 0; i < frames; i++) {
+                    decoded[c][i] = shift > 0 ? decoded[c][i] << shift : decoded[c][i] >> -shift;
+                }
+            }
+        }
+        blockFrames = frames;
+        blockPosition = 0;
+        return true;
+    }
+
+    private void readSubframe(int[] out, int frames, int bits) throws IOException {
+        readBits(1);
+        int type = readBits(6);
+        int wasted = 0;
+        if (readBits(1) == 1) {
+            wasted = readUnary() + 1;
+            bits -= wasted;
+        }
+        if (type == 0) {
+            int value = readSigned(bits);
+            for (int i = 0; i < frames; i++) {
+                out[i] = value;
+            }
+        } else if (type == 1) {
+            for (int i = 0; i < frames; i++) {
+                out[i] = readSigned(bits);
+            }
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                out[i] = readSigned(bits);
+            }
+            readResidual(out, frames, order);
+            restoreFixed(out, frames, order);
+        } else if (type >= 32) {
+            int order = type - 31;
+            for (int i = 0; i < order; i++) {
+                out[i] = readSigned(bits);
+            }
+            int precision = readBits(4) + 1;
+            if (precision == 16) {
+                throw new IOException("Invalid FLAC LPC precision");
+            }
+            int shift = readSigned(5);
+            if (shift < 0) {
+                throw new IOException("Negative FLAC LPC shift");
+            }
+            int[] coefficients = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefficients[i] = readSigned(precision);
+            }
+            readResidual(out, frames, order);
+            for (int i = order; i < frames; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefficients[j] * out[i - j - 1];
+                }
+                out[i] += (int) (sum >> shift);
+            }
+        } else {
+            throw new IOException("Reserved FLAC subframe type " + type);
+        }
+        if (wasted > 0) {
+            for (int i = 0; i < frames; i++) {
+                out[i] <<= wasted;
+            }
+        }
+    }
+
+    // Residuals go into out[order, frames)
+    private void readResidual(int[] out, int frames, int order) throws IOException {
+        int method = readBits(2);
+        if (method > 1) {
+            throw new IOException("Reserved FLAC residual coding method");
+        }
+        int parameterBits = method == 0 ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = readBits(4);
+        int partitions = 1 << partitionOrder;
+        int partitionSize = frames >> partitionOrder;
+        for (int p = 0, i = order; p < partitions; p++) {
+            int end = (p + 1) * partitionSize;
+            int k = readBits(parameterBits);
+            if (k == escape) {
+                int width = readBits(5);
+                for (; i < end; i++) {
+                    out[i] = width == 0 ? 0 : readSigned(width);
+                }
+            } else {
+                for (; i < end; i++) {
+                    int q = readUnary();
+                    int value = (q << k) | (k == 0 ? 0 : readBits(k));
+                    out[i] = (value >>> 1) ^ -(value & 1);
+                }
+            }
+        }
+    }
+
+    private static void restoreFixed(int[] x, int frames, int order) {
+        switch (order) {
+            case 1 -> {
+                for (int i = 1; i < frames; i++) {
+                    x[i] += x[i - 1];
+                }
+            }
+            case 2 -> {
+                for (int i = 2; i < frames; i++) {
+                    x[i] += 2 * x[i - 1] - x[i - 2];
+                }
+            }
+            case 3 -> {
+                for (int i = 3; i < frames; i++) {
+                    x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                }
+            }
+            case 4 -> {
+                for (int i = 4; i < frames; i++) {
+                    x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    // Frame or sample number in the header; only its length matters here
+    private void readUtf8() throws IOException {
+        int lead = readBits(8);
+        int continuation = Integer.numberOfLeadingZeros(~(lead << 24));
+        if (continuation == 1 || continuation > 7) {
+            throw new IOException("Invalid FLAC frame number");
+        }
+        for (int i = 1; i < continuation; i++) {
+            readBits(8);
+        }
+    }
+
+    // Fetches whole bytes until at least bits bits are available, and no more, so the CRC never runs ahead of
+    // the frame; false if the stream ends first
+    private boolean fill(int bits) throws IOException {
+        while (available < bits) {
+            if (bufferPosition == bufferLimit) {
+                bufferLimit = input.read(buffer, 0, buffer.length);
+                bufferPosition = 0;
+                if (bufferLimit <= 0) {
+                    bufferLimit = 0;
+                    return false;
+                }
+            }
+            int value = buffer[bufferPosition++] & 0xFF;
+            accumulator = (accumulator << 8) | value;
+            available += 8;
+            crc = FlacFrameEncoder.crc16(crc, (byte) value);
+        }
+        return true;
+    }
+
+    private int readBits(int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        if (available < count && !fill(count)) {
+            throw new IOException("Unexpected end of FLAC stream");
+        }
+        available -= count;
+        return (int) ((accumulator >>> available) & (0xFFFFFFFFL >>> (32 - count)));
+    }
+
+    private int readSigned(int count) throws IOException {
+        int value = readBits(count);
+        return count == 32 ? value : (value << (32 - count)) >> (32 - count);
+    }
+
+    private int readUnary() throws IOException {
+        int zeros = 0;
+        while (true) {
+            if (available == 0 && !fill(1)) {
+                throw new IOException("Unexpected end of FLAC stream");
+            }
+            long bits = accumulator & ((1L << available) - 1);
+            if (bits != 0) {
+                int leading = 63 - Long.numberOfLeadingZeros(bits); // index of the first set bit
+                zeros += available - 1 - leading;
+                available = leading;
+                return zeros;
+            }
+            zeros += available;
+            available = 0;
+        }
+    }
+
+    private static int id3Size(byte[] header) {
+        return ((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14) | ((header[8] & 0x7F) << 7) | (header[9] & 0x7F);
+    }
+}
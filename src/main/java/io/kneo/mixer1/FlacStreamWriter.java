@@ -0,0 +1,197 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Streaming FLAC writer, pure Java, for 8 to 24-bit integer output formats.
+// Samples are quantized exactly like the WAV writer would store them and collected into fixed-size blocks. Each
+// full block becomes a FlacFrameEncoder task on a fork-join pool; finished frames are written in submission order,
+// and at most a few frames per pool thread are in flight, so memory stays bounded however long the output is. The
+// sample block of a written frame goes back on a free list and is filled again, so blocks are only allocated until
+// the pipeline is full.
+// STREAMINFO (sample count, frame sizes, MD5 of the samples) is written with placeholders and patched on close.
+public class FlacStreamWriter extends AudioFileWriter {
+
+    public static final int BLOCK_SIZE = 4096; // frames per FLAC frame
+    private static final int STREAMINFO_SIZE = 34;
+
+    private final FileChannel channel;
+    private final PcmCodec codec;
+    private final FlacFrameEncoder encoder;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+    private final ArrayDeque<int[]> pendingBlocks = new ArrayDeque<>(); // the sample blocks of pending, in order
+    private final ArrayDeque<int[]> freeBlocks = new ArrayDeque<>();
+    private final int channels;
+    private final int bitsPerSample;
+    private final MessageDigest md5;
+    private final byte[] md5Buffer;
+    private int[] block;
+    private int filled; // samples in block
+    private long frameNumber;
+    private long samplesSubmitted;
+    private int minFrameSize = Integer.MAX_VALUE;
+    private int maxFrameSize;
+
+    public FlacStreamWriter(String outputPath, AudioFormat format) throws IOException {
+        this(outputPath, format, ForkJoinPool.commonPool());
+    }
+
+    public FlacStreamWriter(String outputPath, AudioFormat format, ForkJoinPool pool) throws IOException {
+        super(format);
+        this.channels = format.getChannels();
+        this.bitsPerSample = format.getSampleSizeInBits();
+        if (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) || bitsPerSample > 24
+                || channels < 1 || channels > 8) {
+            throw new IllegalArgumentException("FLAC holds 1-8 channels of 8 to 24-bit integer PCM: " + format);
+        }
+        this.codec = new PcmCodec(format);
+        this.encoder = new FlacFrameEncoder((int) format.getSampleRate(), channels, bitsPerSample);
+        this.pool = pool;
+        this.maxPending = 2 * pool.getParallelism() + 2;
+        this.block = new int[BLOCK_SIZE * channels];
+        this.md5Buffer = new byte[BLOCK_SIZE * channels * (bitsPerSample / 8)];
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.channel = FileChannel.open(Path.of(outputPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeFully(ByteBuffer.wrap(header()));
+    }
+
+    @Override
+    protected void encode(float[] samples, int offset, int length) throws IOException {
+        long start = metrics.start();
+        metrics.countClips(samples, offset, length);
+        long total = length;
+        while (length > 0) {
+            int n = Math.min(length, block.length - filled);
+            codec.quantize(samples, offset, block, filled, n);
+            filled += n;
+            offset += n;
+            length -= n;
+            if (filled == block.length) {
+                submit();
+            }
+        }
+        metrics.stop(MixMetrics.Stage.ENCODE, start, total);
+    }
+
+    @Override
+    public long samplesWritten() {
+        return samplesSubmitted + filled;
+    }
+
+    // Only samples that have not been handed to the encoder yet, i.e. the current partial block, can be dropped
+    @Override
+    public void truncate(long count) throws IOException {
+        flushLimiter();
+        if (count < samplesSubmitted || count > samplesWritten()) {
+            throw new IllegalArgumentException("Cannot truncate " + samplesWritten() + " samples to " + count
+                    + "; " + samplesSubmitted + " are already encoded");
+        }
+        filled = (int) (count - samplesSubmitted);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        try {
+            long start = metrics.start();
+            if (filled % channels != 0) {
+                throw new IllegalStateException("Output ends inside a frame: " + filled + " samples in the last block");
+            }
+            if (filled > 0) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeNextFrame();
+            }
+            metrics.stop(MixMetrics.Stage.ENCODE, start, 0);
+            channel.write(ByteBuffer.wrap(header()), 0);
+        } finally {
+            pending.forEach(task -> task.cancel(false));
+            channel.close();
+        }
+    }
+
+    // Hands the current block to the pool and writes out frames until no more than maxPending are in flight
+    private void submit() throws IOException {
+        int[] samples = block;
+        int frames = filled / channels;
+        long number = frameNumber++;
+        updateMd5(samples, filled);
+        samplesSubmitted += filled;
+        block = freeBlocks.isEmpty() ? new int[block.length] : freeBlocks.pop();
+        filled = 0;
+        pending.add(pool.submit(() -> encoder.encode(samples, frames, number)));
+        pendingBlocks.add(samples);
+        while (pending.size() > maxPending) {
+            writeNextFrame();
+        }
+    }
+
+    // Waits for the oldest frame in flight and writes it; its encoder is done with the block, which can be refilled
+    private void writeNextFrame() throws IOException {
+        byte[] frame = pending.poll().join();
+        freeBlocks.push(pendingBlocks.poll());
+        writeFrame(frame);
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        minFrameSize = Math.min(minFrameSize, frame.length);
+        maxFrameSize = Math.max(maxFrameSize, frame.length);
+        writeFully(ByteBuffer.wrap(frame));
+    }
+
+    // The STREAMINFO MD5 covers the samples as little-endian signed integers of bitsPerSample / 8 bytes
+    private void updateMd5(int[] samples, int count) {
+        int bytes = bitsPerSample / 8;
+        for (int i = 0, p = 0; i < count; i++) {
+            int value = samples[i];
+            for (int b = 0; b < bytes; b++) {
+                md5Buffer[p++] = (byte) (value >> (8 * b));
+            }
+        }
+        md5.update(md5Buffer, 0, count * bytes);
+    }
+
+    // fLaC marker and the STREAMINFO block as the last metadata block; sizes are zero until close
+    private byte[] header() {
+        FlacFrameEncoder.BitWriter out = new FlacFrameEncoder.BitWriter(4 + 4 + STREAMINFO_SIZE);
+        out.writeBits(0x664C6143, 32); // "fLaC"
+        out.writeBits(1, 1); // last metadata block
+        out.writeBits(0, 7); // STREAMINFO
+        out.writeBits(STREAMINFO_SIZE, 24);
+        out.writeBits(BLOCK_SIZE, 16);
+        out.writeBits(BLOCK_SIZE, 16);
+        out.writeBits(maxFrameSize == 0 ? 0 : minFrameSize, 24);
+        out.writeBits(maxFrameSize, 24);
+        out.writeBits((int) format.getSampleRate(), 20);
+        out.writeBits(channels - 1, 3);
+        out.writeBits(bitsPerSample - 1, 5);
+        out.writeLong(samplesSubmitted / channels, 36);
+        byte[] digest = maxFrameSize == 0 ? new byte[16] : md5.digest();
+        for (byte b : digest) {
+            out.writeBits(b, 8);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.kneo.mixer1;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Keeps the most recent reports in memory and optionally appends each one to a file as a JSON line
+public class JsonMetricsSink implements MixMetricsListener {
+
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private final Path file;
+    private final int capacity;
+    private final Deque<MixMetrics.Report> reports = new ArrayDeque<>();
+
+    public JsonMetricsSink() {
+        this(null, DEFAULT_CAPACITY);
+    }
+
+    public JsonMetricsSink(Path file) {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    public JsonMetricsSink(Path file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void jobCompleted(MixMetrics.Report report) {
+        if (reports.size() == capacity) {
+            reports.removeFirst();
+        }
+        reports.addLast(report);
+        if (file != null) {
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(report.toJson());
+                writer.write('\n');
+            } catch (IOException e) {
+                // Metrics must never fail a mix
+                System.err.println("Cannot write metrics to " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized List<MixMetrics.Report> reports() {
+        return new ArrayList<>(reports);
+    }
+
+    // The kept reports as a JSON array
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("[");
+        String separator = "";
+        for (MixMetrics.Report report : reports) {
+            json.append(separator).append(report.toJson());
+            separator = ",";
+        }
+        return json.append(']').toString();
+    }
+}
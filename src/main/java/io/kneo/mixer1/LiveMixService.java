@@ -0,0 +1,604 @@
+package io.kneo.mixer1;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Live mix served over HTTP: a queue of upcoming tracks is rendered in real time with the AudioMerger crossfade,
+// and every block is broadcast to all connected listeners as one continuous WAV stream.
+//   GET  /stream                                  endless WAV (16-bit PCM), starts a few blocks behind live
+//   POST /enqueue?path=/music/a.wav&profile=DJ_CROSSFADE   queue a track with the transition into it
+//   GET  /status                                  queue, listeners and latency figures as JSON
+// One render thread produces each block once; listener sessions only copy finished bytes. Sessions run on virtual
+// threads when the JVM has them (JDK 21+) and on a cached platform thread pool otherwise; they wait for blocks on a
+// ReentrantLock rather than a monitor, since a virtual thread in Object.wait() pins its carrier thread.
+// The server only listens on the loopback interface: it has no authentication, and /enqueue opens any file it is
+// given.
+public class LiveMixService {
+
+    public static class LiveSettings {
+        public int port;
+        public float sampleRate;
+        public int channels;
+        public int blockFrames; // render and broadcast granularity
+        public int bufferBlocks; // blocks kept for listeners; one that falls further behind skips ahead
+        public int prebufferBlocks; // how far behind live a new listener starts
+        public int leadMillis; // how far ahead of the wall clock the render loop may run
+        public AudioMerger.MixProfile defaultProfile;
+        public Resampler.Quality resampleQuality;
+
+        public LiveSettings() {
+            this(8080, 44100.0f, 2, 2048, 64, 4, 100, AudioMerger.MixProfile.DJ_CROSSFADE, Resampler.Quality.STANDARD);
+        }
+
+        public LiveSettings(int port, float sampleRate, int channels, int blockFrames, int bufferBlocks,
+                            int prebufferBlocks, int leadMillis, AudioMerger.MixProfile defaultProfile,
+                            Resampler.Quality resampleQuality) {
+            this.port = port;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.blockFrames = blockFrames;
+            this.bufferBlocks = bufferBlocks;
+            this.prebufferBlocks = prebufferBlocks;
+            this.leadMillis = leadMillis;
+            this.defaultProfile = defaultProfile;
+            this.resampleQuality = resampleQuality;
+        }
+    }
+
+    // A queued track and the transition into it
+    private static class QueuedTrack {
+        final String path;
+        final AudioMerger.MixSettings settings;
+        final long enqueuedNanos = System.nanoTime();
+
+        QueuedTrack(String path, AudioMerger.MixSettings settings) {
+            this.path = path;
+            this.settings = settings;
+        }
+    }
+
+    // A track being played: its reader at the service format and the frames left in its trimmed range
+    private static class Deck {
+        final QueuedTrack track;
+        final SampleReader reader;
+        long remaining; // Long.MAX_VALUE if the length is unknown
+
+        Deck(QueuedTrack track, SampleReader reader, long remaining) {
+            this.track = track;
+            this.reader = reader;
+            this.remaining = remaining;
+        }
+    }
+
+    private final LiveSettings settings;
+    private final AudioFormat format;
+    private final PcmCodec codec;
+    private final ConcurrentLinkedDeque<QueuedTrack> queue = new ConcurrentLinkedDeque<>();
+    private final ExecutorService sessions = sessionExecutor();
+    private final Thread renderThread;
+    private HttpServer server;
+    private volatile boolean running;
+
+    // Broadcast ring, guarded by ringLock. Its blocks are allocated once: the render thread encodes into the slot of
+    // the next sequence number and listeners copy blocks out, so a slot is marked empty while it is being refilled.
+    private final ReentrantLock ringLock = new ReentrantLock();
+    private final Condition blockPublished = ringLock.newCondition();
+    private final byte[][] blocks;
+    private final long[] blockSequences; // sequence number each slot holds; -1 while empty or being refilled
+    private long published; // sequence number of the next block
+
+    // Render state, only touched by the render thread
+    private final float[] mix;
+    private final float[] incomingBlock;
+    private Deck current;
+    private Deck incoming; // set while crossfading into the next track
+    private int fadeLength;
+    private int fadePosition;
+    private long gapRemaining;
+    private final List<QueuedTrack> startedInBlock = new ArrayList<>();
+    private volatile String nowPlaying;
+
+    // Metrics
+    private final AtomicInteger listeners = new AtomicInteger();
+    private final AtomicLong droppedBlocks = new AtomicLong();
+    private final AtomicLong lateBlocks = new AtomicLong();
+    private final AtomicLong maxRenderNanos = new AtomicLong();
+    private final LatencyStats enqueueToAudible = new LatencyStats();
+
+    // Time from enqueue until a listener at the usual distance behind live hears the track's first samples: until they
+    // are broadcast, plus the prebuffer the listener starts behind and the lead the render loop keeps on the clock
+    private static class LatencyStats {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private long lastNanos;
+
+        synchronized void add(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            lastNanos = nanos;
+        }
+
+        synchronized String toJson() {
+            return String.format(Locale.ROOT, "{\"count\":%d,\"lastMs\":%.1f,\"meanMs\":%.1f,\"maxMs\":%.1f}", count,
+                    lastNanos / 1e6, count == 0 ? 0.0 : totalNanos / 1e6 / count, maxNanos / 1e6);
+        }
+    }
+
+    public LiveMixService(LiveSettings settings) {
+        this.settings = settings;
+        this.format = AudioFormats.outputFormat(settings.sampleRate, settings.channels);
+        this.codec = new PcmCodec(format);
+        this.mix = new float[settings.blockFrames * settings.channels];
+        this.blocks = new byte[settings.bufferBlocks][mix.length * 2];
+        this.blockSequences = new long[settings.bufferBlocks];
+        Arrays.fill(blockSequences, -1);
+        this.incomingBlock = new float[mix.length];
+        this.renderThread = new Thread(this::renderLoop, "live-mix-render");
+        this.renderThread.setDaemon(true);
+    }
+
+    public static void main(String[] args) throws IOException {
+        LiveSettings settings = new LiveSettings();
+        if (args.length > 0) {
+            settings.port = Integer.parseInt(args[0]);
+        }
+        LiveMixService service = new LiveMixService(settings);
+        for (int i = 1; i < args.length; i++) {
+            service.enqueue(args[i], settings.defaultProfile.getSettings());
+        }
+        service.start();
+        System.out.println("Live mix on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + settings.port + "/stream");
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), settings.port), 0);
+        server.setExecutor(sessions);
+        server.createContext("/stream", this::handleStream);
+        server.createContext("/enqueue", this::handleEnqueue);
+        server.createContext("/status", this::handleStatus);
+        running = true;
+        renderThread.start();
+        server.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (server != null) {
+            server.stop(0);
+        }
+        renderThread.interrupt();
+        ringLock.lock();
+        try {
+            blockPublished.signalAll();
+        } finally {
+            ringLock.unlock();
+        }
+        sessions.shutdownNow();
+    }
+
+    // Checks that the file opens before queueing it, so a bad path fails the request instead of the live stream
+    public void enqueue(String path, AudioMerger.MixSettings mixSettings) throws IOException {
+        try (SampleReader reader = SampleReader.open(path)) {
+            if (reader.channels() != 1 && reader.channels() != settings.channels) {
+                throw new IOException("Cannot play " + reader.channels() + " channels on a " + settings.channels + "-channel stream: " + path);
+            }
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Unsupported audio file: " + path, e);
+        }
+        queue.add(new QueuedTrack(path, mixSettings));
+    }
+
+    // Render loop
+
+    private void renderLoop() {
+        long blockNanos = (long) (settings.blockFrames * 1e9 / settings.sampleRate);
+        long leadNanos = TimeUnit.MILLISECONDS.toNanos(settings.leadMillis);
+        long listenerDelayNanos = settings.prebufferBlocks * blockNanos + leadNanos;
+        long start = System.nanoTime();
+        long rendered = 0;
+        while (running) {
+            long due = start + rendered * blockNanos - leadNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            if (wait < -blockNanos) {
+                lateBlocks.incrementAndGet();
+            }
+
+            long renderStart = System.nanoTime();
+            renderBlock();
+            codec.encode(mix, 0, claimBlock(), 0, mix.length);
+            publish();
+            long now = System.nanoTime();
+            maxRenderNanos.accumulateAndGet(now - renderStart, Math::max);
+            for (QueuedTrack track : startedInBlock) {
+                enqueueToAudible.add(now - track.enqueuedNanos + listenerDelayNanos);
+            }
+            startedInBlock.clear();
+            rendered++;
+        }
+    }
+
+    private void renderBlock() {
+        int channels = settings.channels;
+        int frames = settings.blockFrames;
+        Arrays.fill(mix, 0.0f);
+        int position = 0;
+        while (position < frames) {
+            if (gapRemaining > 0) {
+                int n = (int) Math.min(gapRemaining, frames - position);
+                position += n;
+                gapRemaining -= n;
+                continue;
+            }
+            if (current == null) {
+                current = openNext();
+                if (current == null) {
+                    return; // nothing queued: the rest of the block stays silent
+                }
+            }
+
+            if (incoming != null) {
+                // Crossfade: the outgoing track goes into the mix block, the incoming one is mixed on top
+                int n = (int) Math.min(frames - position, current.remaining);
+                int outgoing = pull(current, mix, position * channels, n);
+                int in = pull(incoming, incomingBlock, 0, outgoing);
+                Arrays.fill(incomingBlock, in * channels, outgoing * channels, 0.0f);
+                AudioMerger.mixCrossfade(incoming.track.settings, fadeLength, fadePosition, channels,
+                        mix, position * channels, incomingBlock, 0, outgoing * channels);
+                fadePosition += outgoing;
+                position += outgoing;
+                if (outgoing < n || current.remaining == 0) {
+                    close(current);
+                    current = incoming;
+                    incoming = null;
+                }
+                continue;
+            }
+
+            // Plain playback up to where the transition into the next queued track has to start
+            QueuedTrack next = queue.peek();
+            long limit = frames - position;
+            if (next != null && crossfadeFrames(next) > 0 && current.remaining != Long.MAX_VALUE) {
+                long untilFade = current.remaining - crossfadeFrames(next);
+                if (untilFade <= 0) {
+                    startCrossfade();
+                    continue;
+                }
+                limit = Math.min(limit, untilFade);
+            }
+            int n = pull(current, mix, position * channels, (int) limit);
+            position += n;
+            if (n < limit || current.remaining == 0) {
+                close(current);
+                current = null;
+                next = queue.peek();
+                if (next != null) {
+                    gapRemaining = AudioFormats.frames(next.settings.gapSeconds, settings.sampleRate);
+                }
+            }
+        }
+    }
+
+    private int crossfadeFrames(QueuedTrack next) {
+        return next.settings.gapSeconds > 0 ? 0 : AudioFormats.frames(next.settings.crossfadeSeconds, settings.sampleRate);
+    }
+
+    private void startCrossfade() {
+        incoming = openNext();
+        if (incoming != null) {
+            // A track queued late, or an outgoing track shorter than the crossfade, fades over the overlap that is
+            // left, so the envelope still runs its whole course before the outgoing track ends
+            fadeLength = Math.max(1, (int) Math.min(crossfadeFrames(incoming.track), current.remaining));
+            fadePosition = 0;
+        }
+    }
+
+    // Opens the head of the queue; tracks that fail to open are reported and skipped
+    private Deck openNext() {
+        QueuedTrack track;
+        while ((track = queue.poll()) != null) {
+            try {
+                SampleReader reader = SampleReader.open(track.path, settings.sampleRate, settings.resampleQuality);
+                if (reader.channels() != settings.channels) {
+                    reader = new MonoToMulti(reader, settings.channels);
+                }
+                long remaining = AudioMerger.seekToStart(reader, track.settings.song2StartTime, track.settings.song2EndTime);
+                startedInBlock.add(track);
+                nowPlaying = track.path;
+                return new Deck(track, reader, reader.length() == -1 && track.settings.song2EndTime == -1 ? Long.MAX_VALUE : remaining);
+            } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+                System.err.println("Skipping " + track.path + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    // Reads up to frames frames at the deck's volume; fewer means the track has ended
+    private int pull(Deck deck, float[] dst, int offset, int frames) {
+        int channels = settings.channels;
+        int done = 0;
+        try {
+            int n;
+            while (done < frames && deck.remaining > 0
+                    && (n = deck.reader.read(dst, offset + done * channels, (int) Math.min(frames - done, deck.remaining))) != -1) {
+                done += n;
+                if (deck.remaining != Long.MAX_VALUE) {
+                    deck.remaining -= n;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Read error in " + deck.track.path + ": " + e.getMessage());
+            deck.remaining = 0;
+        }
+        MixKernels.get().scale(dst, offset, done * channels, deck.track.settings.song2Volume);
+        if (done < frames) {
+            deck.remaining = 0;
+        }
+        return done;
+    }
+
+    private static void close(Deck deck) {
+        try {
+            deck.reader.close();
+        } catch (IOException e) {
+            System.err.println("Error closing " + deck.track.path + ": " + e.getMessage());
+        }
+    }
+
+    // Broadcast
+
+    // Slot for the next block, emptied so no listener copies it while the render thread encodes into it
+    private byte[] claimBlock() {
+        ringLock.lock();
+        try {
+            int slot = (int) (published % blocks.length);
+            blockSequences[slot] = -1;
+            return blocks[slot];
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    private void publish() {
+        ringLock.lock();
+        try {
+            blockSequences[(int) (published % blocks.length)] = published;
+            published++;
+            blockPublished.signalAll();
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    // Copies the block with the given sequence number into block once it is published; false if it has already been
+    // overwritten
+    private boolean awaitBlock(long sequence, byte[] block) throws InterruptedException {
+        ringLock.lock();
+        try {
+            while (running && sequence >= published) {
+                blockPublished.await();
+            }
+            int slot = (int) (sequence % blocks.length);
+            if (!running || blockSequences[slot] != sequence) {
+                return false;
+            }
+            System.arraycopy(blocks[slot], 0, block, 0, block.length);
+            return true;
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    private long publishedBlocks() {
+        ringLock.lock();
+        try {
+            return published;
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    private long liveSequence() {
+        return Math.max(0, publishedBlocks() - settings.prebufferBlocks);
+    }
+
+    // HTTP handlers; each runs on its own session thread
+
+    private void handleStream(HttpExchange exchange) throws IOException {
+        listeners.incrementAndGet();
+        try (exchange) {
+            exchange.getResponseHeaders().set("Content-Type", "audio/wav");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.write(streamHeader());
+            long sequence = liveSequence();
+            byte[] block = new byte[blocks[0].length];
+            while (running) {
+                if (!awaitBlock(sequence, block)) {
+                    if (!running) {
+                        break;
+                    }
+                    // Too slow to keep up: skip to live and count what was lost
+                    long live = liveSequence();
+                    droppedBlocks.addAndGet(live - sequence);
+                    sequence = live;
+                    continue;
+                }
+                out.write(block);
+                out.flush();
+                sequence++;
+            }
+        } catch (IOException e) {
+            // Listener went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            listeners.decrementAndGet();
+        }
+    }
+
+    private void handleEnqueue(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, String> query = query(exchange);
+            String path = query.get("path");
+            if (!"POST".equals(exchange.getRequestMethod()) || path == null) {
+                respond(exchange, 400, "{\"error\":\"POST /enqueue?path=...&profile=...\"}");
+                return;
+            }
+            try {
+                AudioMerger.MixProfile profile = query.containsKey("profile")
+                        ? AudioMerger.MixProfile.valueOf(query.get("profile"))
+                        : settings.defaultProfile;
+                enqueue(path, profile.getSettings());
+                respond(exchange, 202, "{\"queued\":" + queue.size() + "}");
+            } catch (IOException | IllegalArgumentException e) {
+                respond(exchange, 400, "{\"error\":\"" + MixDaemon.json(e.getMessage()) + "\"}");
+            }
+        }
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            long blocksPublished = publishedBlocks();
+            String playing = nowPlaying;
+            String body = "{\"listeners\":" + listeners.get()
+                    + ",\"queued\":" + queue.size()
+                    + ",\"nowPlaying\":" + (playing == null ? "null" : "\"" + MixDaemon.json(playing) + "\"")
+                    + ",\"blocksPublished\":" + blocksPublished
+                    + ",\"lateBlocks\":" + lateBlocks.get()
+                    + ",\"droppedBlocks\":" + droppedBlocks.get()
+                    + ",\"maxRenderMs\":" + String.format(Locale.ROOT, "%.2f", maxRenderNanos.get() / 1e6)
+                    + ",\"enqueueToAudible\":" + enqueueToAudible.toJson()
+                    + "}";
+            respond(exchange, 200, body);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return params;
+    }
+
+    // Canonical WAV header with the sizes left at their maximum, as usual for open-ended streams
+    private byte[] streamHeader() {
+        int channels = format.getChannels();
+        int sampleRate = (int) format.getSampleRate();
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(-1).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        header.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+        header.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(-1);
+        return header.array();
+    }
+
+    // Virtual thread per session where available (JDK 21+), found reflectively so the code still builds on 17
+    private static ExecutorService sessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "live-mix-session-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Plays a mono track on every channel of the stream
+    private static class MonoToMulti implements SampleReader {
+        private final SampleReader source;
+        private final int channels;
+        private final AudioFormat format;
+
+        MonoToMulti(SampleReader source, int channels) {
+            this.source = source;
+            this.channels = channels;
+            float rate = source.sampleRate();
+            this.format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, rate, 32, channels, 4 * channels, rate, false);
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public long length() {
+            return source.length();
+        }
+
+        @Override
+        public int read(float[] dst, int offset, int frames) throws IOException {
+            // Read mono into the start of the frame range, then spread it out from the back so nothing is overwritten
+            int n = source.read(dst, offset, frames);
+            for (int i = n - 1; i >= 0; i--) {
+                float sample = dst[offset + i];
+                for (int c = 0; c < channels; c++) {
+                    dst[offset + i * channels + c] = sample;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            return source.skip(count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
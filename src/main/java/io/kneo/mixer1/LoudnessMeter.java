@@ -0,0 +1,164 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Integrated loudness after ITU-R BS.1770-4 / EBU R128, measured in a streaming pass.
+// Samples are K-weighted (high shelf + high pass, coefficients derived for the actual sample rate), mean squares
+// are collected per 100 ms, and the 400 ms gating blocks (75 % overlap) are gated at -70 LUFS and then at 10 LU
+// below the loudness of the blocks that passed the first gate.
+public class LoudnessMeter {
+
+    private static final double ABSOLUTE_GATE = -70.0;
+    private static final double RELATIVE_GATE = -10.0;
+    private static final float MAX_BOOST_DB = 12.0f; // normalization never raises a quiet track by more than this
+
+    private final int channels;
+    private final double[] weights;
+    private final int stepFrames; // 100 ms
+    // Per channel biquad state: shelf x1, x2, y1, y2, then high pass x1, x2, y1, y2
+    private final double[] state;
+    private final double sb0, sb1, sb2, sa1, sa2; // high shelf
+    private final double ha1, ha2;                // high pass; numerator is 1, -2, 1
+    private double stepSum;
+    private int stepFill;
+    private double[] steps = new double[64]; // weighted mean square of each complete 100 ms step
+    private int stepCount;
+
+    public LoudnessMeter(float sampleRate, int channels) {
+        this.channels = channels;
+        this.weights = channelWeights(channels);
+        this.stepFrames = Math.round(sampleRate / 10);
+        this.state = new double[channels * 8];
+
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        sb0 = (vh + vb * k / q + k * k) / a0;
+        sb1 = 2.0 * (k * k - vh) / a0;
+        sb2 = (vh - vb * k / q + k * k) / a0;
+        sa1 = 2.0 * (k * k - 1.0) / a0;
+        sa2 = (1.0 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1.0 + k / q + k * k;
+        ha1 = 2.0 * (k * k - 1.0) / a0;
+        ha2 = (1.0 - k / q + k * k) / a0;
+    }
+
+    // Integrated loudness of the rest of reader
+    public static double measure(SampleReader reader) throws IOException {
+        LoudnessMeter meter = new LoudnessMeter(reader.sampleRate(), reader.channels());
+        float[] block = new float[SampleReader.BLOCK_SIZE * reader.channels()];
+        int n;
+        while ((n = reader.read(block, 0, SampleReader.BLOCK_SIZE)) != -1) {
+            meter.process(block, 0, n);
+        }
+        return meter.integratedLufs();
+    }
+
+    // Linear gain that brings the track to targetLufs, from its cached analysis; boosts are capped at MAX_BOOST_DB
+    // and silent tracks are left alone
+    public static float normalizationGain(String filePath, float targetLufs) throws IOException, UnsupportedAudioFileException {
+        double lufs = TrackAnalyzer.analyze(filePath).integratedLufs;
+        if (Double.isInfinite(lufs) || Double.isNaN(lufs)) {
+            return 1.0f;
+        }
+        double db = Math.min(MAX_BOOST_DB, targetLufs - lufs);
+        return (float) Math.pow(10.0, db / 20.0);
+    }
+
+    public void process(float[] samples, int offset, int frames) {
+        for (int f = 0; f < frames; f++) {
+            double sum = 0.0;
+            for (int c = 0, s = offset + f * channels; c < channels; c++, s++) {
+                if (weights[c] == 0.0) {
+                    continue;
+                }
+                int p = c * 8;
+                double x = samples[s];
+                double shelf = sb0 * x + sb1 * state[p] + sb2 * state[p + 1] - sa1 * state[p + 2] - sa2 * state[p + 3];
+                state[p + 1] = state[p];
+                state[p] = x;
+                state[p + 3] = state[p + 2];
+                state[p + 2] = shelf;
+                double y = shelf - 2.0 * state[p + 4] + state[p + 5] - ha1 * state[p + 6] - ha2 * state[p + 7];
+                state[p + 5] = state[p + 4];
+                state[p + 4] = shelf;
+                state[p + 7] = state[p + 6];
+                state[p + 6] = y;
+                sum += weights[c] * y * y;
+            }
+            stepSum += sum;
+            if (++stepFill == stepFrames) {
+                if (stepCount == steps.length) {
+                    steps = Arrays.copyOf(steps, stepCount * 2);
+                }
+                steps[stepCount++] = stepSum / stepFrames;
+                stepSum = 0.0;
+                stepFill = 0;
+            }
+        }
+    }
+
+    // Gated loudness of everything processed so far; -Infinity if no block passes the absolute gate
+    public double integratedLufs() {
+        int blocks = stepCount - 3;
+        if (blocks <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double[] energy = new double[blocks];
+        for (int b = 0; b < blocks; b++) {
+            energy[b] = (steps[b] + steps[b + 1] + steps[b + 2] + steps[b + 3]) / 4.0;
+        }
+        double absoluteGate = energyOf(ABSOLUTE_GATE);
+        double sum = 0.0;
+        int count = 0;
+        for (double e : energy) {
+            if (e > absoluteGate) {
+                sum += e;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double relativeGate = energyOf(loudnessOf(sum / count) + RELATIVE_GATE);
+        sum = 0.0;
+        count = 0;
+        for (double e : energy) {
+            if (e > absoluteGate && e > relativeGate) {
+                sum += e;
+                count++;
+            }
+        }
+        return count == 0 ? Double.NEGATIVE_INFINITY : loudnessOf(sum / count);
+    }
+
+    private static double loudnessOf(double energy) {
+        return -0.691 + 10.0 * Math.log10(energy);
+    }
+
+    private static double energyOf(double lufs) {
+        return Math.pow(10.0, (lufs + 0.691) / 10.0);
+    }
+
+    // BS.1770 channel weights: 1.0 for front channels, 1.41 for surrounds, LFE ignored (5.1 in WAV order L R C LFE Ls Rs)
+    private static double[] channelWeights(int channels) {
+        double[] weights = new double[channels];
+        Arrays.fill(weights, 1.0);
+        if (channels == 6) {
+            weights[3] = 0.0;
+            weights[4] = 1.41;
+            weights[5] = 1.41;
+        } else if (channels == 5) {
+            weights[3] = 1.41;
+            weights[4] = 1.41;
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,583 @@
+package io.kneo.mixer1;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Resident mix server: one JVM takes mix jobs over HTTP, so jobs skip JVM startup, class loading and cold JIT.
+//   POST /jobs        {"type":"crossfade","input1":"a.wav","input2":"b.wav","output":"out.wav",
+//                      "profile":"DJ_CROSSFADE","crossfadeSeconds":6}           queue a job, returns its id
+//   GET  /jobs        recent jobs
+//   GET  /jobs/<id>   status (queued, running, done, failed), progress 0..1, timings and the job's MixMetrics report
+//   GET  /status      workers, queue length, job counts, DecodedTrackCache figures
+//   GET  /peaks?path=a.wav&start=30&end=60&bucketSeconds=0.1   PeakIndex min/max/rms of a time range, at the level
+//                     with buckets up to bucketSeconds long (or level=n); a missing sidecar is built on the way
+// Job types and options are those of BatchRenderer: type crossfade, outro, append or preview; "profile" picks a
+// MixProfile, every other key sets the MixSettings / OutroIntroSettings field of that name. Paths are resolved by the
+// daemon.
+// The server only listens on the loopback interface.
+// Decoded tracks stay in the shared DecodedTrackCache between jobs and each worker keeps its BufferPool; on start a
+// warm-up renders each job type on synthetic audio so the first real job runs compiled code, on warm pools.
+// For faster restarts, record a class data archive once
+//   java -XX:ArchiveClassesAtExit=mixer1.jsa -cp mixer1.jar io.kneo.mixer1.MixDaemon --warmup-only
+// and start with -XX:SharedArchiveFile=mixer1.jsa; only classes loaded from jars are archived.
+// Between jobs the daemon holds no open files besides its socket.
+public class MixDaemon {
+
+    public static class DaemonSettings {
+        public int port;
+        public int threads; // jobs rendered at once
+        public long cacheBytes; // DecodedTrackCache budget; 0 leaves it as configured
+        public int warmupRounds; // rounds of each job type on synthetic audio before taking jobs
+        public int history; // finished jobs kept for status queries
+
+        public DaemonSettings() {
+            this(8091, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 4, 3, 1000);
+        }
+
+        public DaemonSettings(int port, int threads, long cacheBytes, int warmupRounds, int history) {
+            this.port = port;
+            this.threads = threads;
+            this.cacheBytes = cacheBytes;
+            this.warmupRounds = warmupRounds;
+            this.history = history;
+        }
+    }
+
+    public enum JobStatus { QUEUED, RUNNING, DONE, FAILED }
+
+    // A submitted job and what is known about it so far
+    private static class DaemonJob {
+        final long id;
+        final BatchRenderer.Job job;
+        final long inputSamples; // -1 if an input's length is unknown
+        final MixMetrics.Progress progress = new MixMetrics.Progress();
+        final long submittedNanos = System.nanoTime();
+        volatile JobStatus status = JobStatus.QUEUED;
+        volatile long startedNanos;
+        volatile long finishedNanos;
+        volatile String error;
+        volatile MixMetrics.Report report;
+
+        DaemonJob(long id, BatchRenderer.Job job, long inputSamples) {
+            this.id = id;
+            this.job = job;
+            this.inputSamples = inputSamples;
+        }
+
+        // Share of the input read so far; trims and resampling keep it approximate, so it stays below 1 until done
+        double progress() {
+            return switch (status) {
+                case QUEUED -> 0.0;
+                case DONE -> 1.0;
+                case RUNNING, FAILED -> inputSamples > 0
+                        ? Math.min(0.99, (double) progress.inputSamples() / inputSamples)
+                        : 0.0;
+            };
+        }
+
+        synchronized String toJson() {
+            long now = System.nanoTime();
+            long started = startedNanos;
+            long finished = finishedNanos;
+            MixMetrics.Report metrics = report;
+            return "{\"id\":" + id
+                    + ",\"type\":\"" + job.type.name().toLowerCase(Locale.ROOT) + "\""
+                    + ",\"output\":\"" + json(job.output) + "\""
+                    + ",\"status\":\"" + status.name().toLowerCase(Locale.ROOT) + "\""
+                    + ",\"progress\":" + String.format(Locale.ROOT, "%.3f", progress())
+                    + ",\"waitMs\":" + TimeUnit.NANOSECONDS.toMillis((started == 0 ? now : started) - submittedNanos)
+                    + ",\"runMs\":" + (started == 0 ? 0
+                            : TimeUnit.NANOSECONDS.toMillis((finished == 0 ? now : finished) - started))
+                    + ",\"error\":" + (error == null ? "null" : "\"" + json(error) + "\"")
+                    + ",\"metrics\":" + (metrics == null ? "null" : metrics.toJson())
+                    + "}";
+        }
+    }
+
+    private final DaemonSettings settings;
+    private final ThreadPoolExecutor workers;
+    private final Map<Long, DaemonJob> jobs = new LinkedHashMap<>(); // guarded by this, in submission order
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final ThreadLocal<DaemonJob> running = new ThreadLocal<>();
+    private final MixMetricsListener reports = this::jobCompleted;
+    private final long startNanos = System.nanoTime();
+    private HttpServer server;
+
+    public MixDaemon(DaemonSettings settings) {
+        this.settings = settings;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(settings.threads, settings.threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), task -> new Thread(task, "mix-daemon-" + threadNumber.incrementAndGet()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        DaemonSettings settings = new DaemonSettings();
+        boolean warmupOnly = false;
+        for (String arg : args) {
+            if (arg.equals("--warmup-only")) {
+                warmupOnly = true;
+            } else {
+                settings.port = Integer.parseInt(arg);
+            }
+        }
+        MixDaemon daemon = new MixDaemon(settings);
+        long start = System.nanoTime();
+        daemon.warmUp();
+        System.out.println("Warm-up took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        if (warmupOnly) {
+            return;
+        }
+        daemon.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop, "mix-daemon-shutdown"));
+        System.out.println("Mix daemon on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + settings.port + "/jobs");
+    }
+
+    public void start() throws IOException {
+        if (settings.cacheBytes > 0) {
+            DecodedTrackCache.shared().setBudgetBytes(settings.cacheBytes);
+        }
+        MixMetrics.addListener(reports);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), settings.port), 0);
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/status", this::handleStatus);
+        server.createContext("/peaks", this::handlePeaks);
+        server.start();
+    }
+
+    // Stops taking requests and lets queued and running jobs finish
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        MixMetrics.removeListener(reports);
+    }
+
+    // Queues a job; its inputs are opened first, so a bad path fails here instead of in the worker
+    public long submit(BatchRenderer.Job job) throws IOException {
+        DaemonJob entry = new DaemonJob(nextId.getAndIncrement(), job, inputSamples(job));
+        synchronized (this) {
+            jobs.put(entry.id, entry);
+            pruneHistory();
+        }
+        workers.execute(() -> run(entry));
+        return entry.id;
+    }
+
+    public JobStatus status(long id) {
+        DaemonJob job;
+        synchronized (this) {
+            job = jobs.get(id);
+        }
+        return job == null ? null : job.status;
+    }
+
+    private void run(DaemonJob entry) {
+        entry.startedNanos = System.nanoTime();
+        entry.status = JobStatus.RUNNING;
+        running.set(entry);
+        MixMetrics.trackProgress(entry.progress);
+        try {
+            entry.job.run();
+            entry.status = JobStatus.DONE;
+            completed.incrementAndGet();
+        } catch (Exception | OutOfMemoryError e) {
+            entry.error = String.valueOf(e.getMessage() != null ? e.getMessage() : e);
+            entry.status = JobStatus.FAILED;
+            failed.incrementAndGet();
+        } finally {
+            entry.finishedNanos = System.nanoTime();
+            MixMetrics.trackProgress(null);
+            running.remove();
+        }
+    }
+
+    // Called on the worker thread as the job's MixMetrics finishes
+    private void jobCompleted(MixMetrics.Report report) {
+        DaemonJob entry = running.get();
+        if (entry != null) {
+            entry.report = report;
+        }
+    }
+
+    // Oldest finished jobs beyond the history limit are forgotten
+    private void pruneHistory() {
+        int finished = 0;
+        for (DaemonJob job : jobs.values()) {
+            if (job.status == JobStatus.DONE || job.status == JobStatus.FAILED) {
+                finished++;
+            }
+        }
+        for (Iterator<DaemonJob> it = jobs.values().iterator(); it.hasNext() && finished > settings.history; ) {
+            DaemonJob job = it.next();
+            if (job.status == JobStatus.DONE || job.status == JobStatus.FAILED) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    private static long inputSamples(BatchRenderer.Job job) throws IOException {
+        long total = 0;
+        for (String path : List.of(job.input1, job.input2)) {
+            try (SampleReader reader = SampleReader.open(path)) {
+                if (reader.length() == -1) {
+                    total = -1;
+                } else if (total >= 0) {
+                    total += reader.length() * reader.channels();
+                }
+            } catch (UnsupportedAudioFileException e) {
+                throw new IOException("Unsupported audio file: " + path, e);
+            }
+        }
+        return total;
+    }
+
+    // Renders each job type on generated audio until the mixing, resampling and codec paths are compiled
+    public void warmUp() throws IOException {
+        if (settings.warmupRounds <= 0) {
+            return;
+        }
+        Path directory = Files.createTempDirectory("mixer1-warmup");
+        try {
+            String song1 = directory.resolve("song1.wav").toString();
+            String song2 = directory.resolve("song2.wav").toString();
+            String intro = directory.resolve("intro.wav").toString();
+            writeSignal(song1, 44100.0f, 30, 220.0);
+            writeSignal(song2, 44100.0f, 30, 330.0);
+            writeSignal(intro, 48000.0f, 12, 440.0); // another rate, so the resampler warms up as well
+            String wav = directory.resolve("out.wav").toString();
+            String flac = directory.resolve("out.flac").toString();
+            for (int round = 0; round < settings.warmupRounds; round++) {
+                for (AudioMerger.MixProfile profile : AudioMerger.MixProfile.values()) {
+                    AudioMerger.mergeAudioFilesStreaming(song1, song2, wav, profile.getSettings());
+                }
+                AudioMerger.mergeAudioFiles(song1, song2, flac, AudioMerger.MixProfile.DJ_CROSSFADE.getSettings());
+                AudioOutroIntro.createOutroIntroMix(song1, intro, wav, new AudioOutroIntro.OutroIntroSettings());
+                AudioOutroIntro.addSongToEnd(wav, song2, flac);
+                TransitionPreview.render(song1, song2, wav, AudioMerger.MixProfile.DJ_CROSSFADE.getSettings());
+            }
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException(e);
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    // Stereo tone with a slow tremolo and some noise, so analysis and codecs see something like music
+    private static void writeSignal(String path, float sampleRate, int seconds, double frequency) throws IOException {
+        int frames = (int) (sampleRate * seconds);
+        float[] samples = new float[frames * 2];
+        Random random = new Random(seconds);
+        for (int i = 0; i < frames; i++) {
+            double t = i / (double) sampleRate;
+            double tremolo = 0.6 + 0.4 * Math.sin(2 * Math.PI * 0.5 * t);
+            double tone = Math.sin(2 * Math.PI * frequency * t);
+            float value = (float) (0.4 * tremolo * tone + 0.05 * random.nextGaussian());
+            samples[2 * i] = value;
+            samples[2 * i + 1] = -value;
+        }
+        try (WavStreamWriter writer = new WavStreamWriter(path, AudioFormats.outputFormat(sampleRate, 2))) {
+            writer.write(samples, 0, samples.length);
+        }
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/jobs") || path.equals("/jobs/")) {
+                if ("POST".equals(method)) {
+                    handleSubmit(exchange);
+                } else if ("GET".equals(method)) {
+                    List<DaemonJob> list;
+                    synchronized (this) {
+                        list = new ArrayList<>(jobs.values());
+                    }
+                    list.sort(Comparator.comparingLong((DaemonJob job) -> job.id).reversed());
+                    StringBuilder body = new StringBuilder("{\"jobs\":[");
+                    for (int i = 0; i < list.size(); i++) {
+                        body.append(i > 0 ? "," : "").append(list.get(i).toJson());
+                    }
+                    respond(exchange, 200, body.append("]}").toString());
+                } else {
+                    respond(exchange, 405, "{\"error\":\"GET or POST /jobs\"}");
+                }
+                return;
+            }
+            DaemonJob job = null;
+            try {
+                long id = Long.parseLong(path.substring("/jobs/".length()));
+                synchronized (this) {
+                    job = jobs.get(id);
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // not a job id
+            }
+            if (job == null || !"GET".equals(method)) {
+                respond(exchange, 404, "{\"error\":\"No such job\"}");
+            } else {
+                respond(exchange, 200, job.toJson());
+            }
+        }
+    }
+
+    private void handleSubmit(HttpExchange exchange) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        try {
+            Map<String, String> fields = parseObject(body);
+            String type = fields.remove("type");
+            String input1 = fields.remove("input1");
+            String input2 = fields.remove("input2");
+            String output = fields.remove("output");
+            if (type == null || input1 == null || input2 == null || output == null) {
+                throw new IllegalArgumentException("type, input1, input2 and output are required");
+            }
+            List<String> options = new ArrayList<>();
+            String profile = fields.remove("profile");
+            if (profile != null) {
+                options.add(profile);
+            }
+            fields.forEach((name, value) -> options.add(name + "=" + value));
+            BatchRenderer.JobType jobType = BatchRenderer.JobType.valueOf(type.toUpperCase(Locale.ROOT));
+            long id = submit(BatchRenderer.job(0, jobType, input1, input2, output, options));
+            respond(exchange, 202, "{\"id\":" + id + ",\"status\":\"queued\"}");
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "{\"error\":\"" + json(e.getMessage()) + "\"}");
+        } catch (IOException e) {
+            respond(exchange, 400, "{\"error\":\"" + json(e.toString()) + "\"}");
+        }
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String body = "{\"uptimeMs\":" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+                    + ",\"workers\":" + settings.threads
+                    + ",\"running\":" + workers.getActiveCount()
+                    + ",\"queued\":" + workers.getQueue().size()
+                    + ",\"completed\":" + completed.get()
+                    + ",\"failed\":" + failed.get()
+                    + ",\"cache\":\"" + json(DecodedTrackCache.shared().stats().toString()) + "\""
+                    + "}";
+            respond(exchange, 200, body);
+        }
+    }
+
+    private void handlePeaks(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, String> query = new LinkedHashMap<>();
+            String raw = exchange.getRequestURI().getRawQuery();
+            if (raw != null) {
+                for (String pair : raw.split("&")) {
+                    int eq = pair.indexOf('=');
+                    if (eq > 0) {
+                        query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                                URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            String path = query.get("path");
+            if (path == null || !"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 400, "{\"error\":\"GET /peaks?path=...\"}");
+                return;
+            }
+            try {
+                PeakIndex peaks = PeakIndex.of(path);
+                int level = query.containsKey("level") ? Integer.parseInt(query.get("level"))
+                        : peaks.level(Float.parseFloat(query.getOrDefault("bucketSeconds", "1")));
+                PeakIndex.Range range = peaks.range(level,
+                        Float.parseFloat(query.getOrDefault("start", "0")),
+                        Float.parseFloat(query.getOrDefault("end", "-1")));
+                StringBuilder body = new StringBuilder("{\"duration\":").append(peaks.duration())
+                        .append(",\"level\":").append(range.level)
+                        .append(",\"startTime\":").append(range.startTime)
+                        .append(",\"bucketSeconds\":").append(range.bucketSeconds);
+                appendArray(body.append(",\"min\":"), range.min);
+                appendArray(body.append(",\"max\":"), range.max);
+                appendArray(body.append(",\"rms\":"), range.rms);
+                respond(exchange, 200, body.append('}').toString());
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "{\"error\":\"" + json(e.getMessage()) + "\"}");
+            } catch (IOException | UnsupportedAudioFileException e) {
+                respond(exchange, 404, "{\"error\":\"" + json(e.toString()) + "\"}");
+            }
+        }
+    }
+
+    private static void appendArray(StringBuilder body, float[] values) {
+        body.append('[');
+        for (int i = 0; i < values.length; i++) {
+            body.append(i > 0 ? "," : "").append(values[i]);
+        }
+        body.append(']');
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    // text as the inside of a JSON string; control characters are escaped, so error messages stay valid JSON.
+    // The one escape for every JSON body the package writes: MixMetrics reports and LiveMixService status too.
+    static String json(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"', '\\' -> escaped.append('\\').append(c);
+                case '\n' -> escaped.append("\\n");
+                case '\r' -> escaped.append("\\r");
+                case '\t' -> escaped.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        escaped.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+                }
+            }
+        }
+        return escaped.toString();
+    }
+
+    // A flat JSON object of strings, numbers, booleans and nulls, with every value returned as its text
+    static Map<String, String> parseObject(String text) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        int[] pos = {skipSpace(text, 0)};
+        expect(text, pos, '{');
+        if (peek(text, pos) == '}') {
+            pos[0]++;
+            return fields;
+        }
+        while (true) {
+            String name = parseString(text, pos);
+            expect(text, pos, ':');
+            String value;
+            if (peek(text, pos) == '"') {
+                value = parseString(text, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = text.substring(start, pos[0]);
+                if (value.isEmpty() || value.startsWith("{") || value.startsWith("[")) {
+                    throw new IllegalArgumentException("Expected a string, number or boolean for " + name);
+                }
+                pos[0] = skipSpace(text, pos[0]);
+            }
+            if (!value.equals("null")) {
+                fields.put(name, value);
+            }
+            char c = peek(text, pos);
+            pos[0]++;
+            if (c == '}') {
+                return fields;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException("Expected , or } at " + (pos[0] - 1));
+            }
+        }
+    }
+
+    private static String parseString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            if (pos[0] >= text.length()) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            char c = text.charAt(pos[0]++);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                if (pos[0] >= text.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char escaped = text.charAt(pos[0]++);
+                switch (escaped) {
+                    case 'n' -> value.append('\n');
+                    case 't' -> value.append('\t');
+                    case 'r' -> value.append('\r');
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'u' -> {
+                        if (pos[0] + 4 > text.length()) {
+                            throw new IllegalArgumentException("Short \\u escape at " + (pos[0] - 2));
+                        }
+                        // NumberFormatException is an IllegalArgumentException too
+                        value.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                        pos[0] += 4;
+                    }
+                    default -> value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        pos[0] = skipSpace(text, pos[0]);
+        return value.toString();
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (peek(text, pos) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at " + pos[0]);
+        }
+        pos[0] = skipSpace(text, pos[0] + 1);
+    }
+
+    private static char peek(String text, int[] pos) {
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        return text.charAt(pos[0]);
+    }
+
+    private static int skipSpace(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
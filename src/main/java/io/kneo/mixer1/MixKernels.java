@@ -0,0 +1,51 @@
+package io.kneo.mixer1;
+
+// Per-block gain, envelope, mix and clamp kernels.
+// get() picks the SIMD implementation when jdk.incubator.vector is available at runtime
+// (run with --add-modules jdk.incubator.vector) and falls back to plain loops otherwise.
+// Set -Dmixer1.kernels=scalar to force the fallback.
+public abstract class MixKernels {
+
+    private static final MixKernels INSTANCE = select();
+
+    public static MixKernels get() {
+        return INSTANCE;
+    }
+
+    public abstract String name();
+
+    // samples[i] *= gain
+    public abstract void scale(float[] samples, int offset, int length, float gain);
+
+    // samples[i] *= gains[i]
+    public abstract void multiply(float[] samples, int offset, float[] gains, int gainOffset, int length);
+
+    // dst[i] = dst[i] * dstGains[i] + src[i] * srcGains[i]
+    public abstract void mix(float[] dst, int dstOffset, float[] dstGains,
+                             float[] src, int srcOffset, float[] srcGains, int length);
+
+    // dst[i] += src[i]
+    public abstract void add(float[] dst, int dstOffset, float[] src, int srcOffset, int length);
+
+    // samples[i] = max(min, min(max, samples[i]))
+    public abstract void clamp(float[] samples, int offset, int length, float min, float max);
+
+    private static MixKernels select() {
+        if (!"scalar".equals(System.getProperty("mixer1.kernels"))) {
+            try {
+                MixKernels vector = (MixKernels) Class.forName("io.kneo.mixer1.VectorMixKernels")
+                        .getDeclaredConstructor().newInstance();
+                if (vector.isUseful()) {
+                    return vector;
+                }
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Incubator module not resolved in this JVM
+            }
+        }
+        return new ScalarMixKernels();
+    }
+
+    boolean isUseful() {
+        return true;
+    }
+}
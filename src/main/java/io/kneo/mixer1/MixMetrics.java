@@ -0,0 +1,365 @@
+package io.kneo.mixer1;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Per-stage timings and counts of one mix job (mergeAudioFiles, createOutroIntroMix, addSongToEnd, ...).
+// A job calls begin(), brackets its work with start()/stop(stage, ...), and calls finish() when done; the
+// result goes to the registered MixMetricsListeners and, while a recording has them enabled, to the JFR events
+// io.kneo.mixer1.MixJob and io.kneo.mixer1.MixStage.
+// With no listener and no recording, begin() returns NONE, whose methods do nothing and never read the clock.
+// A caller that wants to watch a job while it runs (MixDaemon) hands a Progress to trackProgress() on the thread
+// that runs the job; decoded, copied and encoded sample counts then show up there as they happen.
+// A MixMetrics is not thread-safe: a job that works on several threads (ParallelRenderer) gives each of them a part()
+// and merges the parts back in as they finish; stage times then add up the threads' time, not wall time.
+// -Dmixer1.metrics=<file> registers a JsonMetricsSink that appends one JSON line per job to that file.
+public final class MixMetrics {
+
+    public enum Stage {
+        DECODE, // reading and converting input samples, including resampling
+        TRIM,   // seeking to the trim start, finding trailing silence
+        GAIN,   // track volume outside a render graph
+        FADE,   // fade envelope outside a render graph
+        MIX,    // crossfade or intro overlay; in a render graph also the gain and fade fused into it
+        LIMIT,  // true-peak limiting of the output
+        ENCODE, // converting and writing output samples
+        COPY    // untouched input bytes copied straight to the output
+    }
+
+    public static final MixMetrics NONE = new MixMetrics(null, null);
+
+    private static final List<MixMetricsListener> LISTENERS = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<Progress> PROGRESS = new ThreadLocal<>();
+
+    static {
+        String path = System.getProperty("mixer1.metrics");
+        if (path != null && !path.isEmpty()) {
+            addListener(new JsonMetricsSink(Path.of(path)));
+        }
+    }
+
+    private final boolean enabled;
+    private final String operation;
+    private final String output;
+    private final long startNanos;
+    private final long[] stageNanos = new long[Stage.values().length];
+    private final long[] stageSamples = new long[Stage.values().length];
+    private final JobEvent jobEvent;
+    private long clippedSamples;
+    private long peakHeapBytes;
+    private long inputBytes;
+    private Progress progress;
+    private boolean finished;
+
+    // Live sample counts of a running job, written by the job's thread and readable from any other
+    public static class Progress {
+        private volatile long inputSamples; // decoded or copied
+        private volatile long outputSamples; // encoded or copied
+
+        public long inputSamples() {
+            return inputSamples;
+        }
+
+        public long outputSamples() {
+            return outputSamples;
+        }
+    }
+
+    private MixMetrics(String operation, String output) {
+        this.enabled = operation != null;
+        this.operation = operation;
+        this.output = output;
+        this.startNanos = enabled ? System.nanoTime() : 0;
+        this.jobEvent = enabled ? new JobEvent() : null;
+        if (jobEvent != null) {
+            jobEvent.begin();
+        }
+    }
+
+    // A part of job's metrics: counts only, without an event or progress of its own
+    private MixMetrics(MixMetrics job) {
+        this.enabled = true;
+        this.operation = job.operation;
+        this.output = job.output;
+        this.startNanos = job.startNanos;
+        this.jobEvent = null;
+    }
+
+    public static void addListener(MixMetricsListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void removeListener(MixMetricsListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    // Jobs begun on this thread from now on count into progress; null stops that
+    public static void trackProgress(Progress progress) {
+        if (progress == null) {
+            PROGRESS.remove();
+        } else {
+            PROGRESS.set(progress);
+        }
+    }
+
+    // Metrics for a job writing output, or NONE if nobody is listening
+    public static MixMetrics begin(String operation, String output, String... inputs) {
+        Progress progress = PROGRESS.get();
+        if (LISTENERS.isEmpty() && progress == null && !new JobEvent().isEnabled()) {
+            return NONE;
+        }
+        MixMetrics metrics = new MixMetrics(operation, output);
+        metrics.progress = progress;
+        for (String input : inputs) {
+            metrics.inputBytes += new File(input).length();
+        }
+        return metrics;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Metrics for one of several threads working on this job at once, to merge() back when that thread is done
+    public MixMetrics part() {
+        return enabled ? new MixMetrics(this) : NONE;
+    }
+
+    // Adds a part's counts to this job's, and to its progress; parts may be merged from any thread
+    public synchronized void merge(MixMetrics part) {
+        if (!enabled || part == NONE) {
+            return;
+        }
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] += part.stageNanos[i];
+            stageSamples[i] += part.stageSamples[i];
+        }
+        clippedSamples += part.clippedSamples;
+        peakHeapBytes = Math.max(peakHeapBytes, part.peakHeapBytes);
+        if (progress != null) {
+            long copied = part.stageSamples[Stage.COPY.ordinal()];
+            progress.inputSamples += part.stageSamples[Stage.DECODE.ordinal()] + copied;
+            progress.outputSamples += part.stageSamples[Stage.ENCODE.ordinal()] + copied;
+        }
+    }
+
+    // Timestamp for stop()
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // Charges the time since start and samples interleaved samples to stage
+    public void stop(Stage stage, long start, long samples) {
+        if (enabled) {
+            stageNanos[stage.ordinal()] += System.nanoTime() - start;
+            stageSamples[stage.ordinal()] += samples;
+            if (progress != null) {
+                if (stage == Stage.DECODE || stage == Stage.COPY) {
+                    progress.inputSamples += samples;
+                }
+                if (stage == Stage.ENCODE || stage == Stage.COPY) {
+                    progress.outputSamples += samples;
+                }
+            }
+            Runtime runtime = Runtime.getRuntime();
+            peakHeapBytes = Math.max(peakHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+        }
+    }
+
+    // SampleReader.read, charged to DECODE
+    public int read(SampleReader reader, float[] dst, int offset, int frames) throws IOException {
+        if (!enabled) {
+            return reader.read(dst, offset, frames);
+        }
+        long start = System.nanoTime();
+        int n = reader.read(dst, offset, frames);
+        stop(Stage.DECODE, start, n > 0 ? (long) n * reader.channels() : 0);
+        return n;
+    }
+
+    // SampleReader.readFrames, charged to DECODE
+    public SampleBuffer readFrames(SampleReader reader, long frames) throws IOException {
+        long start = start();
+        SampleBuffer samples = reader.readFrames(frames);
+        stop(Stage.DECODE, start, samples.size());
+        return samples;
+    }
+
+    // Counts samples outside [-1, 1], which the next clamp or encode will clip
+    public void countClips(float[] samples, int offset, int length) {
+        if (enabled) {
+            long clipped = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (samples[i] > 1.0f || samples[i] < -1.0f) {
+                    clipped++;
+                }
+            }
+            clippedSamples += clipped;
+        }
+    }
+
+    // Ends the job and hands the report on; error is null on success. Only the first call counts, so a caller that
+    // finishes a job in its catch block after finishing it in the try does not report it twice. A listener that
+    // throws is reported on stderr and does not keep the others from the report, or fail the job.
+    public void finish(Throwable error) {
+        if (!enabled || finished) {
+            return;
+        }
+        finished = true;
+        long outputBytes = new File(output).length();
+        Report report = new Report(operation, output, System.nanoTime() - startNanos, stageNanos.clone(),
+                stageSamples.clone(), clippedSamples, peakHeapBytes, inputBytes, outputBytes,
+                error == null ? null : String.valueOf(error.getMessage()));
+
+        jobEvent.end();
+        if (jobEvent.shouldCommit()) {
+            jobEvent.operation = operation;
+            jobEvent.output = output;
+            jobEvent.clippedSamples = clippedSamples;
+            jobEvent.peakHeapBytes = peakHeapBytes;
+            jobEvent.inputBytes = inputBytes;
+            jobEvent.outputBytes = outputBytes;
+            jobEvent.error = report.error;
+            jobEvent.commit();
+            for (Stage stage : Stage.values()) {
+                if (report.samples(stage) > 0 || report.nanos(stage) > 0) {
+                    StageEvent event = new StageEvent();
+                    event.operation = operation;
+                    event.output = output;
+                    event.stage = stage.name();
+                    event.stageNanos = report.nanos(stage);
+                    event.samples = report.samples(stage);
+                    event.commit();
+                }
+            }
+        }
+
+        for (MixMetricsListener listener : LISTENERS) {
+            try {
+                listener.jobCompleted(report);
+            } catch (RuntimeException e) {
+                System.err.println("Metrics listener " + listener + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // What one job spent where
+    public static class Report {
+        public final String operation;
+        public final String output;
+        public final long totalNanos;
+        public final long clippedSamples;
+        public final long peakHeapBytes; // JVM heap in use, sampled at stage ends; other threads' work included
+        public final long inputBytes; // size of the input files
+        public final long outputBytes;
+        public final String error; // null on success
+        private final long[] stageNanos;
+        private final long[] stageSamples;
+
+        Report(String operation, String output, long totalNanos, long[] stageNanos, long[] stageSamples,
+               long clippedSamples, long peakHeapBytes, long inputBytes, long outputBytes, String error) {
+            this.operation = operation;
+            this.output = output;
+            this.totalNanos = totalNanos;
+            this.stageNanos = stageNanos;
+            this.stageSamples = stageSamples;
+            this.clippedSamples = clippedSamples;
+            this.peakHeapBytes = peakHeapBytes;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.error = error;
+        }
+
+        public long nanos(Stage stage) {
+            return stageNanos[stage.ordinal()];
+        }
+
+        public long samples(Stage stage) {
+            return stageSamples[stage.ordinal()];
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder(256);
+            json.append("{\"operation\":\"").append(MixDaemon.json(operation))
+                    .append("\",\"output\":\"").append(MixDaemon.json(output))
+                    .append("\",\"totalMs\":").append(String.format(Locale.ROOT, "%.3f", totalNanos / 1e6))
+                    .append(",\"stages\":{");
+            String separator = "";
+            for (Stage stage : Stage.values()) {
+                if (nanos(stage) > 0 || samples(stage) > 0) {
+                    json.append(separator).append('"').append(stage.name().toLowerCase(Locale.ROOT))
+                            .append("\":{\"ms\":")
+                            .append(String.format(Locale.ROOT, "%.3f", nanos(stage) / 1e6))
+                            .append(",\"samples\":").append(samples(stage)).append('}');
+                    separator = ",";
+                }
+            }
+            json.append("},\"clippedSamples\":").append(clippedSamples)
+                    .append(",\"peakHeapBytes\":").append(peakHeapBytes)
+                    .append(",\"inputBytes\":").append(inputBytes)
+                    .append(",\"outputBytes\":").append(outputBytes)
+                    .append(",\"error\":").append(error == null ? "null" : "\"" + MixDaemon.json(error) + "\"")
+                    .append('}');
+            return json.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+
+    @Name("io.kneo.mixer1.MixJob")
+    @Label("Mix Job")
+    @Category("Mixer")
+    @Description("One mix job from start to finish")
+    static class JobEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Output")
+        String output;
+        @Label("Clipped Samples")
+        long clippedSamples;
+        @Label("Peak Heap")
+        @DataAmount
+        long peakHeapBytes;
+        @Label("Input Size")
+        @DataAmount
+        long inputBytes;
+        @Label("Output Size")
+        @DataAmount
+        long outputBytes;
+        @Label("Error")
+        String error;
+    }
+
+    @Name("io.kneo.mixer1.MixStage")
+    @Label("Mix Stage")
+    @Category("Mixer")
+    @Description("Time and samples one mix job spent in a stage, committed when the job finishes")
+    static class StageEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Output")
+        String output;
+        @Label("Stage")
+        String stage;
+        @Label("Stage Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long stageNanos;
+        @Label("Samples")
+        long samples;
+    }
+}
@@ -0,0 +1,7 @@
+package io.kneo.mixer1;
+
+// Receives a report for every finished mix job, on the thread that ran it; see MixMetrics
+public interface MixMetricsListener {
+
+    void jobCompleted(MixMetrics.Report report);
+}
@@ -0,0 +1,102 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// Renders one output timeline on all cores: the timeline is cut into chunks, each chunk is rendered from its own copy
+// of the RenderGraph (its own readers, skipped to the chunk start) on the common fork-join pool, and written into its
+// own part of the output's data with positional FileChannel writes (WavStreamWriter.reserve and region).
+// Gains and fades depend only on frame positions, so the chunks join up into the file a sequential render writes,
+// byte for byte, copied-through spans included.
+// Worth it where seeking is cheap (WAV inputs, decoded buffers); a FLAC or resampled input would be decoded from its
+// start by every chunk. The output must be WAV without a limiter: the limiter's lookahead would cross chunk edges,
+// and a FLAC frame's position is only known once the frames before it are encoded.
+final class ParallelRenderer {
+
+    private static final int CHUNK_SECONDS = 10;
+    private static final int ALIGN_FRAMES = 4096;
+
+    // Renders output frames [from, to) into sink, charging its work to metrics
+    @FunctionalInterface
+    interface Chunk {
+        void render(long from, long to, AudioFileWriter sink, MixMetrics metrics)
+                throws IOException, UnsupportedAudioFileException;
+    }
+
+    private ParallelRenderer() {
+    }
+
+    static boolean canRender(AudioFileWriter writer, long frames) {
+        return writer instanceof WavStreamWriter && !writer.hasLimiter() && frames != Long.MAX_VALUE;
+    }
+
+    // Renders frames frames of output into writer in parallel chunks; see canRender
+    static void render(AudioFileWriter writer, long frames, Chunk chunk, MixMetrics metrics)
+            throws IOException, UnsupportedAudioFileException {
+        WavStreamWriter wav = (WavStreamWriter) writer;
+        int channels = writer.getFormat().getChannels();
+        // At least one chunk per thread (the pool's and the calling one), at most CHUNK_SECONDS each, in whole
+        // ALIGN_FRAMES
+        int threads = ForkJoinPool.getCommonPoolParallelism() + 1;
+        long chunkFrames = Math.min((long) (CHUNK_SECONDS * writer.getFormat().getSampleRate()),
+                (frames + threads - 1) / threads);
+        chunkFrames = Math.max(ALIGN_FRAMES, (chunkFrames + ALIGN_FRAMES - 1) / ALIGN_FRAMES * ALIGN_FRAMES);
+
+        long first = wav.reserve(frames * channels);
+        List<ChunkTask> tasks = new ArrayList<>();
+        for (long from = 0; from < frames; from += chunkFrames) {
+            long to = Math.min(frames, from + chunkFrames);
+            tasks.add(new ChunkTask(chunk, from, to, wav, first + from * channels, metrics));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        for (ChunkTask task : tasks) {
+            if (task.error instanceof IOException e) {
+                throw e;
+            }
+            if (task.error instanceof UnsupportedAudioFileException e) {
+                throw e;
+            }
+        }
+    }
+
+    private static final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Chunk chunk;
+        private final long from;
+        private final long to;
+        private final WavStreamWriter output;
+        private final long firstSample;
+        private final MixMetrics metrics;
+        private Exception error;
+
+        private ChunkTask(Chunk chunk, long from, long to, WavStreamWriter output, long firstSample,
+                          MixMetrics metrics) {
+            this.chunk = chunk;
+            this.from = from;
+            this.to = to;
+            this.output = output;
+            this.firstSample = firstSample;
+            this.metrics = metrics;
+        }
+
+        // The region is opened here, so its buffer comes from and goes back to the worker's BufferPool
+        @Override
+        protected void compute() {
+            MixMetrics part = metrics.part();
+            try (AudioFileWriter region = output.region(firstSample, (to - from) * output.getFormat().getChannels())) {
+                region.setMetrics(part);
+                chunk.render(from, to, region, part);
+            } catch (IOException | UnsupportedAudioFileException e) {
+                error = e;
+            } finally {
+                metrics.merge(part);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+// Block conversion between PCM bytes and float samples in [-1.0, 1.0].
+// Supports 8/16/24/32-bit integer and 32-bit float PCM in either byte order, without per-sample allocation.
+// 16/24-bit samples are assembled by hand, which C2 compiles to tighter loops than byte-array VarHandles.
+public class PcmCodec {
+
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle FLOAT_LE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle FLOAT_BE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+
+    private enum Kind { U8, S8, S16, S24, S32, F32 }
+
+    private final Kind kind;
+    private final boolean bigEndian;
+    private final int bytesPerSample;
+
+    public PcmCodec(AudioFormat format) {
+        this.kind = kindOf(format);
+        if (kind == null) {
+            throw new IllegalArgumentException("Unsupported PCM format: " + format);
+        }
+        this.bigEndian = format.isBigEndian();
+        this.bytesPerSample = format.getSampleSizeInBits() / 8;
+    }
+
+    public static boolean isSupported(AudioFormat format) {
+        return kindOf(format) != null;
+    }
+
+    public int bytesPerSample() {
+        return bytesPerSample;
+    }
+
+    public void decode(byte[] src, int srcOffset, float[] dst, int dstOffset, int samples) {
+        switch (kind) {
+            case U8 -> {
+                for (int i = 0; i < samples; i++) {
+                    dst[dstOffset + i] = ((src[srcOffset + i] & 0xFF) - 128) / 128.0f;
+                }
+            }
+            case S8 -> {
+                for (int i = 0; i < samples; i++) {
+                    dst[dstOffset + i] = src[srcOffset + i] / 128.0f;
+                }
+            }
+            case S16 -> {
+                int hi = bigEndian ? 0 : 1;
+                int lo = bigEndian ? 1 : 0;
+                for (int i = 0, p = srcOffset; i < samples; i++, p += 2) {
+                    dst[dstOffset + i] = (short) ((src[p + hi] << 8) | (src[p + lo] & 0xFF)) / 32768.0f;
+                }
+            }
+            case S24 -> {
+                int hi = bigEndian ? 0 : 2;
+                int lo = bigEndian ? 2 : 0;
+                for (int i = 0, p = srcOffset; i < samples; i++, p += 3) {
+                    int value = (src[p + hi] << 16) | ((src[p + 1] & 0xFF) << 8) | (src[p + lo] & 0xFF);
+                    dst[dstOffset + i] = value / 8388608.0f;
+                }
+            }
+            case S32 -> {
+                VarHandle handle = bigEndian ? INT_BE : INT_LE;
+                for (int i = 0; i < samples; i++) {
+                    dst[dstOffset + i] = (int) handle.get(src, srcOffset + 4 * i) * (1.0f / 2147483648.0f);
+                }
+            }
+            case F32 -> {
+                VarHandle handle = bigEndian ? FLOAT_BE : FLOAT_LE;
+                for (int i = 0; i < samples; i++) {
+                    dst[dstOffset + i] = (float) handle.get(src, srcOffset + 4 * i);
+                }
+            }
+        }
+    }
+
+    // Integer encodings clamp to [-1.0, 1.0] first, so overdriven mixes clip instead of wrapping around
+    public void encode(float[] src, int srcOffset, byte[] dst, int dstOffset, int samples) {
+        switch (kind) {
+            case U8 -> {
+                for (int i = 0; i < samples; i++) {
+                    dst[dstOffset + i] = (byte) ((int) (clamp(src[srcOffset + i]) * 127) + 128);
+                }
+            }
+            case S8 -> {
+                for (int i = 0; i < samples; i++) {
+                    dst[dstOffset + i] = (byte) (clamp(src[srcOffset + i]) * 127);
+                }
+            }
+            case S16 -> {
+                int hi = bigEndian ? 0 : 1;
+                int lo = bigEndian ? 1 : 0;
+                for (int i = 0, p = dstOffset; i < samples; i++, p += 2) {
+                    short value = (short) (clamp(src[srcOffset + i]) * 32767);
+                    dst[p + hi] = (byte) (value >> 8);
+                    dst[p + lo] = (byte) value;
+                }
+            }
+            case S24 -> {
+                int hi = bigEndian ? 0 : 2;
+                int lo = bigEndian ? 2 : 0;
+                for (int i = 0, p = dstOffset; i < samples; i++, p += 3) {
+                    int value = (int) (clamp(src[srcOffset + i]) * 8388607);
+                    dst[p + hi] = (byte) (value >> 16);
+                    dst[p + 1] = (byte) (value >> 8);
+                    dst[p + lo] = (byte) value;
+                }
+            }
+            case S32 -> {
+                VarHandle handle = bigEndian ? INT_BE : INT_LE;
+                for (int i = 0; i < samples; i++) {
+                    handle.set(dst, dstOffset + 4 * i, (int) (clamp(src[srcOffset + i]) * 2147483647.0));
+                }
+            }
+            case F32 -> {
+                VarHandle handle = bigEndian ? FLOAT_BE : FLOAT_LE;
+                for (int i = 0; i < samples; i++) {
+                    handle.set(dst, dstOffset + 4 * i, src[srcOffset + i]);
+                }
+            }
+        }
+    }
+
+    // Signed integer sample values exactly as encode() would store them, for integer formats up to 24 bits;
+    // 8-bit values are centred on 0 even for unsigned PCM
+    public void quantize(float[] src, int srcOffset, int[] dst, int dstOffset, int samples) {
+        float scale = switch (kind) {
+            case U8, S8 -> 127;
+            case S16 -> 32767;
+            case S24 -> 8388607;
+            default -> throw new IllegalStateException("No integer quantization for " + kind);
+        };
+        for (int i = 0; i < samples; i++) {
+            dst[dstOffset + i] = (int) (clamp(src[srcOffset + i]) * scale);
+        }
+    }
+
+    private static float clamp(float sample) {
+        return Math.max(-1.0f, Math.min(1.0f, sample));
+    }
+
+    private static Kind kindOf(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        if (AudioFormat.Encoding.PCM_FLOAT.equals(encoding)) {
+            return bits == 32 ? Kind.F32 : null;
+        }
+        if (AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)) {
+            return bits == 8 ? Kind.U8 : null;
+        }
+        if (AudioFormat.Encoding.PCM_SIGNED.equals(encoding)) {
+            return switch (bits) {
+                case 8 -> Kind.S8;
+                case 16 -> Kind.S16;
+                case 24 -> Kind.S24;
+                case 32 -> Kind.S32;
+                default -> null;
+            };
+        }
+        return null;
+    }
+}
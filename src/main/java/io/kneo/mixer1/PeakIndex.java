@@ -0,0 +1,351 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+// Waveform overview of a track: min, max and RMS over all channels, per bucket of frames, at several zoom levels.
+// Level 0 has a bucket every BASE_FRAMES frames (about 6 ms at 44.1 kHz), each level above merges FACTOR buckets of
+// the one below, up to a single bucket for the whole track; range() reads a time span at one level, level() picks
+// the level for a display resolution. Values are stored as bytes: min and max in 1/127 steps, rounded outwards so a
+// peak is never drawn lower than it is, and RMS in 1/255 steps. A 4 minute track takes about 160 KB.
+// The index is kept next to the track in a <track>.mxp file and reused while the track's size and modification time
+// are unchanged. It is built as a by-product of the passes that decode a whole track anyway (TrackAnalyzer,
+// DecodedTrackCache), or by of() with a decode of its own; -Dmixer1.peaks=false stops the by-product sidecars.
+public class PeakIndex {
+
+    static final int BASE_FRAMES = 256;
+    static final int FACTOR = 4;
+
+    private static final int SIDECAR_MAGIC = 0x4D585031; // "MXP1"
+    private static final String SIDECAR_SUFFIX = ".mxp";
+    private static final boolean ENABLED = !"false".equals(System.getProperty("mixer1.peaks"));
+
+    public final float sampleRate;
+    public final long frames;
+    private final byte[][] min; // [level][bucket]
+    private final byte[][] max;
+    private final byte[][] rms;
+
+    private PeakIndex(float sampleRate, long frames, byte[][] min, byte[][] max, byte[][] rms) {
+        this.sampleRate = sampleRate;
+        this.frames = frames;
+        this.min = min;
+        this.max = max;
+        this.rms = rms;
+    }
+
+    // A span of one level: bucket i covers startTime + i * bucketSeconds onwards
+    public static class Range {
+        public final int level;
+        public final float startTime;
+        public final float bucketSeconds;
+        public final float[] min;
+        public final float[] max;
+        public final float[] rms;
+
+        Range(int level, float startTime, float bucketSeconds, float[] min, float[] max, float[] rms) {
+            this.level = level;
+            this.startTime = startTime;
+            this.bucketSeconds = bucketSeconds;
+            this.min = min;
+            this.max = max;
+            this.rms = rms;
+        }
+
+        public int buckets() {
+            return min.length;
+        }
+    }
+
+    public int levels() {
+        return min.length;
+    }
+
+    public int buckets(int level) {
+        return min[level].length;
+    }
+
+    public long bucketFrames(int level) {
+        long frames = BASE_FRAMES;
+        for (int i = 0; i < level; i++) {
+            frames *= FACTOR;
+        }
+        return frames;
+    }
+
+    public float bucketSeconds(int level) {
+        return bucketFrames(level) / sampleRate;
+    }
+
+    public float duration() {
+        return frames / sampleRate;
+    }
+
+    // Coarsest level whose buckets are no longer than bucketSeconds, e.g. the seconds one pixel stands for; level 0
+    // if even its buckets are longer
+    public int level(float bucketSeconds) {
+        int level = 0;
+        while (level + 1 < levels() && bucketSeconds(level + 1) <= bucketSeconds) {
+            level++;
+        }
+        return level;
+    }
+
+    // The buckets of level that overlap [startTime, endTime) (endTime -1 = to the end)
+    public Range range(int level, float startTime, float endTime) {
+        if (level < 0 || level >= levels()) {
+            throw new IllegalArgumentException("Level " + level + " of " + levels());
+        }
+        long bucketFrames = bucketFrames(level);
+        int buckets = buckets(level);
+        int from = (int) Math.max(0, Math.min(buckets, (long) (startTime * sampleRate) / bucketFrames));
+        long endFrame = (long) Math.ceil(endTime * sampleRate);
+        int to = endTime == -1 ? buckets
+                : (int) Math.max(from, Math.min(buckets, (endFrame + bucketFrames - 1) / bucketFrames));
+        float[] minValues = new float[to - from];
+        float[] maxValues = new float[to - from];
+        float[] rmsValues = new float[to - from];
+        for (int i = from; i < to; i++) {
+            minValues[i - from] = min[level][i] / 127.0f;
+            maxValues[i - from] = max[level][i] / 127.0f;
+            rmsValues[i - from] = (rms[level][i] & 0xFF) / 255.0f;
+        }
+        float rangeStart = from * bucketFrames / sampleRate;
+        return new Range(level, rangeStart, bucketSeconds(level), minValues, maxValues, rmsValues);
+    }
+
+    // Collects buckets from interleaved samples as they are decoded
+    public static class Builder {
+        private final float sampleRate;
+        private final int channels;
+        private float[] min = new float[1024];
+        private float[] max = new float[1024];
+        private float[] meanSquare = new float[1024];
+        private int buckets;
+        private long frames;
+        private float bucketMin = Float.MAX_VALUE;
+        private float bucketMax = -Float.MAX_VALUE;
+        private double bucketEnergy;
+        private int bucketFrames;
+
+        public Builder(float sampleRate, int channels) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        public void add(float[] samples, int offset, int count) {
+            int s = offset;
+            for (int f = 0; f < count; f++) {
+                for (int c = 0; c < channels; c++, s++) {
+                    float sample = samples[s];
+                    bucketMin = Math.min(bucketMin, sample);
+                    bucketMax = Math.max(bucketMax, sample);
+                    bucketEnergy += sample * sample;
+                }
+                if (++bucketFrames == BASE_FRAMES) {
+                    endBucket();
+                }
+            }
+            frames += count;
+        }
+
+        public PeakIndex build() {
+            if (bucketFrames > 0) {
+                endBucket();
+            }
+            int levels = 1;
+            for (long span = BASE_FRAMES; span < frames; span *= FACTOR) {
+                levels++;
+            }
+            byte[][] minLevels = new byte[levels][];
+            byte[][] maxLevels = new byte[levels][];
+            byte[][] rmsLevels = new byte[levels][];
+            float[] levelMin = Arrays.copyOf(min, buckets);
+            float[] levelMax = Arrays.copyOf(max, buckets);
+            float[] levelMeanSquare = Arrays.copyOf(meanSquare, buckets);
+            long span = BASE_FRAMES;
+            for (int level = 0; level < levels; level++) {
+                minLevels[level] = quantize(levelMin, -1);
+                maxLevels[level] = quantize(levelMax, 1);
+                rmsLevels[level] = quantizeRms(levelMeanSquare);
+                if (level + 1 < levels) {
+                    int next = (levelMin.length + FACTOR - 1) / FACTOR;
+                    float[] nextMin = new float[next];
+                    float[] nextMax = new float[next];
+                    float[] nextMeanSquare = new float[next];
+                    for (int b = 0; b < next; b++) {
+                        float lo = Float.MAX_VALUE;
+                        float hi = -Float.MAX_VALUE;
+                        double energy = 0.0;
+                        long covered = 0;
+                        for (int i = b * FACTOR; i < Math.min(levelMin.length, (b + 1) * FACTOR); i++) {
+                            // Only the track's last bucket can be short
+                            long weight = Math.min(span, frames - i * span);
+                            lo = Math.min(lo, levelMin[i]);
+                            hi = Math.max(hi, levelMax[i]);
+                            energy += levelMeanSquare[i] * weight;
+                            covered += weight;
+                        }
+                        nextMin[b] = lo;
+                        nextMax[b] = hi;
+                        nextMeanSquare[b] = (float) (energy / covered);
+                    }
+                    levelMin = nextMin;
+                    levelMax = nextMax;
+                    levelMeanSquare = nextMeanSquare;
+                    span *= FACTOR;
+                }
+            }
+            return new PeakIndex(sampleRate, frames, minLevels, maxLevels, rmsLevels);
+        }
+
+        private void endBucket() {
+            if (buckets == min.length) {
+                min = Arrays.copyOf(min, buckets * 2);
+                max = Arrays.copyOf(max, buckets * 2);
+                meanSquare = Arrays.copyOf(meanSquare, buckets * 2);
+            }
+            min[buckets] = bucketMin;
+            max[buckets] = bucketMax;
+            meanSquare[buckets] = (float) (bucketEnergy / ((long) bucketFrames * channels));
+            buckets++;
+            bucketMin = Float.MAX_VALUE;
+            bucketMax = -Float.MAX_VALUE;
+            bucketEnergy = 0.0;
+            bucketFrames = 0;
+        }
+
+        // Peaks in 1/127 steps, rounded away from zero in direction (-1 for minima, 1 for maxima)
+        private static byte[] quantize(float[] values, int direction) {
+            byte[] quantized = new byte[values.length];
+            for (int i = 0; i < values.length; i++) {
+                double scaled = values[i] * 127.0;
+                double rounded = direction < 0 ? Math.floor(scaled) : Math.ceil(scaled);
+                quantized[i] = (byte) Math.max(-127, Math.min(127, rounded));
+            }
+            return quantized;
+        }
+
+        private static byte[] quantizeRms(float[] meanSquares) {
+            byte[] quantized = new byte[meanSquares.length];
+            for (int i = 0; i < meanSquares.length; i++) {
+                quantized[i] = (byte) Math.min(255, Math.round(Math.sqrt(meanSquares[i]) * 255.0));
+            }
+            return quantized;
+        }
+    }
+
+    // The stored index if it is still current, otherwise one from a decode of the whole track, stored for next time
+    public static PeakIndex of(String filePath) throws IOException, UnsupportedAudioFileException {
+        BasicFileAttributes attributes = Files.readAttributes(Path.of(filePath), BasicFileAttributes.class);
+        PeakIndex index = readSidecar(sidecar(filePath), attributes);
+        if (index != null) {
+            return index;
+        }
+        try (SampleReader reader = SampleReader.open(filePath)) {
+            Builder builder = new Builder(reader.sampleRate(), reader.channels());
+            float[] block = BufferPool.floats(SampleReader.BLOCK_SIZE * reader.channels());
+            int n;
+            while ((n = reader.read(block, 0, SampleReader.BLOCK_SIZE)) != -1) {
+                builder.add(block, 0, n);
+            }
+            BufferPool.release(block);
+            index = builder.build();
+        }
+        store(filePath, attributes, index);
+        return index;
+    }
+
+    // A Builder for a decode pass over the whole of filePath, or null if its sidecar is current or by-product
+    // sidecars are off
+    static Builder builderFor(String filePath, BasicFileAttributes attributes, float sampleRate, int channels) {
+        if (!ENABLED || isCurrent(sidecar(filePath), attributes)) {
+            return null;
+        }
+        return new Builder(sampleRate, channels);
+    }
+
+    // Writes the sidecar; attributes are the track's as they were before it was decoded. A track in a read-only
+    // folder just gets indexed again next time.
+    static void store(String filePath, BasicFileAttributes attributes, PeakIndex index) {
+        Path sidecar = sidecar(filePath);
+        Path temp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(SIDECAR_MAGIC);
+                out.writeLong(attributes.size());
+                out.writeLong(attributes.lastModifiedTime().toMillis());
+                out.writeFloat(index.sampleRate);
+                out.writeLong(index.frames);
+                out.writeInt(index.levels());
+                for (int level = 0; level < index.levels(); level++) {
+                    out.writeInt(index.buckets(level));
+                    out.write(index.min[level]);
+                    out.write(index.max[level]);
+                    out.write(index.rms[level]);
+                }
+            }
+            Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // nothing more to clean up
+            }
+        }
+    }
+
+    private static Path sidecar(String filePath) {
+        return Path.of(filePath + SIDECAR_SUFFIX);
+    }
+
+    private static boolean isCurrent(Path sidecar, BasicFileAttributes attributes) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar), 32))) {
+            return in.readInt() == SIDECAR_MAGIC
+                    && in.readLong() == attributes.size()
+                    && in.readLong() == attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Sidecar: magic, track size and modification time, sample rate and frames, then per level the bucket count and
+    // the min, max and RMS bytes. null if there is none, or it belongs to another version of the track.
+    private static PeakIndex readSidecar(Path sidecar, BasicFileAttributes attributes) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            if (in.readInt() != SIDECAR_MAGIC
+                    || in.readLong() != attributes.size()
+                    || in.readLong() != attributes.lastModifiedTime().toMillis()) {
+                return null;
+            }
+            float sampleRate = in.readFloat();
+            long frames = in.readLong();
+            int levels = in.readInt();
+            byte[][] min = new byte[levels][];
+            byte[][] max = new byte[levels][];
+            byte[][] rms = new byte[levels][];
+            for (int level = 0; level < levels; level++) {
+                int buckets = in.readInt();
+                min[level] = new byte[buckets];
+                max[level] = new byte[buckets];
+                rms[level] = new byte[buckets];
+                in.readFully(min[level]);
+                in.readFully(max[level]);
+                in.readFully(rms[level]);
+            }
+            return new PeakIndex(sampleRate, frames, min, max, rms);
+        } catch (IOException | NegativeArraySizeException e) {
+            // Missing, truncated or foreign file: index again and overwrite it
+            return null;
+        }
+    }
+}
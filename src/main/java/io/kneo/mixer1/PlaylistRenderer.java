@@ -0,0 +1,651 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Renders an ordered list of tracks into one output file, in the container AudioFileWriter.open picks for its path.
+// The output is a run of pieces: each track's body, and between two tracks their transition, the window where both
+// play plus any gap. A transition is a window of the graph the two-track mixers render (AudioMerger.crossfadeGraph,
+// AudioOutroIntro.outroIntroGraph), so it sounds the same as mixing the two tracks on their own; a body plays through
+// a one-track RenderGraph at the track's volume. Every piece streams its tracks from the files.
+// Output runs at the first track's sample rate and channel count; other tracks are resampled to that rate
+// and must have the same channel count. Lengths below are in frames.
+// A track is brought to the targetLufs of the settings its volume comes from, and the whole output goes through one
+// TruePeakLimiter when any track's settings ask for it, at the lowest ceiling asked for.
+// With a SegmentStore each piece is a segment, and only segments whose inputs or settings changed since an earlier
+// render are rendered again; editing one transition re-renders that transition and the bodies next to it and copies
+// everything else from the store.
+public class PlaylistRenderer {
+
+    public enum TransitionType {
+        CROSSFADE,   // AudioMerger.mergeAudioFiles with MixSettings
+        OUTRO_INTRO, // AudioOutroIntro.createOutroIntroMix with OutroIntroSettings
+        APPEND       // AudioOutroIntro.addSongToEnd
+    }
+
+    // A track and the transition that leads into it from the previous track.
+    // The transition of the first track is only used for its trim and volume.
+    public static class Track {
+        public final String path;
+        public final TransitionType transition;
+        public final AudioMerger.MixSettings mixSettings;
+        public final AudioOutroIntro.OutroIntroSettings outroIntroSettings;
+
+        private Track(String path, TransitionType transition, AudioMerger.MixSettings mixSettings,
+                      AudioOutroIntro.OutroIntroSettings outroIntroSettings) {
+            this.path = path;
+            this.transition = transition;
+            this.mixSettings = mixSettings;
+            this.outroIntroSettings = outroIntroSettings;
+        }
+
+        public static Track crossfade(String path, AudioMerger.MixProfile profile) {
+            return crossfade(path, profile.getSettings());
+        }
+
+        public static Track crossfade(String path, AudioMerger.MixSettings settings) {
+            return new Track(path, TransitionType.CROSSFADE, settings, null);
+        }
+
+        public static Track outroIntro(String path, AudioOutroIntro.OutroIntroSettings settings) {
+            return new Track(path, TransitionType.OUTRO_INTRO, null, settings);
+        }
+
+        public static Track append(String path) {
+            return new Track(path, TransitionType.APPEND, null, null);
+        }
+    }
+
+    public static void main(String[] args) {
+        String outputFile = "C:/Users/justa/Music/final_complete_mix.wav";
+
+        // Same block as AudioOutroIntro.main, without the intermediate file
+        List<Track> playlist = List.of(
+                Track.append("C:/Users/justa/Music/Brimborium.wav"),
+                Track.outroIntro("C:/Users/justa/Music/Intro_Lumar.wav", new AudioOutroIntro.OutroIntroSettings()),
+                Track.append("C:/Users/justa/Music/06. Dina Summer - Nothing To Hide (Moderna Remix).wav")
+        );
+
+        try {
+            render(playlist, outputFile);
+            System.out.println("Playlist rendered successfully: " + outputFile);
+        } catch (Exception e) {
+            System.err.println("Error rendering playlist: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public static void render(List<Track> tracks, String outputPath)
+            throws IOException, UnsupportedAudioFileException {
+        render(tracks, outputPath, Resampler.Quality.HIGH);
+    }
+
+    // Incremental through the shared SegmentStore when -Dmixer1.segments.dir is set
+    public static void render(List<Track> tracks, String outputPath, Resampler.Quality resampleQuality)
+            throws IOException, UnsupportedAudioFileException {
+        render(tracks, outputPath, resampleQuality, SegmentStore.shared());
+    }
+
+    // The output is the same with and without a store. A track whose length is not known up front (a stream without
+    // a frame count) is decoded into memory once to find it, and such playlists cannot be cut into segments, so they
+    // always take the single pass.
+    public static void render(List<Track> tracks, String outputPath, Resampler.Quality resampleQuality,
+                              SegmentStore store) throws IOException, UnsupportedAudioFileException {
+        if (tracks.isEmpty()) {
+            throw new IllegalArgumentException("Playlist is empty");
+        }
+
+        AudioFormat format = checkFormats(tracks);
+        Layout layout = layout(tracks, format.getSampleRate(), resampleQuality);
+        if (store != null && store.isEnabled() && layout.streamed()) {
+            renderSegments(tracks, layout, outputPath, format, resampleQuality, store);
+            return;
+        }
+
+        try (AudioFileWriter writer = AudioFileWriter.open(outputPath, AudioFormats.outputFormat(format));
+             QuietTail out = new QuietTail(writer)) {
+            writer.setLimiter(limiter(tracks, format));
+            for (int k = 0; k < tracks.size(); k++) {
+                if (k > 0) {
+                    if (layout.transitionLength(k) > 0) {
+                        renderTransition(tracks, layout, k, out, resampleQuality);
+                    }
+                    if (tracks.get(k).transition == TransitionType.APPEND) {
+                        out.trimTrailingSilence();
+                    }
+                }
+                if (layout.bodyLength(k) > 0) {
+                    renderBody(tracks, layout, k, out, resampleQuality);
+                }
+            }
+        }
+    }
+
+    // Where each track's head, body and tail fall, so the pieces can be rendered independently. Transition k is
+    // rendered on its graph's timeline, where track k - 1 starts at frame 0: from the start of that track's tail to
+    // its end plus the gap.
+    private static class Layout {
+        final long[] lengths;  // trimmed
+        final int[] heads;     // frames of the track inside the transition into it
+        final int[] tails;     // frames of the track inside the transition out of it
+        final int[] gaps;      // silence at the end of the transition into the track
+        final float[] volumes;
+        final SampleBuffer[] decoded; // tracks of unknown length, decoded at the output rate; null for the others
+
+        Layout(int count) {
+            lengths = new long[count];
+            heads = new int[count];
+            tails = new int[count];
+            gaps = new int[count];
+            volumes = new float[count];
+            decoded = new SampleBuffer[count];
+        }
+
+        long bodyLength(int k) {
+            return lengths[k] - heads[k] - tails[k];
+        }
+
+        long transitionLength(int k) {
+            return tails[k - 1] + gaps[k];
+        }
+
+        boolean streamed() {
+            for (SampleBuffer samples : decoded) {
+                if (samples != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Lengths as the transition graphs arrive at them: a graph places the incoming track overlapLength before the
+    // end of the outgoing one (or after the gap), and the outgoing track's tail starts where the first of its fade
+    // and that overlap does. The tail of a track too short for both of its transitions is cut to what is left after
+    // its head.
+    private static Layout layout(List<Track> tracks, float sampleRate, Resampler.Quality resampleQuality)
+            throws IOException, UnsupportedAudioFileException {
+        Layout layout = new Layout(tracks.size());
+        for (int k = 0; k < tracks.size(); k++) {
+            Track track = tracks.get(k);
+            Track next = k + 1 < tracks.size() ? tracks.get(k + 1) : null;
+            try (SampleReader reader = SampleReader.open(track.path, sampleRate, resampleQuality)) {
+                SampleReader measured = reader;
+                if (reader.length() == -1) {
+                    layout.decoded[k] = reader.readAll();
+                    measured = new SampleBufferReader(layout.decoded[k]);
+                }
+                layout.lengths[k] = AudioMerger.trimmedLength(measured, startTime(track, next, k), endTime(track, next));
+            }
+            layout.volumes[k] = volume(track, next, k);
+            float targetLufs = targetLufs(track, next, k);
+            if (targetLufs != 0.0f) {
+                layout.volumes[k] *= LoudnessMeter.normalizationGain(track.path, targetLufs);
+            }
+        }
+        for (int k = 1; k < tracks.size(); k++) {
+            Track track = tracks.get(k);
+            long previous = layout.lengths[k - 1];
+            layout.gaps[k] = track.transition == TransitionType.CROSSFADE
+                    ? Math.max(0, gapFrames(track.mixSettings, sampleRate)) : 0;
+            layout.heads[k] = (int) Math.min(overlapLength(track, previous, sampleRate), layout.lengths[k]);
+            layout.tails[k - 1] = (int) Math.min(outgoingLength(track, previous, sampleRate),
+                    previous - layout.heads[k - 1]);
+        }
+        return layout;
+    }
+
+    // Writes the output as body 0, transition 1, body 1, ... taken from the store, rendering missing segments first.
+    // Segments are 16-bit WAV, copied into a WAV output as they are, or 32-bit float when the output is limited or in
+    // another container, so the samples the limiter and encoder get are the ones they would get in the single pass.
+    private static void renderSegments(List<Track> tracks, Layout layout, String outputPath, AudioFormat format,
+                                       Resampler.Quality resampleQuality, SegmentStore store)
+            throws IOException, UnsupportedAudioFileException {
+        AudioFormat outputFormat = AudioFormats.outputFormat(format);
+        TruePeakLimiter limiter = limiter(tracks, format);
+        float sampleRate = format.getSampleRate();
+        try (AudioFileWriter writer = AudioFileWriter.open(outputPath, outputFormat)) {
+            writer.setLimiter(limiter);
+            AudioFormat segmentFormat = writer instanceof WavStreamWriter && limiter == null ? outputFormat
+                    : new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, sampleRate, 32, format.getChannels(),
+                    4 * format.getChannels(), sampleRate, false);
+            SegmentList out = new SegmentList(writer);
+            for (int k = 0; k < tracks.size(); k++) {
+                Track track = tracks.get(k);
+                int index = k;
+                if (k > 0) {
+                    if (layout.transitionLength(k) > 0) {
+                        out.append(store.get(transitionKey(tracks, layout, k, segmentFormat, resampleQuality),
+                                path -> renderSegment(path, segmentFormat,
+                                        sink -> renderTransition(tracks, layout, index, sink, resampleQuality))));
+                    }
+                    if (track.transition == TransitionType.APPEND) {
+                        out.trimTrailingSilence();
+                    }
+                }
+                if (layout.bodyLength(k) > 0) {
+                    out.append(store.get(bodyKey(tracks, layout, k, segmentFormat, resampleQuality),
+                            path -> renderSegment(path, segmentFormat,
+                                    sink -> renderBody(tracks, layout, index, sink, resampleQuality))));
+                }
+            }
+            out.write();
+        }
+    }
+
+    private interface Piece {
+        void render(AudioFileWriter sink) throws IOException;
+    }
+
+    private static void renderSegment(String path, AudioFormat format, Piece piece) throws IOException {
+        try (WavStreamWriter writer = new WavStreamWriter(path, format)) {
+            piece.render(writer);
+        }
+    }
+
+    // Everything a track's samples depend on before they are mixed: the file, its trim, volume and loudness target
+    private static List<Object> source(List<Track> tracks, Layout layout, int k) throws IOException {
+        Track track = tracks.get(k);
+        Track next = k + 1 < tracks.size() ? tracks.get(k + 1) : null;
+        return List.of(DecodedTrackCache.key(track.path), startTime(track, next, k), endTime(track, next),
+                layout.volumes[k], targetLufs(track, next, k));
+    }
+
+    private static String bodyKey(List<Track> tracks, Layout layout, int k, AudioFormat segmentFormat,
+                                  Resampler.Quality resampleQuality) throws IOException {
+        return SegmentStore.key("body", segmentFormat, resampleQuality, source(tracks, layout, k),
+                layout.heads[k], layout.bodyLength(k));
+    }
+
+    // The limiter settings only change segments through clampOverlaps, but are part of the key all the same
+    private static String transitionKey(List<Track> tracks, Layout layout, int k, AudioFormat segmentFormat,
+                                        Resampler.Quality resampleQuality) throws IOException {
+        Track track = tracks.get(k);
+        Object settings = switch (track.transition) {
+            case CROSSFADE -> List.of(track.mixSettings.crossfadeSeconds, track.mixSettings.gapSeconds,
+                    track.mixSettings.song1MinVolume, track.mixSettings.song2MinVolume, track.mixSettings.fadeCurve,
+                    track.mixSettings.truePeakLimit, track.mixSettings.limiterCeilingDb);
+            case OUTRO_INTRO -> List.of(track.outroIntroSettings.outroFadeStartSeconds,
+                    track.outroIntroSettings.introStartDelay, track.outroIntroSettings.fadeToVolume,
+                    track.outroIntroSettings.fadeCurve, track.outroIntroSettings.duck,
+                    track.outroIntroSettings.duckThresholdDb, track.outroIntroSettings.duckRatio,
+                    track.outroIntroSettings.duckAttackMs, track.outroIntroSettings.duckReleaseMs,
+                    track.outroIntroSettings.truePeakLimit, track.outroIntroSettings.limiterCeilingDb);
+            case APPEND -> List.of();
+        };
+        return SegmentStore.key("transition", segmentFormat, resampleQuality, track.transition, settings,
+                source(tracks, layout, k - 1), layout.lengths[k - 1], layout.tails[k - 1],
+                source(tracks, layout, k), layout.heads[k]);
+    }
+
+    // The part of track k between its head and its tail, at the track's volume
+    private static void renderBody(List<Track> tracks, Layout layout, int k, AudioFileWriter sink,
+                                   Resampler.Quality resampleQuality) throws IOException {
+        Track track = tracks.get(k);
+        Track next = k + 1 < tracks.size() ? tracks.get(k + 1) : null;
+        try (SampleReader reader = open(layout, tracks, k, sink.getFormat().getSampleRate(), resampleQuality)) {
+            RenderGraph graph = new RenderGraph(reader.channels(), MixMetrics.NONE).copyThrough(false);
+            graph.add(reader, 0).trim(startTime(track, next, k), endTime(track, next)).gain(layout.volumes[k]);
+            graph.render(sink, layout.heads[k], layout.lengths[k] - layout.tails[k]);
+        }
+    }
+
+    // The tail of track k - 1 with the head of track k, then the gap if there is one, as the transition's graph
+    // renders them. Nothing is copied through, so a piece comes out the same in a segment as in the single pass.
+    private static void renderTransition(List<Track> tracks, Layout layout, int k, AudioFileWriter sink,
+                                         Resampler.Quality resampleQuality) throws IOException {
+        Track previous = tracks.get(k - 1);
+        Track track = tracks.get(k);
+        Track next = k + 1 < tracks.size() ? tracks.get(k + 1) : null;
+        float sampleRate = sink.getFormat().getSampleRate();
+        try (SampleReader outgoing = open(layout, tracks, k - 1, sampleRate, resampleQuality);
+             SampleReader incoming = open(layout, tracks, k, sampleRate, resampleQuality)) {
+            RenderGraph graph = switch (track.transition) {
+                case CROSSFADE -> {
+                    AudioMerger.MixSettings settings = track.mixSettings.copy();
+                    settings.song1StartTime = startTime(previous, track, k - 1);
+                    settings.song1EndTime = endTime(previous, track);
+                    settings.song2StartTime = startTime(track, next, k);
+                    settings.song2EndTime = endTime(track, next);
+                    settings.song1Volume = layout.volumes[k - 1];
+                    settings.song2Volume = layout.volumes[k];
+                    yield AudioMerger.crossfadeGraph(outgoing, incoming, settings, true, MixMetrics.NONE);
+                }
+                case OUTRO_INTRO -> AudioOutroIntro.outroIntroGraph(outgoing, startTime(previous, track, k - 1),
+                        endTime(previous, track), incoming, startTime(track, next, k), endTime(track, next),
+                        track.outroIntroSettings, layout.volumes[k - 1], layout.volumes[k], MixMetrics.NONE);
+                case APPEND -> throw new IllegalStateException("APPEND has no transition to render");
+            };
+            long end = layout.lengths[k - 1];
+            long from = end - layout.tails[k - 1];
+            graph.copyThrough(false);
+            // A ducked track can only be rendered from its key's start; a window that starts later (the tail of a
+            // track too short for both of its transitions) is rendered from there and the frames before it dropped
+            long keyStart = track.transition == TransitionType.OUTRO_INTRO && track.outroIntroSettings.duck
+                    ? end - overlapLength(track, end, sampleRate) : from;
+            if (keyStart < from) {
+                try (Dropping window = new Dropping(sink, (from - keyStart) * sink.getFormat().getChannels())) {
+                    graph.render(window, keyStart, end + layout.gaps[k]);
+                }
+            } else {
+                graph.render(sink, from, end + layout.gaps[k]);
+            }
+        }
+    }
+
+    private static SampleReader open(Layout layout, List<Track> tracks, int k, float sampleRate,
+                                     Resampler.Quality resampleQuality) throws IOException {
+        if (layout.decoded[k] != null) {
+            return new SampleBufferReader(layout.decoded[k]);
+        }
+        try {
+            return SampleReader.open(tracks.get(k).path, sampleRate, resampleQuality);
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Opens every track up front so a mismatched format fails before any output is written
+    private static AudioFormat checkFormats(List<Track> tracks) throws IOException, UnsupportedAudioFileException {
+        AudioFormat first = null;
+        for (Track track : tracks) {
+            try (SampleReader reader = SampleReader.open(track.path)) {
+                if (first == null) {
+                    first = reader.getFormat();
+                } else if (reader.channels() != first.getChannels()) {
+                    throw new UnsupportedAudioFileException("Channel count of " + track.path + " (" + reader.channels()
+                            + ") does not match " + tracks.get(0).path + " (" + first.getChannels() + ")");
+                }
+            }
+        }
+        return first;
+    }
+
+    // Trim and volume of a track come from the transition into it; the first track uses the one out of it
+
+    private static float startTime(Track track, Track next, int index) {
+        if (index == 0) {
+            return next != null && next.transition == TransitionType.CROSSFADE ? next.mixSettings.song1StartTime : 0.0f;
+        }
+        return track.transition == TransitionType.CROSSFADE ? track.mixSettings.song2StartTime : 0.0f;
+    }
+
+    private static float endTime(Track track, Track next) {
+        if (next != null) {
+            return next.transition == TransitionType.CROSSFADE ? next.mixSettings.song1EndTime : -1.0f;
+        }
+        return track.transition == TransitionType.CROSSFADE ? track.mixSettings.song2EndTime : -1.0f;
+    }
+
+    private static float volume(Track track, Track next, int index) {
+        if (index == 0) {
+            if (next == null) {
+                return 1.0f;
+            }
+            return switch (next.transition) {
+                case CROSSFADE -> next.mixSettings.song1Volume;
+                case OUTRO_INTRO -> next.outroIntroSettings.mainSongVolume;
+                case APPEND -> 1.0f;
+            };
+        }
+        return switch (track.transition) {
+            case CROSSFADE -> track.mixSettings.song2Volume;
+            case OUTRO_INTRO -> track.outroIntroSettings.introVolume;
+            case APPEND -> 1.0f;
+        };
+    }
+
+    private static float targetLufs(Track track, Track next, int index) {
+        Track settings = index == 0 ? next : track;
+        if (settings == null) {
+            return 0.0f;
+        }
+        return switch (settings.transition) {
+            case CROSSFADE -> settings.mixSettings.targetLufs;
+            case OUTRO_INTRO -> settings.outroIntroSettings.targetLufs;
+            case APPEND -> 0.0f;
+        };
+    }
+
+    // One limiter for the whole output, or null if no track's settings ask for it
+    private static TruePeakLimiter limiter(List<Track> tracks, AudioFormat format) {
+        float ceilingDb = Float.POSITIVE_INFINITY;
+        for (Track track : tracks) {
+            if (track.transition == TransitionType.CROSSFADE && track.mixSettings.truePeakLimit) {
+                ceilingDb = Math.min(ceilingDb, track.mixSettings.limiterCeilingDb);
+            } else if (track.transition == TransitionType.OUTRO_INTRO && track.outroIntroSettings.truePeakLimit) {
+                ceilingDb = Math.min(ceilingDb, track.outroIntroSettings.limiterCeilingDb);
+            }
+        }
+        if (ceilingDb == Float.POSITIVE_INFINITY) {
+            return null;
+        }
+        return new TruePeakLimiter(format.getSampleRate(), format.getChannels(), ceilingDb);
+    }
+
+    private static int gapFrames(AudioMerger.MixSettings settings, float sampleRate) {
+        return AudioFormats.frames(settings.gapSeconds, sampleRate);
+    }
+
+    // Frames of the incoming track that play before the outgoing one ends, as the transition's graph places it
+    private static long overlapLength(Track track, long outgoingLength, float sampleRate) {
+        return switch (track.transition) {
+            case CROSSFADE -> gapFrames(track.mixSettings, sampleRate) > 0 ? 0
+                    : Math.min(AudioFormats.frames(track.mixSettings.crossfadeSeconds, sampleRate), outgoingLength);
+            case OUTRO_INTRO -> outgoingLength - AudioOutroIntro.introStartFrame(track.outroIntroSettings,
+                    (int) outgoingLength, sampleRate);
+            case APPEND -> 0;
+        };
+    }
+
+    // Frames at the end of the outgoing track that the transition changes: the overlap, and the outro fade unless
+    // the track is ducked under the intro instead
+    private static long outgoingLength(Track track, long outgoingLength, float sampleRate) {
+        if (track.transition != TransitionType.OUTRO_INTRO || track.outroIntroSettings.duck) {
+            return overlapLength(track, outgoingLength, sampleRate);
+        }
+        AudioOutroIntro.OutroIntroSettings settings = track.outroIntroSettings;
+        int fadeStart = AudioOutroIntro.fadeStartFrame(settings, (int) outgoingLength, sampleRate);
+        int introStart = AudioOutroIntro.introStartFrame(settings, (int) outgoingLength, sampleRate);
+        return outgoingLength - Math.min(fadeStart, introStart);
+    }
+
+    // Last sample at or above the silence threshold addSongToEnd applies to 16-bit samples, tested on the values the
+    // output will hold; -1 if none is
+    private static int lastLoudSample(float[] samples, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            short pcmSample = (short) (Math.max(-1.0f, Math.min(1.0f, samples[i])) * 32767);
+            if (Math.abs(pcmSample / 32768.0f) > 0.01f) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Output assembled from stored segments. They are only listed until write(), so APPEND can trim trailing silence
+    // the way QuietTail does by scanning back through the list; then each goes out byte for byte when the output
+    // takes it as it is, and is decoded and written otherwise (float segments, through the limiter, FLAC output).
+    private static class SegmentList {
+        private final AudioFileWriter writer;
+        private final List<Path> paths = new ArrayList<>();
+        private final List<Long> frames = new ArrayList<>();
+
+        SegmentList(AudioFileWriter writer) {
+            this.writer = writer;
+        }
+
+        void append(Path segment) throws IOException {
+            try (WavReader reader = WavReader.open(segment.toString())) {
+                paths.add(segment);
+                frames.add(reader.length());
+            } catch (UnsupportedAudioFileException e) {
+                throw new IOException("Corrupt segment " + segment, e);
+            }
+        }
+
+        void trimTrailingSilence() throws IOException {
+            for (int i = paths.size() - 1; i >= 0; i--) {
+                long loud = loudLength(paths.get(i), frames.get(i));
+                if (loud > 0) {
+                    frames.set(i, loud);
+                    paths.subList(i + 1, paths.size()).clear();
+                    frames.subList(i + 1, frames.size()).clear();
+                    return;
+                }
+            }
+        }
+
+        void write() throws IOException {
+            for (int i = 0; i < paths.size(); i++) {
+                try (WavReader reader = WavReader.open(paths.get(i).toString())) {
+                    if (writer.canCopyFrom(reader)) {
+                        writer.copyFrom(reader, frames.get(i));
+                    } else {
+                        decode(reader, frames.get(i));
+                    }
+                } catch (UnsupportedAudioFileException e) {
+                    throw new IOException("Corrupt segment " + paths.get(i), e);
+                }
+            }
+        }
+
+        private void decode(WavReader reader, long count) throws IOException {
+            int channels = reader.channels();
+            float[] block = BufferPool.floats(SampleReader.BLOCK_SIZE * channels);
+            try {
+                for (long done = 0; done < count; ) {
+                    int n = reader.read(block, 0, (int) Math.min(SampleReader.BLOCK_SIZE, count - done));
+                    if (n <= 0) {
+                        throw new IOException("Segment ended after " + done + " of " + count + " frames");
+                    }
+                    writer.write(block, 0, n * channels);
+                    done += n;
+                }
+            } finally {
+                BufferPool.release(block);
+            }
+        }
+
+        // Frames up to and including the last one with a loud sample among the first count; 0 if there is none.
+        // 16-bit segments hold the values the output will, float ones are tested as QuietTail tests what it is given.
+        private static long loudLength(Path segment, long count) throws IOException {
+            try (WavReader reader = WavReader.open(segment.toString())) {
+                int channels = reader.channels();
+                boolean quantized = !AudioFormat.Encoding.PCM_FLOAT.equals(reader.getFormat().getEncoding());
+                float[] block = BufferPool.floats(SampleReader.BLOCK_SIZE * channels);
+                try {
+                    for (long end = count; end > 0; ) {
+                        long start = Math.max(0, end - SampleReader.BLOCK_SIZE);
+                        reader.seek(start);
+                        int n = reader.read(block, 0, (int) (end - start));
+                        int last = n <= 0 ? -1 : quantized ? AudioOutroIntro.lastLoudSample(block, 0, n * channels)
+                                : lastLoudSample(block, 0, n * channels);
+                        if (last >= 0) {
+                            return start + last / channels + 1;
+                        }
+                        end = start;
+                    }
+                    return 0;
+                } finally {
+                    BufferPool.release(block);
+                }
+            } catch (UnsupportedAudioFileException e) {
+                throw new IOException("Corrupt segment " + segment, e);
+            }
+        }
+    }
+
+    // Passes on what is rendered into it after the first skip samples; the sink itself is closed by its owner
+    private static final class Dropping extends AudioFileWriter {
+        private final AudioFileWriter sink;
+        private long skip;
+        private long written;
+
+        Dropping(AudioFileWriter sink, long skip) {
+            super(sink.getFormat());
+            this.sink = sink;
+            this.skip = skip;
+        }
+
+        @Override
+        protected void encode(float[] samples, int offset, int length) throws IOException {
+            int dropped = (int) Math.min(skip, length);
+            skip -= dropped;
+            sink.write(samples, offset + dropped, length - dropped);
+            written += length - dropped;
+        }
+
+        @Override
+        public long samplesWritten() {
+            return written;
+        }
+
+        @Override
+        public void truncate(long count) {
+            throw new UnsupportedOperationException("A transition window is not truncated");
+        }
+
+        @Override
+        protected void finish() {
+        }
+    }
+
+    // Passes samples on to the output, holding back the quiet frames after the last loud one, so APPEND can drop the
+    // mix's trailing silence before the next track as addSongToEnd does. A quiet stretch is held in memory until
+    // something loud follows it; a mix that has been quiet all along is never trimmed.
+    private static final class QuietTail extends AudioFileWriter {
+        private final AudioFileWriter output;
+        private final SampleBuffer held;
+        private boolean loud;
+
+        QuietTail(AudioFileWriter output) {
+            super(output.getFormat());
+            this.output = output;
+            this.held = new SampleBuffer(format.getChannels(), format.getSampleRate());
+        }
+
+        @Override
+        protected void encode(float[] samples, int offset, int length) throws IOException {
+            int last = lastLoudSample(samples, offset, offset + length);
+            if (last < 0) {
+                held.add(samples, offset, length);
+                return;
+            }
+            // Keep the whole frame the last loud sample belongs to
+            int channels = format.getChannels();
+            int loudLength = ((last - offset) / channels + 1) * channels;
+            output.write(held.array(), 0, held.size());
+            held.clear();
+            output.write(samples, offset, loudLength);
+            held.add(samples, offset + loudLength, length - loudLength);
+            loud = true;
+        }
+
+        void trimTrailingSilence() {
+            if (loud) {
+                held.clear();
+            }
+        }
+
+        @Override
+        public long samplesWritten() {
+            return output.samplesWritten() + held.size();
+        }
+
+        @Override
+        public void truncate(long count) {
+            throw new UnsupportedOperationException("Playlist output is only trimmed through trimTrailingSilence");
+        }
+
+        // The output itself is closed by its owner
+        @Override
+        protected void finish() throws IOException {
+            output.write(held.array(), 0, held.size());
+            held.clear();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package io.kneo.mixer1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Pull-based block renderer for transitions.
+// A graph is a set of tracks placed on one output timeline. Each track is a source (a SampleReader) with its trim,
+// gain and envelope stages; the mixer sums whatever tracks are active and pushes the result into the sink, an
+// AudioFileWriter, which runs the limiter if one is set. MixSettings and OutroIntroSettings compile into graphs
+// (AudioMerger.crossfadeGraph, AudioOutroIntro.outroIntroGraph).
+// The per-block stages are fused: a track's gain and envelope become one gain per sample, and each block of decoded
+// samples is scaled, mixed and optionally clamped in one kernel pass while it is still in cache, instead of one pass
+// per stage over the whole track. Spans where a single track plays at unity gain go to the sink's copyFrom when it
+// can take the source's bytes as they are.
+// render(sink, from, to) renders a window of the timeline, seeking each track to it, which is how ParallelRenderer
+// splits one output across threads: gains and envelopes depend only on frame positions, so windows rendered from
+// separate copies of a graph join up into the same samples as one render of the whole timeline. The exception is a
+// ducked track (Track.duck), whose gain depends on the key's history; its window cannot start after the key does.
+// Block buffers come from the BufferPool for the length of render(), so a graph is rendered once.
+public final class RenderGraph {
+
+    private static final int BLOCK_FRAMES = 1024; // four blocks of stereo floats fit in L1
+
+    private final int channels;
+    private final MixMetrics metrics;
+    private final List<Track> tracks = new ArrayList<>();
+    private boolean clampOverlaps;
+    private boolean copyThrough = true;
+
+    public RenderGraph(int channels, MixMetrics metrics) {
+        this.channels = channels;
+        this.metrics = metrics;
+    }
+
+    // Adds reader as a track whose first frame plays at output frame start
+    public Track add(SampleReader reader, long start) {
+        if (reader.channels() != channels) {
+            throw new IllegalArgumentException("Track has " + reader.channels() + " channels, graph has " + channels);
+        }
+        Track track = new Track(reader, start);
+        tracks.add(track);
+        return track;
+    }
+
+    // Hard-clips the output to [-1, 1] wherever two or more tracks play
+    public RenderGraph clampOverlaps(boolean clamp) {
+        this.clampOverlaps = clamp;
+        return this;
+    }
+
+    // Whether untouched spans may be copied to the sink as raw bytes
+    public RenderGraph copyThrough(boolean copyThrough) {
+        this.copyThrough = copyThrough;
+        return this;
+    }
+
+    // Output frame where the last track ends, Long.MAX_VALUE while a track's length is unknown
+    public long frames() {
+        long end = 0;
+        for (Track track : tracks) {
+            if (track.frames == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+            end = Math.max(end, track.start + track.frames);
+        }
+        return end;
+    }
+
+    // Renders the whole timeline into sink; the readers are left open
+    public void render(AudioFileWriter sink) throws IOException {
+        render(sink, 0, Long.MAX_VALUE);
+    }
+
+    // Renders output frames [from, to) into sink, after skipping every track to from
+    public void render(AudioFileWriter sink, long from, long to) throws IOException {
+        for (Track track : tracks) {
+            track.skipTo(from);
+        }
+        for (Track track : tracks) {
+            track.borrowBuffers();
+        }
+        try {
+            renderBlocks(sink, from, to);
+        } finally {
+            for (Track track : tracks) {
+                track.releaseBuffers();
+            }
+        }
+    }
+
+    // The block loop walks its lists by index, as iterators would be garbage on every block
+    private void renderBlocks(AudioFileWriter sink, long from, long to) throws IOException {
+        MixKernels kernels = MixKernels.get();
+        List<Track> active = new ArrayList<>(tracks.size());
+
+        long position = from;
+        while (position < to) {
+            // Blocks end early where a track starts, ends or its envelope starts or stops, so a track always joins at a
+            // block boundary and whether a frame is copied through depends on that frame, not on where blocks fall
+            long next = Math.min(position + BLOCK_FRAMES, to);
+            active.clear();
+            boolean more = false;
+            for (int t = 0; t < tracks.size(); t++) {
+                Track track = tracks.get(t);
+                if (track.finished()) {
+                    continue;
+                }
+                more = true;
+                if (track.start > position) {
+                    next = Math.min(next, track.start);
+                } else {
+                    active.add(track);
+                    next = Math.min(next, track.nextChange());
+                }
+            }
+            if (!more) {
+                break;
+            }
+            int frames = (int) (next - position);
+
+            if (active.isEmpty()) {
+                sink.writeSilence((long) frames * channels);
+                position = next;
+                continue;
+            }
+            if (active.size() == 1 && copyThrough) {
+                Track track = active.get(0);
+                long copyable = Math.min(track.copyableFrames(sink), Math.min(nextStart(position), to) - position);
+                if (copyable > 0) {
+                    position += track.copyTo(sink, copyable);
+                    continue;
+                }
+            }
+
+            // Pull every active track and work out all gains while the blocks are as decoded (a ducked track reads
+            // its key's), then apply them and sum in one pass into the first track's block
+            int length = 0;
+            for (int t = 0; t < active.size(); t++) {
+                length = Math.max(length, active.get(t).pull(frames));
+            }
+            long start = metrics.start();
+            for (int t = 0; t < active.size(); t++) {
+                active.get(t).gains(length, active);
+            }
+            Track first = active.get(0);
+            if (active.size() == 1) {
+                kernels.multiply(first.block, 0, first.blockGains, 0, length * channels);
+            } else {
+                Track second = active.get(1);
+                kernels.mix(first.block, 0, first.blockGains, second.block, 0, second.blockGains, length * channels);
+                for (int t = 2; t < active.size(); t++) {
+                    Track track = active.get(t);
+                    kernels.multiply(track.block, 0, track.blockGains, 0, length * channels);
+                    kernels.add(first.block, 0, track.block, 0, length * channels);
+                }
+                if (clampOverlaps) {
+                    metrics.countClips(first.block, 0, length * channels);
+                    kernels.clamp(first.block, 0, length * channels, -1.0f, 1.0f);
+                }
+            }
+            metrics.stop(MixMetrics.Stage.MIX, start, (long) length * channels);
+
+            // With nothing read, every active track has just ended and the next round moves past them
+            if (length > 0) {
+                sink.write(first.block, 0, length * channels);
+                position += length;
+            }
+        }
+    }
+
+    // Output frame where the next track after position starts, or Long.MAX_VALUE
+    private long nextStart(long position) {
+        long next = Long.MAX_VALUE;
+        for (int t = 0; t < tracks.size(); t++) {
+            Track track = tracks.get(t);
+            if (track.start > position && !track.finished()) {
+                next = Math.min(next, track.start);
+            }
+        }
+        return next;
+    }
+
+    // A source with its trim, gain and envelope stages, applied together per block
+    public final class Track {
+        private SampleReader reader;
+        private final long start; // output frame of the track's first frame
+        private long frames; // Long.MAX_VALUE while unknown
+        private float gain = 1.0f;
+        private FadeEnvelope envelope;
+        private boolean rising;
+        private float floor;
+        private long envelopeStart; // track frame
+        private long envelopeFrames;
+        private float[] envelopeGains;
+        private Track key; // the track this one ducks under, with ducker
+        private Ducker ducker;
+        private long position; // track frames pulled so far
+        private long blockStart; // track frame at the start of block
+        private boolean ended;
+        private float[] block;
+        private float[] blockGains;
+
+        private Track(SampleReader reader, long start) {
+            this.reader = reader;
+            this.start = start;
+            this.frames = reader.length() == -1 ? Long.MAX_VALUE : reader.length();
+        }
+
+        // Plays only [startTime, endTime) of the source (endTime -1 = to the end); seeks straight away
+        public Track trim(float startTime, float endTime) throws IOException {
+            long t = metrics.start();
+            frames = AudioMerger.seekToStart(reader, startTime, endTime);
+            metrics.stop(MixMetrics.Stage.TRIM, t, 0);
+            return this;
+        }
+
+        public Track gain(float gain) {
+            this.gain = gain;
+            return this;
+        }
+
+        // Falls from 1.0 to floor over fadeLength frames, for the length frames from track frame from; 1.0 elsewhere
+        public Track fadeOut(FadeCurve curve, int fadeLength, float floor, long from, long length) {
+            return envelope(curve, fadeLength, floor, from, length, false);
+        }
+
+        // Rises from floor to 1.0 over fadeLength frames, for the length frames from track frame from; floor before
+        // them and 1.0 after
+        public Track fadeIn(FadeCurve curve, int fadeLength, float floor, long from, long length) {
+            return envelope(curve, fadeLength, floor, from, length, true);
+        }
+
+        private Track envelope(FadeCurve curve, int fadeLength, float floor, long from, long length, boolean rising) {
+            this.envelope = length > 0 ? new FadeEnvelope(curve, fadeLength, channels) : null;
+            this.floor = floor;
+            this.envelopeStart = from;
+            this.envelopeFrames = length;
+            this.rising = rising;
+            return this;
+        }
+
+        // Turns the track down while key plays, as ducker follows key's level (after key's gain); on top of the gain
+        // and envelope. Nothing of this track is copied through from key's start on.
+        public Track duck(Track key, Ducker ducker) {
+            this.key = key;
+            this.ducker = ducker;
+            return this;
+        }
+
+        // Frames the track plays, Long.MAX_VALUE while that is unknown
+        public long frames() {
+            return frames;
+        }
+
+        // Makes frames() exact; a stream of unknown length, which may also end before the trim end, is decoded
+        // into memory to find out
+        public Track measure() throws IOException {
+            if (reader.length() == -1) {
+                SampleBuffer samples = metrics.readFrames(reader, frames);
+                reader = new SampleBufferReader(samples);
+                frames = samples.frames();
+            }
+            return this;
+        }
+
+        // Moves past the frames that play before output frame from
+        private void skipTo(long from) throws IOException {
+            if (key != null && from > key.start) {
+                throw new IllegalStateException("A ducked track cannot be rendered from after its key starts");
+            }
+            if (from > start && position == 0) {
+                long count = Math.min(from - start, frames);
+                long t = metrics.start();
+                position = reader.skip(count);
+                metrics.stop(MixMetrics.Stage.TRIM, t, 0);
+                ended = position < count;
+            }
+        }
+
+        private void borrowBuffers() {
+            block = BufferPool.floats(BLOCK_FRAMES * channels);
+            blockGains = BufferPool.floats(BLOCK_FRAMES * channels);
+            envelopeGains = envelope == null ? null : BufferPool.floats(BLOCK_FRAMES * channels);
+        }
+
+        private void releaseBuffers() {
+            BufferPool.release(block);
+            BufferPool.release(blockGains);
+            BufferPool.release(envelopeGains);
+            block = null;
+            blockGains = null;
+            envelopeGains = null;
+        }
+
+        // Output frame of the next end, envelope start or envelope end after the frames pulled so far
+        private long nextChange() {
+            long change = frames;
+            if (envelope != null && position < envelopeStart) {
+                change = Math.min(change, envelopeStart);
+            } else if (envelope != null && position < envelopeStart + envelopeFrames) {
+                change = Math.min(change, envelopeStart + envelopeFrames);
+            }
+            if (key != null && position < key.start - start) {
+                change = Math.min(change, key.start - start);
+            }
+            return change == Long.MAX_VALUE ? Long.MAX_VALUE : start + change;
+        }
+
+        private boolean finished() {
+            return ended || position >= frames;
+        }
+
+        // Reads up to count frames into block and zeroes the rest of the count; returns the frames read
+        private int pull(int count) throws IOException {
+            blockStart = position;
+            int wanted = (int) Math.min(count, frames - position);
+            int n = 0;
+            while (n < wanted) {
+                int read = metrics.read(reader, block, n * channels, wanted - n);
+                if (read == -1) {
+                    ended = true;
+                    break;
+                }
+                n += read;
+            }
+            position += n;
+            Arrays.fill(block, n * channels, count * channels, 0.0f);
+            return n;
+        }
+
+        // blockGains for count frames from the start of the last pull: the track gain times the envelope, ducked
+        // under the key's block if the key is among the active tracks
+        private void gains(int count, List<Track> active) {
+            long from = envelope == null ? Long.MAX_VALUE : envelopeStart;
+            long to = envelope == null ? Long.MAX_VALUE : envelopeStart + envelopeFrames;
+            int f = 0;
+            while (f < count) {
+                long frame = blockStart + f;
+                int n;
+                if (frame >= from && frame < to) {
+                    n = (int) Math.min(count - f, to - frame);
+                    if (rising) {
+                        envelope.fadeIn((int) (frame - from), envelopeGains, n * channels, floor);
+                    } else {
+                        envelope.fadeOut((int) (frame - from), envelopeGains, n * channels, floor);
+                    }
+                    System.arraycopy(envelopeGains, 0, blockGains, f * channels, n * channels);
+                    if (gain != 1.0f) {
+                        MixKernels.get().scale(blockGains, f * channels, n * channels, gain);
+                    }
+                } else {
+                    n = (int) Math.min(count - f, frame < from ? from - frame : Long.MAX_VALUE);
+                    Arrays.fill(blockGains, f * channels, (f + n) * channels, frame < from && rising ? floor * gain : gain);
+                }
+                f += n;
+            }
+            if (ducker != null && start + blockStart >= key.start) {
+                ducker.apply(active.contains(key) ? key.block : null, key.gain, blockGains, count);
+            }
+        }
+
+        // Frames from here on that pass through unchanged, if sink can take the source's bytes
+        private long copyableFrames(AudioFileWriter sink) {
+            if (gain != 1.0f || !sink.canCopyFrom(reader)) {
+                return 0;
+            }
+            long limit = frames - position;
+            if (key != null) {
+                limit = Math.min(limit, Math.max(0, key.start - start - position));
+            }
+            if (envelope != null) {
+                if (position < envelopeStart) {
+                    limit = rising ? 0 : Math.min(limit, envelopeStart - position);
+                } else if (position < envelopeStart + envelopeFrames) {
+                    limit = 0;
+                }
+            }
+            return limit;
+        }
+
+        private long copyTo(AudioFileWriter sink, long count) throws IOException {
+            long copied = sink.copyFrom(reader, count);
+            position += copied;
+            if (copied < count) {
+                ended = true;
+            }
+            return copied;
+        }
+    }
+}
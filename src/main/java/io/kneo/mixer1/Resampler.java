@@ -0,0 +1,230 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Streaming sample-rate converter: a SampleReader that reads another one at a different rate.
+// Polyphase windowed-sinc: the rate ratio is reduced to up/down = L/M and each of the L output phases gets its own
+// precomputed Kaiser-windowed sinc kernel, so an output sample costs one dot product over the kernel taps.
+// Ratios with very large L (odd rates) share a bank of MAX_PHASES kernels and use the nearest phase.
+public class Resampler implements SampleReader {
+
+    private static final int MAX_PHASES = 4096;
+    private static final Map<String, float[]> BANKS = new ConcurrentHashMap<>();
+
+    public enum Quality {
+        PREVIEW(4, 5.0, 0.80),   // 8 taps when upsampling, for quick previews
+        STANDARD(16, 7.5, 0.91), // 32 taps
+        HIGH(32, 10.0, 0.95);    // 64 taps, stopband below -90 dB
+
+        final int halfTaps; // per side, in periods of the lower rate
+        final double beta;    // Kaiser window shape
+        final double rolloff; // passband edge relative to the lower Nyquist frequency
+
+        Quality(int halfTaps, double beta, double rolloff) {
+            this.halfTaps = halfTaps;
+            this.beta = beta;
+            this.rolloff = rolloff;
+        }
+    }
+
+    private final SampleReader source;
+    private final AudioFormat format;
+    private final int channels;
+    private final int up;   // L
+    private final int down; // M
+    private final int half;
+    private final int taps;
+    private final float[] bank; // phases x taps
+    private final int phases;
+
+    private float[] in; // interleaved input window
+    private final int capacity; // frames
+    private long inStart;      // input frame index of in[0]
+    private int inFrames;      // valid frames in the window, including zero padding
+    private long sourceFrames; // frames read from the source so far
+    private boolean eof;
+
+    private long outPosition; // next output frame
+    private long center;      // integer part of the input position of the next output frame
+    private int phase;        // fractional part, in units of 1/up
+
+    public Resampler(SampleReader source, float targetRate, Quality quality) {
+        this.source = source;
+        this.channels = source.channels();
+        int sourceRate = Math.round(source.sampleRate());
+        int outputRate = Math.round(targetRate);
+        int gcd = gcd(sourceRate, outputRate);
+        this.up = outputRate / gcd;
+        this.down = sourceRate / gcd;
+        double ratio = Math.min(1.0, (double) up / down);
+        // When decimating, the kernel is stretched so it spans halfTaps output periods and keeps its transition band
+        this.half = (int) Math.ceil(quality.halfTaps / ratio);
+        this.taps = 2 * half;
+        this.phases = Math.min(up, MAX_PHASES);
+        this.bank = BANKS.computeIfAbsent(phases + "/" + up + "/" + down + "/" + quality,
+                key -> buildBank(phases, half, quality, ratio));
+        this.format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, targetRate, 32, channels, 4 * channels, targetRate, false);
+
+        this.capacity = BLOCK_SIZE + taps;
+        this.in = BufferPool.floatsZeroed(capacity * channels);
+        // half - 1 frames of silence before the first input frame, so output frame 0 lines up with input frame 0
+        this.inStart = -(half - 1);
+        this.inFrames = half - 1;
+    }
+
+    // Wraps reader in a Resampler unless it already runs at sampleRate
+    public static SampleReader to(SampleReader reader, float sampleRate, Quality quality) {
+        return reader.sampleRate() == sampleRate ? reader : new Resampler(reader, sampleRate, quality);
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long length() {
+        long length = source.length();
+        return length == -1 ? -1 : outputLength(length);
+    }
+
+    @Override
+    public int read(float[] dst, int offset, int frames) throws IOException {
+        int produced = 0;
+        while (produced < frames) {
+            if (eof && outPosition >= outputLength(sourceFrames)) {
+                break;
+            }
+            if (center + half >= inStart + inFrames) {
+                fill();
+                continue;
+            }
+
+            int kernel = (up == phases ? phase : (int) ((long) phase * phases / up)) * taps;
+            int first = (int) (center - half + 1 - inStart) * channels;
+            int out = offset + produced * channels;
+            if (channels == 1) {
+                float sum = 0.0f;
+                for (int k = 0; k < taps; k++) {
+                    sum += in[first + k] * bank[kernel + k];
+                }
+                dst[out] = sum;
+            } else {
+                for (int c = 0; c < channels; c++) {
+                    float sum = 0.0f;
+                    for (int k = 0, i = first + c; k < taps; k++, i += channels) {
+                        sum += in[i] * bank[kernel + k];
+                    }
+                    dst[out + c] = sum;
+                }
+            }
+            produced++;
+
+            outPosition++;
+            phase += down;
+            center += phase / up;
+            phase %= up;
+        }
+        return produced == 0 && frames > 0 ? -1 : produced;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        float[] scratch = BufferPool.floats(BLOCK_SIZE * channels);
+        long skipped = 0;
+        int n;
+        while (skipped < count && (n = read(scratch, 0, (int) Math.min(count - skipped, BLOCK_SIZE))) != -1) {
+            skipped += n;
+        }
+        BufferPool.release(scratch);
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        BufferPool.release(in);
+        in = null;
+        source.close();
+    }
+
+    // Slides the window to the first frame the next kernel needs and tops it up from the source, or with silence past the end
+    private void fill() throws IOException {
+        int shift = (int) Math.min(center - half + 1 - inStart, inFrames);
+        System.arraycopy(in, shift * channels, in, 0, (inFrames - shift) * channels);
+        inStart += shift;
+        inFrames -= shift;
+
+        while (inFrames < capacity && !eof) {
+            int n = source.read(in, inFrames * channels, capacity - inFrames);
+            if (n == -1) {
+                eof = true;
+            } else {
+                inFrames += n;
+                sourceFrames += n;
+            }
+        }
+        if (eof) {
+            Arrays.fill(in, inFrames * channels, in.length, 0.0f);
+            inFrames = capacity;
+        }
+    }
+
+    private long outputLength(long inputFrames) {
+        return (inputFrames * up + down - 1) / down;
+    }
+
+    // Kernel for phase p covers input frames center - half + 1 .. center + half at offset p / phases past center
+    private static float[] buildBank(int phases, int half, Quality quality, double ratio) {
+        int taps = 2 * half;
+        double cutoff = ratio * quality.rolloff; // relative to the input Nyquist frequency
+        double norm = besselI0(quality.beta);
+        float[] bank = new float[phases * taps];
+        for (int p = 0; p < phases; p++) {
+            double fraction = (double) p / phases;
+            double sum = 0.0;
+            double[] kernel = new double[taps];
+            for (int k = 0; k < taps; k++) {
+                double x = fraction + half - 1 - k;
+                double t = x / half;
+                double window = Math.abs(t) >= 1.0 ? 0.0 : besselI0(quality.beta * Math.sqrt(1.0 - t * t)) / norm;
+                kernel[k] = cutoff * sinc(cutoff * x) * window;
+                sum += kernel[k];
+            }
+            // Unity DC gain in every phase
+            for (int k = 0; k < taps; k++) {
+                bank[p * taps + k] = (float) (kernel[k] / sum);
+            }
+        }
+        return bank;
+    }
+
+    private static double sinc(double x) {
+        return x == 0.0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-17) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,118 @@
+package io.kneo.mixer1;
+
+import java.util.Arrays;
+
+// Growable primitive sample buffer shared by the mixers.
+// Samples are stored interleaved: sample index = frame * channels + channel.
+public class SampleBuffer {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final int channels;
+    private final float sampleRate;
+    private float[] data;
+    private int size; // number of samples (not frames)
+
+    public SampleBuffer(int channels, float sampleRate) {
+        this(channels, sampleRate, DEFAULT_CAPACITY);
+    }
+
+    public SampleBuffer(int channels, float sampleRate, int initialCapacity) {
+        if (channels < 1) {
+            throw new IllegalArgumentException("channels must be >= 1: " + channels);
+        }
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.data = new float[Math.max(initialCapacity, channels)];
+    }
+
+    public int channels() {
+        return channels;
+    }
+
+    public float sampleRate() {
+        return sampleRate;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int frames() {
+        return size / channels;
+    }
+
+    // Backing array; only the first size() samples are valid
+    public float[] array() {
+        return data;
+    }
+
+    public float get(int index) {
+        checkIndex(index);
+        return data[index];
+    }
+
+    public void set(int index, float value) {
+        checkIndex(index);
+        data[index] = value;
+    }
+
+    public void add(float value) {
+        ensureCapacity(size + 1);
+        data[size++] = value;
+    }
+
+    public void add(float[] src, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(src, offset, data, size, length);
+        size += length;
+    }
+
+    public void addAll(SampleBuffer other) {
+        add(other.data, 0, other.size);
+    }
+
+    public void addSilence(int samples) {
+        if (samples <= 0) {
+            return;
+        }
+        ensureCapacity(size + samples);
+        // Slots past size may hold stale data after truncate(), so clear them explicitly
+        Arrays.fill(data, size, size + samples, 0.0f);
+        size += samples;
+    }
+
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IndexOutOfBoundsException("newSize " + newSize + " out of bounds for size " + size);
+        }
+        size = newSize;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Copy of samples [from, to) as a new buffer with the same format
+    public SampleBuffer copyRange(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") out of bounds for size " + size);
+        }
+        SampleBuffer copy = new SampleBuffer(channels, sampleRate, to - from);
+        copy.add(data, from, to - from);
+        return copy;
+    }
+
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity > data.length) {
+            int newCapacity = Math.max(minCapacity, data.length + (data.length >> 1));
+            data = Arrays.copyOf(data, newCapacity);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + size);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+
+// SampleReader over samples that are already in memory
+class SampleBufferReader implements SampleReader {
+
+    private final SampleBuffer samples;
+    private final AudioFormat format;
+    private int position; // frames
+
+    SampleBufferReader(SampleBuffer samples) {
+        this.samples = samples;
+        int channels = samples.channels();
+        float sampleRate = samples.sampleRate();
+        this.format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, sampleRate, 32, channels, 4 * channels, sampleRate, false);
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long length() {
+        return samples.frames();
+    }
+
+    @Override
+    public int read(float[] dst, int offset, int frames) {
+        int n = Math.min(frames, samples.frames() - position);
+        if (n <= 0) {
+            return frames > 0 ? -1 : 0;
+        }
+        int channels = samples.channels();
+        System.arraycopy(samples.array(), position * channels, dst, offset, n * channels);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long count) {
+        int n = (int) Math.min(count, samples.frames() - position);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+    }
+}
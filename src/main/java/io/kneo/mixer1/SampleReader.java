@@ -0,0 +1,72 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.Closeable;
+import java.io.IOException;
+
+// Sequential block reader for decoded samples.
+// Positions and lengths are in frames; samples are delivered interleaved, channels() per frame.
+public interface SampleReader extends Closeable {
+
+    int BLOCK_SIZE = 4096;
+
+    // WAV files go through WavReader, FLAC through FlacReader; anything else AudioSystem can open goes through
+    // AudioStreamReader
+    static SampleReader open(String filePath) throws IOException, UnsupportedAudioFileException {
+        if (WavReader.isWav(filePath)) {
+            return WavReader.open(filePath);
+        }
+        if (FlacReader.isFlac(filePath)) {
+            return FlacReader.open(filePath);
+        }
+        return AudioStreamReader.open(filePath);
+    }
+
+    // Opens filePath converted to sampleRate if it was recorded at a different rate
+    static SampleReader open(String filePath, float sampleRate, Resampler.Quality quality)
+            throws IOException, UnsupportedAudioFileException {
+        return Resampler.to(open(filePath), sampleRate, quality);
+    }
+
+    AudioFormat getFormat();
+
+    default int channels() {
+        return getFormat().getChannels();
+    }
+
+    default float sampleRate() {
+        return getFormat().getSampleRate();
+    }
+
+    // Length in frames, or -1 if unknown
+    long length();
+
+    // Reads up to frames frames into dst at offset; returns the number of frames read, or -1 at end of stream
+    int read(float[] dst, int offset, int frames) throws IOException;
+
+    // Skips up to count frames; returns the number actually skipped
+    long skip(long count) throws IOException;
+
+    default SampleBuffer readAll() throws IOException {
+        return readFrames(Long.MAX_VALUE);
+    }
+
+    // Reads up to frames frames from the current position into a new buffer
+    default SampleBuffer readFrames(long frames) throws IOException {
+        int channels = channels();
+        long length = length();
+        long expected = length == -1 ? frames : Math.min(frames, length);
+        SampleBuffer samples = new SampleBuffer(channels, sampleRate(),
+                expected > 0 && expected * channels < Integer.MAX_VALUE ? (int) expected * channels : BLOCK_SIZE * channels);
+        float[] block = BufferPool.floats(BLOCK_SIZE * channels);
+        int n;
+        long remaining = frames;
+        while (remaining > 0 && (n = read(block, 0, (int) Math.min(BLOCK_SIZE, remaining))) != -1) {
+            samples.add(block, 0, n * channels);
+            remaining -= n;
+        }
+        BufferPool.release(block);
+        return samples;
+    }
+}
@@ -0,0 +1,9 @@
+package io.kneo.mixer1;
+
+import java.io.IOException;
+
+// Destination for rendered samples
+public interface SampleSink {
+
+    void write(float[] samples, int offset, int length) throws IOException;
+}
@@ -0,0 +1,45 @@
+package io.kneo.mixer1;
+
+class ScalarMixKernels extends MixKernels {
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public void scale(float[] samples, int offset, int length, float gain) {
+        for (int i = offset; i < offset + length; i++) {
+            samples[i] *= gain;
+        }
+    }
+
+    @Override
+    public void multiply(float[] samples, int offset, float[] gains, int gainOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            samples[offset + i] *= gains[gainOffset + i];
+        }
+    }
+
+    @Override
+    public void mix(float[] dst, int dstOffset, float[] dstGains,
+                    float[] src, int srcOffset, float[] srcGains, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = dst[dstOffset + i] * dstGains[i] + src[srcOffset + i] * srcGains[i];
+        }
+    }
+
+    @Override
+    public void add(float[] dst, int dstOffset, float[] src, int srcOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] += src[srcOffset + i];
+        }
+    }
+
+    @Override
+    public void clamp(float[] samples, int offset, int length, float min, float max) {
+        for (int i = offset; i < offset + length; i++) {
+            samples[i] = Math.max(min, Math.min(max, samples[i]));
+        }
+    }
+}
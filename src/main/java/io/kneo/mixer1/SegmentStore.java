@@ -0,0 +1,107 @@
+package io.kneo.mixer1;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Content-addressed store of rendered output segments, for incremental re-rendering of playlists.
+// A segment is a WAV file named by the SHA-256 of everything that determines its samples: the identity of each
+// input file (real path, modification time and size, see DecodedTrackCache.key), trims, volumes, transition settings
+// and the frame range. Changing any of them gives a new key, so a stored segment is never stale and never rewritten;
+// editing one transition only renders the segments whose keys changed.
+// Segments are rendered to a temporary file and moved into place, so concurrent renders and crashes never leave a
+// partial segment under a valid key. Nothing is deleted; clear the directory to reclaim space.
+// The shared instance is off unless -Dmixer1.segments.dir is set.
+public class SegmentStore {
+
+    private static final String VERSION = "2"; // bump when rendering changes the samples a key stands for
+
+    private static final SegmentStore SHARED = new SegmentStore(
+            System.getProperty("mixer1.segments.dir") == null ? null : Path.of(System.getProperty("mixer1.segments.dir")));
+
+    private final Path directory;
+    private long hits;
+    private long misses;
+
+    public SegmentStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public static SegmentStore shared() {
+        return SHARED;
+    }
+
+    public interface Renderer {
+        void render(String path) throws IOException;
+    }
+
+    public static class Stats {
+        public final long hits;   // segments reused from the store
+        public final long misses; // segments rendered
+
+        Stats(long hits, long misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("segments reused=%d rendered=%d", hits, misses);
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses);
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    // Path of the segment stored under key, rendered into the store first if it is not there yet
+    public Path get(String key, Renderer renderer) throws IOException {
+        Path path = directory.resolve(key + ".wav");
+        if (Files.exists(path)) {
+            synchronized (this) {
+                hits++;
+            }
+            return path;
+        }
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            renderer.render(temp.toString());
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        synchronized (this) {
+            misses++;
+        }
+        return path;
+    }
+
+    // Key of a segment described by parts; input files go in as DecodedTrackCache.key
+    static String key(Object... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        for (Object part : parts) {
+            digest.update((byte) 0);
+            digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
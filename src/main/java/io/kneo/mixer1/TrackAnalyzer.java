@@ -0,0 +1,493 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+// Silence bounds, onset envelope and tempo of a track, from one streaming pass at the track's own rate.
+// Every HOP frames the last FFT_SIZE frames (mixed to mono, Hann window) go through an FFT; the onset envelope is the
+// spectral flux of the log-compressed magnitudes, the hop's RMS over all channels gives the silence bounds, and the
+// tempo is the autocorrelation peak of the onset envelope, with the beat grid phase fitted afterwards. The same pass
+// feeds a LoudnessMeter for the track's integrated loudness.
+// Results are kept next to the track in a small <track>.mxa file and reused while the track's size and
+// modification time are unchanged; the same pass writes the track's PeakIndex sidecar. autoFill() turns two analyses
+// into MixSettings trim points and crossfade length.
+public class TrackAnalyzer {
+
+    static final int FFT_SIZE = 2048;
+    static final int HOP = 512; // frames; about 11.6 ms at 44.1 kHz
+
+    private static final int SIDECAR_MAGIC = 0x4D584132; // "MXA2"
+    private static final String SIDECAR_SUFFIX = ".mxa";
+
+    public static class AnalysisSettings {
+        public float silenceThresholdDb; // hops quieter than this (RMS, dBFS) count as silence
+        public float minBpm;
+        public float maxBpm;
+        public int crossfadeBeats; // autoFill crossfade length, in beats of song 1
+        public boolean writeSidecar;
+
+        public AnalysisSettings() {
+            this(-50.0f, 70.0f, 180.0f, 16, true);
+        }
+
+        public AnalysisSettings(float silenceThresholdDb, float minBpm, float maxBpm, int crossfadeBeats, boolean writeSidecar) {
+            this.silenceThresholdDb = silenceThresholdDb;
+            this.minBpm = minBpm;
+            this.maxBpm = maxBpm;
+            this.crossfadeBeats = crossfadeBeats;
+            this.writeSidecar = writeSidecar;
+        }
+    }
+
+    public static class Analysis {
+        public final float sampleRate;
+        public final long frames;
+        public final float audioStart; // seconds; first non-silent hop
+        public final float audioEnd;   // seconds; end of the last non-silent hop
+        public final float bpm;        // 0 if no tempo was found
+        public final float tempoConfidence; // 0 to 1, autocorrelation peak relative to the envelope's energy
+        public final float firstBeat;  // seconds; phase of the beat grid
+        public final double integratedLufs; // BS.1770 integrated loudness; -Infinity for silence
+        private final byte[] onset; // per hop, scaled to 0..255 of the track's strongest onset
+        private final byte[] level; // per hop RMS in 0.5 dB steps below full scale, 255 = -127.5 dBFS or lower
+
+        Analysis(float sampleRate, long frames, float audioStart, float audioEnd, float bpm, float tempoConfidence,
+                 float firstBeat, double integratedLufs, byte[] onset, byte[] level) {
+            this.sampleRate = sampleRate;
+            this.frames = frames;
+            this.audioStart = audioStart;
+            this.audioEnd = audioEnd;
+            this.bpm = bpm;
+            this.tempoConfidence = tempoConfidence;
+            this.firstBeat = firstBeat;
+            this.integratedLufs = integratedLufs;
+            this.onset = onset;
+            this.level = level;
+        }
+
+        public float duration() {
+            return frames / sampleRate;
+        }
+
+        public float hopSeconds() {
+            return HOP / sampleRate;
+        }
+
+        public int hops() {
+            return onset.length;
+        }
+
+        // Onset strength of a hop, 0 to 1
+        public float onset(int hop) {
+            return (onset[hop] & 0xFF) / 255.0f;
+        }
+
+        // RMS level of a hop in dBFS
+        public float levelDb(int hop) {
+            return -(level[hop] & 0xFF) / 2.0f;
+        }
+
+        // Latest beat of the grid at or before seconds, or seconds itself if there is no tempo
+        public float beatAtOrBefore(float seconds) {
+            if (bpm <= 0) {
+                return seconds;
+            }
+            float period = 60.0f / bpm;
+            return firstBeat + (float) Math.floor((seconds - firstBeat) / period) * period;
+        }
+
+        // Earliest beat of the grid at or after seconds, or seconds itself if there is no tempo
+        public float beatAtOrAfter(float seconds) {
+            if (bpm <= 0) {
+                return seconds;
+            }
+            float period = 60.0f / bpm;
+            return firstBeat + (float) Math.ceil((seconds - firstBeat) / period) * period;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f s, audio %.3f-%.3f s, %.1f LUFS, %s", duration(), audioStart, audioEnd, integratedLufs,
+                    bpm > 0 ? String.format("%.1f BPM (confidence %.2f, first beat %.3f s)", bpm, tempoConfidence, firstBeat)
+                            : "no tempo");
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: TrackAnalyzer <file>...");
+            System.exit(2);
+        }
+        for (String file : args) {
+            try {
+                long start = System.nanoTime();
+                Analysis analysis = analyze(file);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                System.out.printf("%s: %s [%d ms, %.0fx realtime]%n", file, analysis, millis,
+                        analysis.duration() * 1000 / Math.max(1, millis));
+            } catch (Exception e) {
+                System.err.println(file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public static Analysis analyze(String filePath) throws IOException, UnsupportedAudioFileException {
+        return analyze(filePath, new AnalysisSettings());
+    }
+
+    // The stored analysis if it is still current, otherwise a fresh one, stored if settings allow
+    public static Analysis analyze(String filePath, AnalysisSettings settings) throws IOException, UnsupportedAudioFileException {
+        Path track = Path.of(filePath);
+        BasicFileAttributes attributes = Files.readAttributes(track, BasicFileAttributes.class);
+        Path sidecar = Path.of(filePath + SIDECAR_SUFFIX);
+        Analysis analysis = readSidecar(sidecar, attributes, settings);
+        if (analysis != null) {
+            return analysis;
+        }
+        PeakIndex.Builder peaks = null;
+        try (SampleReader reader = SampleReader.open(filePath)) {
+            if (settings.writeSidecar) {
+                peaks = PeakIndex.builderFor(filePath, attributes, reader.sampleRate(), reader.channels());
+            }
+            analysis = analyze(reader, settings, peaks);
+        }
+        if (settings.writeSidecar) {
+            try {
+                writeSidecar(sidecar, attributes, settings, analysis);
+            } catch (IOException e) {
+                // Read-only music folders still get analyzed, just every time
+            }
+            if (peaks != null) {
+                PeakIndex.store(filePath, attributes, peaks.build());
+            }
+        }
+        return analysis;
+    }
+
+    // Analyzes the rest of reader; nothing is stored
+    public static Analysis analyze(SampleReader reader, AnalysisSettings settings) throws IOException {
+        return analyze(reader, settings, null);
+    }
+
+    // The same, also feeding every decoded hop to peaks unless it is null
+    static Analysis analyze(SampleReader reader, AnalysisSettings settings, PeakIndex.Builder peaks) throws IOException {
+        int channels = reader.channels();
+        float sampleRate = reader.sampleRate();
+        Fft fft = new Fft(FFT_SIZE);
+        LoudnessMeter loudness = new LoudnessMeter(sampleRate, channels);
+        float[] window = hann(FFT_SIZE);
+        float[] history = new float[FFT_SIZE]; // mono, oldest first
+        float[] magnitudes = new float[FFT_SIZE / 2 + 1];
+        float[] previous = new float[magnitudes.length];
+        float[] block = new float[HOP * channels];
+        float[] onset = new float[1024];
+        float[] rms = new float[1024];
+        int hops = 0;
+        long frames = 0;
+
+        int filled;
+        while ((filled = readHop(reader, block)) > 0) {
+            frames += filled;
+            loudness.process(block, 0, filled);
+            if (peaks != null) {
+                peaks.add(block, 0, filled);
+            }
+            Arrays.fill(block, filled * channels, block.length, 0.0f);
+
+            // Slide the mono history by one hop and measure the hop's energy
+            System.arraycopy(history, HOP, history, 0, FFT_SIZE - HOP);
+            double energy = 0.0;
+            for (int i = 0, s = 0; i < HOP; i++) {
+                float sum = 0.0f;
+                for (int c = 0; c < channels; c++, s++) {
+                    float sample = block[s];
+                    sum += sample;
+                    energy += sample * sample;
+                }
+                history[FFT_SIZE - HOP + i] = sum / channels;
+            }
+
+            for (int i = 0; i < FFT_SIZE; i++) {
+                fft.re[i] = history[i] * window[i];
+            }
+            Arrays.fill(fft.im, 0.0f);
+            fft.transform();
+            fft.magnitudes(magnitudes);
+            float flux = 0.0f;
+            for (int k = 1; k < magnitudes.length; k++) {
+                float compressed = (float) Math.log1p(100.0 * magnitudes[k]);
+                flux += Math.max(0.0f, compressed - previous[k]);
+                previous[k] = compressed;
+            }
+
+            if (hops == onset.length) {
+                onset = Arrays.copyOf(onset, hops * 2);
+                rms = Arrays.copyOf(rms, hops * 2);
+            }
+            onset[hops] = flux;
+            rms[hops] = (float) Math.sqrt(energy / (filled * channels));
+            hops++;
+        }
+        onset = Arrays.copyOf(onset, hops);
+        rms = Arrays.copyOf(rms, hops);
+
+        float hopSeconds = HOP / sampleRate;
+        float threshold = (float) Math.pow(10.0, settings.silenceThresholdDb / 20.0);
+        int first = 0;
+        while (first < hops && rms[first] <= threshold) {
+            first++;
+        }
+        int last = hops - 1;
+        while (last >= first && rms[last] <= threshold) {
+            last--;
+        }
+        float audioStart = first < hops ? first * hopSeconds : 0.0f;
+        float audioEnd = last >= first ? Math.min((last + 1) * hopSeconds, frames / sampleRate) : frames / sampleRate;
+
+        // Tempo from the part of the track with audio, so silent lead-in and tail do not dilute it
+        float[] envelope = detrend(onset, first, Math.max(first, last + 1), Math.round(0.5f / hopSeconds));
+        float[] tempo = tempo(envelope, hopSeconds, settings.minBpm, settings.maxBpm);
+        float bpm = tempo[0];
+        float firstBeat = 0.0f;
+        if (bpm > 0) {
+            float[] grid = beatGrid(envelope, 60.0f / bpm / hopSeconds);
+            bpm = 60.0f / (grid[0] * hopSeconds);
+            firstBeat = audioStart + grid[1] * hopSeconds;
+        }
+
+        return new Analysis(sampleRate, frames, audioStart, audioEnd, bpm, tempo[1], firstBeat, loudness.integratedLufs(),
+                quantizeOnset(onset), quantizeLevel(rms));
+    }
+
+    // Copy of base with song1EndTime, song2StartTime and crossfadeSeconds filled from the two tracks' analyses:
+    // song 1 ends on its last beat before trailing silence, song 2 starts on its first beat after leading silence,
+    // and the crossfade lasts crossfadeBeats beats of song 1. Values set explicitly in base (an end time, a
+    // non-zero start time) are kept, and so are profiles without a crossfade.
+    public static AudioMerger.MixSettings autoFill(String file1Path, String file2Path, AudioMerger.MixSettings base)
+            throws IOException, UnsupportedAudioFileException {
+        return autoFill(analyze(file1Path), analyze(file2Path), base, new AnalysisSettings());
+    }
+
+    public static AudioMerger.MixSettings autoFill(Analysis song1, Analysis song2, AudioMerger.MixSettings base,
+                                                   AnalysisSettings settings) {
+        AudioMerger.MixSettings filled = base.copy();
+        if (filled.song1EndTime == -1) {
+            float end = song1.audioEnd;
+            float beat = song1.beatAtOrBefore(end);
+            // Snap only when the beat is close, so a long fade-out is not cut short
+            filled.song1EndTime = end - beat < 60.0f / Math.max(song1.bpm, 1.0f) ? beat : end;
+            if (filled.song1EndTime <= filled.song1StartTime) {
+                filled.song1EndTime = -1;
+            }
+        }
+        if (filled.song2StartTime == 0.0f) {
+            float start = song2.audioStart;
+            float beat = song2.beatAtOrAfter(start);
+            filled.song2StartTime = song2.bpm > 0 && beat - start < 60.0f / song2.bpm ? beat : start;
+        }
+        if (filled.crossfadeSeconds > 0 && filled.gapSeconds <= 0 && song1.bpm > 0) {
+            float seconds = settings.crossfadeBeats * 60.0f / song1.bpm;
+            float end1 = filled.song1EndTime == -1 ? song1.duration() : filled.song1EndTime;
+            float end2 = filled.song2EndTime == -1 ? song2.duration() : filled.song2EndTime;
+            // Never more than half of either trimmed track
+            float limit = Math.min(end1 - filled.song1StartTime, end2 - filled.song2StartTime) / 2;
+            filled.crossfadeSeconds = Math.max(1, Math.round(Math.min(seconds, limit)));
+        }
+        return filled;
+    }
+
+    // Reads one hop, topping up short reads; returns the frames read, 0 at the end
+    private static int readHop(SampleReader reader, float[] block) throws IOException {
+        int channels = reader.channels();
+        int done = 0;
+        int n;
+        while (done < HOP && (n = reader.read(block, done * channels, HOP - done)) != -1) {
+            done += n;
+        }
+        return done;
+    }
+
+    private static float[] hann(int size) {
+        float[] window = new float[size];
+        for (int i = 0; i < size; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size));
+        }
+        return window;
+    }
+
+    // onset[from, to) minus its moving average, negative parts dropped: leaves the peaks that carry the rhythm
+    private static float[] detrend(float[] onset, int from, int to, int radius) {
+        float[] envelope = new float[to - from];
+        double sum = 0.0;
+        int lo = from;
+        int hi = from;
+        for (int i = from; i < to; i++) {
+            while (hi < Math.min(to, i + radius + 1)) {
+                sum += onset[hi++];
+            }
+            while (lo < i - radius) {
+                sum -= onset[lo++];
+            }
+            envelope[i - from] = Math.max(0.0f, onset[i] - (float) (sum / (hi - lo)));
+        }
+        return envelope;
+    }
+
+    // {bpm, confidence}; bpm 0 if the envelope is too short or flat.
+    // Lags are weighted towards 120 BPM (log-Gaussian, one octave wide) to settle octave ambiguity.
+    private static float[] tempo(float[] envelope, float hopSeconds, float minBpm, float maxBpm) {
+        int minLag = Math.max(1, (int) Math.floor(60.0f / maxBpm / hopSeconds));
+        int maxLag = (int) Math.ceil(60.0f / minBpm / hopSeconds);
+        if (envelope.length < 4 * maxLag) {
+            return new float[] {0.0f, 0.0f};
+        }
+        double zero = 0.0;
+        for (float value : envelope) {
+            zero += value * value;
+        }
+        if (zero == 0.0) {
+            return new float[] {0.0f, 0.0f};
+        }
+        double[] correlation = new double[maxLag + 2];
+        for (int lag = minLag - 1; lag <= maxLag + 1; lag++) {
+            double sum = 0.0;
+            for (int i = 0; i + lag < envelope.length; i++) {
+                sum += envelope[i] * envelope[i + lag];
+            }
+            correlation[lag] = sum / (envelope.length - lag);
+        }
+        int best = -1;
+        double bestScore = 0.0;
+        for (int lag = minLag; lag <= maxLag; lag++) {
+            double octaves = Math.log(60.0 / (lag * hopSeconds) / 120.0) / Math.log(2.0);
+            double score = correlation[lag] * Math.exp(-0.5 * octaves * octaves);
+            if (score > bestScore) {
+                bestScore = score;
+                best = lag;
+            }
+        }
+        if (best < 0) {
+            return new float[] {0.0f, 0.0f};
+        }
+        // Parabolic interpolation between neighbouring lags
+        double left = correlation[best - 1];
+        double center = correlation[best];
+        double right = correlation[best + 1];
+        double denominator = left - 2 * center + right;
+        double offset = denominator != 0.0 ? Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / denominator)) : 0.0;
+        float bpm = (float) (60.0 / ((best + offset) * hopSeconds));
+        float confidence = (float) Math.min(1.0, correlation[best] / (zero / envelope.length));
+        return new float[] {bpm, confidence};
+    }
+
+    // {period, phase} in hops of the beat grid that collects the most onset energy. The autocorrelation period is
+    // refined within 2 %: over a whole track a tiny period error adds up to a grid that drifts off the beats.
+    private static float[] beatGrid(float[] envelope, float estimate) {
+        float bestPeriod = estimate;
+        float bestPhase = 0.0f;
+        double bestSum = -1.0;
+        for (int p = -20; p <= 20; p++) {
+            float period = estimate * (1.0f + p * 0.001f);
+            for (int phase = 0; phase < period; phase++) {
+                double sum = 0.0;
+                for (float position = phase; position < envelope.length; position += period) {
+                    sum += envelope[Math.min(Math.round(position), envelope.length - 1)];
+                }
+                if (sum > bestSum) {
+                    bestSum = sum;
+                    bestPeriod = period;
+                    bestPhase = phase;
+                }
+            }
+        }
+        // A phase of almost a whole period is the same grid one beat later
+        return new float[] {bestPeriod, bestPhase > bestPeriod - 1 ? 0.0f : bestPhase};
+    }
+
+    private static byte[] quantizeOnset(float[] onset) {
+        float max = 0.0f;
+        for (float value : onset) {
+            max = Math.max(max, value);
+        }
+        byte[] quantized = new byte[onset.length];
+        for (int i = 0; i < onset.length; i++) {
+            quantized[i] = (byte) (max > 0 ? Math.round(onset[i] / max * 255) : 0);
+        }
+        return quantized;
+    }
+
+    private static byte[] quantizeLevel(float[] rms) {
+        byte[] quantized = new byte[rms.length];
+        for (int i = 0; i < rms.length; i++) {
+            double db = rms[i] > 0 ? 20 * Math.log10(rms[i]) : -200.0;
+            quantized[i] = (byte) Math.max(0, Math.min(255, Math.round(-db * 2)));
+        }
+        return quantized;
+    }
+
+    // Sidecar: magic, track size and modification time, the settings that shaped the result, the scalar results,
+    // then one onset byte and one level byte per hop
+    private static void writeSidecar(Path sidecar, BasicFileAttributes attributes, AnalysisSettings settings,
+                                     Analysis analysis) throws IOException {
+        Path temp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(SIDECAR_MAGIC);
+            out.writeLong(attributes.size());
+            out.writeLong(attributes.lastModifiedTime().toMillis());
+            out.writeFloat(settings.silenceThresholdDb);
+            out.writeFloat(settings.minBpm);
+            out.writeFloat(settings.maxBpm);
+            out.writeFloat(analysis.sampleRate);
+            out.writeLong(analysis.frames);
+            out.writeFloat(analysis.audioStart);
+            out.writeFloat(analysis.audioEnd);
+            out.writeFloat(analysis.bpm);
+            out.writeFloat(analysis.tempoConfidence);
+            out.writeFloat(analysis.firstBeat);
+            out.writeDouble(analysis.integratedLufs);
+            out.writeInt(analysis.onset.length);
+            out.write(analysis.onset);
+            out.write(analysis.level);
+        }
+        Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // null if there is no sidecar, or it belongs to another version of the track or other settings
+    private static Analysis readSidecar(Path sidecar, BasicFileAttributes attributes, AnalysisSettings settings) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            if (in.readInt() != SIDECAR_MAGIC
+                    || in.readLong() != attributes.size()
+                    || in.readLong() != attributes.lastModifiedTime().toMillis()
+                    || in.readFloat() != settings.silenceThresholdDb
+                    || in.readFloat() != settings.minBpm
+                    || in.readFloat() != settings.maxBpm) {
+                return null;
+            }
+            float sampleRate = in.readFloat();
+            long frames = in.readLong();
+            float audioStart = in.readFloat();
+            float audioEnd = in.readFloat();
+            float bpm = in.readFloat();
+            float confidence = in.readFloat();
+            float firstBeat = in.readFloat();
+            double integratedLufs = in.readDouble();
+            byte[] onset = new byte[in.readInt()];
+            byte[] level = new byte[onset.length];
+            in.readFully(onset);
+            in.readFully(level);
+            return new Analysis(sampleRate, frames, audioStart, audioEnd, bpm, confidence, firstBeat, integratedLufs, onset, level);
+        } catch (IOException | NegativeArraySizeException e) {
+            // Missing, truncated or foreign file: analyze again and overwrite it
+            return null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+
+// Quick listen of a crossfade (DJ_CROSSFADE, OVERLAP_MIX, any MixSettings): only the transition window, with
+// contextSeconds of song 1 before it and of song 2 after it, mixed at a reduced sample rate through the cheap PREVIEW
+// resampler. The window is found from the trim points and the songs' lengths, so nothing before it is decoded (WAV
+// inputs seek straight there), and it plays through the same crossfadeGraph as mergeAudioFiles, so the preview sounds
+// like the part of the full mix it stands for. render() returns where in the full mix the preview starts, to line it
+// up with a PeakIndex overview.
+public class TransitionPreview {
+
+    public static class PreviewSettings {
+        public float sampleRate; // output rate, never above song 1's; 0 keeps song 1's rate
+        public float contextSeconds; // of song 1 before the transition and of song 2 after it
+        public Resampler.Quality quality;
+
+        public PreviewSettings() {
+            this(22050.0f, 4.0f, Resampler.Quality.PREVIEW);
+        }
+
+        public PreviewSettings(float sampleRate, float contextSeconds, Resampler.Quality quality) {
+            this.sampleRate = sampleRate;
+            this.contextSeconds = contextSeconds;
+            this.quality = quality;
+        }
+    }
+
+    public static float render(String file1Path, String file2Path, String outputPath, AudioMerger.MixSettings settings)
+            throws IOException, UnsupportedAudioFileException {
+        return render(file1Path, file2Path, outputPath, settings, new PreviewSettings());
+    }
+
+    // Writes the preview to outputPath; returns the seconds into the full mix where it starts
+    public static float render(String file1Path, String file2Path, String outputPath, AudioMerger.MixSettings settings,
+                               PreviewSettings preview) throws IOException, UnsupportedAudioFileException {
+        MixMetrics metrics = MixMetrics.begin("previewTransition", outputPath, file1Path, file2Path);
+        try {
+            float start = render(file1Path, file2Path, outputPath, settings, preview, metrics);
+            metrics.finish(null);
+            return start;
+        } catch (Throwable e) {
+            metrics.finish(e);
+            throw e;
+        }
+    }
+
+    private static float render(String file1Path, String file2Path, String outputPath, AudioMerger.MixSettings settings,
+                                PreviewSettings preview, MixMetrics metrics)
+            throws IOException, UnsupportedAudioFileException {
+        if (settings.autoAnalyze) {
+            settings = TrackAnalyzer.autoFill(file1Path, file2Path, settings);
+        }
+        if (settings.targetLufs != 0.0f) {
+            settings = AudioMerger.normalizeLoudness(file1Path, file2Path, settings);
+        }
+
+        long start = metrics.start();
+        SampleBuffer window1;
+        SampleBuffer window2;
+        long skipped; // frames of trimmed song 1 before the window
+        long overlap; // frames of song 1 that song 2 plays over
+        float sampleRate1;
+        try (SampleReader reader1 = SampleReader.open(file1Path)) {
+            sampleRate1 = reader1.sampleRate();
+            int fadeFrames = AudioFormats.frames(settings.gapSeconds, sampleRate1) > 0 ? 0
+                    : AudioFormats.frames(settings.crossfadeSeconds, sampleRate1);
+            int contextFrames = AudioFormats.frames(preview.contextSeconds, sampleRate1);
+            if (reader1.length() == -1) {
+                // The end of the song is only known once it has been decoded
+                SampleBuffer song1 = reader1.readFrames(
+                        AudioMerger.seekToStart(reader1, settings.song1StartTime, settings.song1EndTime));
+                overlap = Math.min(fadeFrames, song1.frames());
+                skipped = Math.max(0, song1.frames() - overlap - contextFrames);
+                window1 = song1.copyRange((int) skipped * song1.channels(), song1.size());
+            } else {
+                long frames1 = AudioMerger.trimmedLength(reader1, settings.song1StartTime, settings.song1EndTime);
+                overlap = Math.min(fadeFrames, frames1);
+                skipped = Math.max(0, frames1 - overlap - contextFrames);
+                reader1.skip(AudioMerger.trimStart(reader1, settings.song1StartTime) + skipped);
+                window1 = reader1.readFrames(frames1 - skipped);
+            }
+        }
+        // Song 2 plays the overlap, then the context
+        float overlapSeconds = overlap / sampleRate1;
+        try (SampleReader reader2 = SampleReader.open(file2Path)) {
+            long frames2 = AudioMerger.seekToStart(reader2, settings.song2StartTime, settings.song2EndTime);
+            window2 = reader2.readFrames(Math.min(frames2,
+                    AudioFormats.frames(overlapSeconds + preview.contextSeconds, reader2.sampleRate())));
+        }
+
+        float sampleRate = preview.sampleRate > 0 ? Math.min(preview.sampleRate, sampleRate1) : sampleRate1;
+        window1 = resample(window1, sampleRate, preview.quality);
+        window2 = resample(window2, sampleRate, preview.quality);
+        metrics.stop(MixMetrics.Stage.DECODE, start, window1.size() + window2.size());
+        AudioFormats.requireCompatible(window1.channels(), window1.sampleRate(), file1Path,
+                window2.channels(), window2.sampleRate(), file2Path);
+
+        RenderGraph graph = AudioMerger.crossfadeGraph(new SampleBufferReader(window1), new SampleBufferReader(window2),
+                settings, false, metrics);
+        try (AudioFileWriter writer = AudioMerger.openWriter(outputPath,
+                AudioFormats.outputFormat(sampleRate, window1.channels()), settings, metrics)) {
+            graph.render(writer);
+        }
+        return skipped / sampleRate1;
+    }
+
+    private static SampleBuffer resample(SampleBuffer samples, float sampleRate, Resampler.Quality quality)
+            throws IOException {
+        if (samples.sampleRate() == sampleRate) {
+            return samples;
+        }
+        try (SampleReader reader = new Resampler(new SampleBufferReader(samples), sampleRate, quality)) {
+            return reader.readAll();
+        }
+    }
+}
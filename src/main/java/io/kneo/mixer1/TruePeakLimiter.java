@@ -0,0 +1,215 @@
+package io.kneo.mixer1;
+
+import java.util.Arrays;
+
+// Lookahead limiter that keeps inter-sample (true) peaks under a ceiling.
+// Peaks are estimated with 4x polyphase oversampling (48-tap windowed sinc, as BS.1770 Annex 2 suggests), so output
+// meets the ceiling as a BS.1770 meter reads it; ideal reconstruction can land up to ~0.7 dB higher near Nyquist. The gain
+// needed for each frame goes through a sliding minimum over the lookahead, an exponential release and a moving
+// average of the same length, so the gain is already down when a peak leaves the delay line and never steps.
+// Output lags input by latency() frames; flush() drains the delay line at the end of a stream.
+// All state lives in fixed arrays sized at construction, so processing allocates nothing.
+public class TruePeakLimiter {
+
+    private static final int OVERSAMPLE = 4;
+    private static final int TAPS = 12; // per phase
+    private static final int CENTER = TAPS / 2; // phase 0 reproduces the input delayed by this many frames
+    private static final float[] PHASES = buildPhases();
+    private static final float PHASE_GAIN = maxAbsSum(PHASES); // bound on how far interpolation can exceed the samples
+
+    private final int channels;
+    private final float ceiling;
+    private final int lookahead;
+    private final float release;
+    private final int latency;
+
+    private final float[] history; // per channel, TAPS frames written twice so every window is contiguous
+    private int historyPosition;
+    private long quietFrom; // frame from which the peak estimate can skip the interpolation
+    private final float[] delay; // latency frames, interleaved
+    private int delayPosition;
+    private final int window; // sliding minimum span: the lookahead plus one, so both frames around an inter-sample peak are covered
+    private final float[] minValues; // sliding minimum, a monotonic queue in a ring
+    private final long[] minFrames;
+    private int minHead;
+    private int minSize;
+    private float held = 1.0f;
+    private final float[] box; // moving average of the held gain
+    private int boxPosition;
+    private double boxSum;
+    private long frame; // frames taken in since the last reset
+
+    public TruePeakLimiter(float sampleRate, int channels, float ceilingDb) {
+        this(sampleRate, channels, ceilingDb, 5.0f, 100.0f);
+    }
+
+    public TruePeakLimiter(float sampleRate, int channels, float ceilingDb, float lookaheadMillis, float releaseMillis) {
+        this.channels = channels;
+        this.ceiling = (float) Math.pow(10.0, ceilingDb / 20.0);
+        this.lookahead = Math.max(1, Math.round(sampleRate * lookaheadMillis / 1000));
+        this.release = (float) Math.exp(-1.0 / (sampleRate * releaseMillis / 1000));
+        this.latency = lookahead - 1 + CENTER;
+        this.history = new float[channels * 2 * TAPS];
+        this.delay = new float[Math.max(1, latency) * channels];
+        this.window = lookahead + 1;
+        this.minValues = new float[window];
+        this.minFrames = new long[window];
+        this.box = new float[lookahead];
+        reset();
+    }
+
+    // Frames between a sample going in and coming out
+    public int latency() {
+        return latency;
+    }
+
+    public void reset() {
+        Arrays.fill(history, 0.0f);
+        Arrays.fill(delay, 0.0f);
+        Arrays.fill(box, 1.0f);
+        boxSum = lookahead;
+        historyPosition = 0;
+        delayPosition = 0;
+        minHead = 0;
+        minSize = 0;
+        held = 1.0f;
+        quietFrom = 0;
+        frame = 0;
+    }
+
+    // Limits frames frames of src into dst and returns how many came out; the first latency() frames of a stream
+    // only fill the delay line. dst needs room for frames frames and must not overlap src.
+    public int process(float[] src, int srcOffset, int frames, float[] dst, int dstOffset) {
+        int out = 0;
+        for (int f = 0; f < frames; f++) {
+            if (push(src, srcOffset + f * channels, dst, dstOffset + out * channels)) {
+                out++;
+            }
+        }
+        return out;
+    }
+
+    // Pushes silence through until every buffered frame is out, then starts over; returns the frames written to dst,
+    // which needs room for latency() frames
+    public int flush(float[] dst, int dstOffset) {
+        int pending = (int) Math.min(frame, latency);
+        float[] silence = new float[channels];
+        int out = 0;
+        while (out < pending) {
+            if (push(silence, 0, dst, dstOffset + out * channels)) {
+                out++;
+            }
+        }
+        reset();
+        return out;
+    }
+
+    private boolean push(float[] src, int offset, float[] dst, int dstOffset) {
+        // True peak of the frame CENTER frames back, over all channels
+        float threshold = ceiling / PHASE_GAIN;
+        int h = historyPosition;
+        for (int c = 0; c < channels; c++) {
+            float sample = src[offset + c];
+            history[c * 2 * TAPS + h] = sample;
+            history[c * 2 * TAPS + h + TAPS] = sample;
+            if (Math.abs(sample) > threshold) {
+                quietFrom = frame + TAPS;
+            }
+        }
+        historyPosition = h + 1 == TAPS ? 0 : h + 1;
+        float required = 1.0f;
+        if (frame < quietFrom) {
+            float peak = truePeak();
+            if (peak > ceiling) {
+                required = ceiling / peak;
+            }
+        }
+
+        // Sliding minimum of the required gain
+        while (minSize > 0 && minValues[(minHead + minSize - 1) % window] >= required) {
+            minSize--;
+        }
+        int tail = (minHead + minSize) % window;
+        minValues[tail] = required;
+        minFrames[tail] = frame;
+        minSize++;
+        if (minFrames[minHead] <= frame - window) {
+            minHead = (minHead + 1) % window;
+            minSize--;
+        }
+        float minimum = minValues[minHead];
+
+        // Instant attack, exponential release, then the moving average that spreads the attack over the lookahead
+        held = minimum < held ? minimum : minimum + (held - minimum) * release;
+        boxSum += held - box[boxPosition];
+        box[boxPosition] = held;
+        boxPosition = boxPosition + 1 == lookahead ? 0 : boxPosition + 1;
+        float gain = (float) Math.min(1.0, boxSum / lookahead);
+
+        // Swap the new frame into the delay line and emit the one it replaces
+        boolean ready = frame >= latency;
+        int d = delayPosition * channels;
+        for (int c = 0; c < channels; c++) {
+            if (ready) {
+                dst[dstOffset + c] = delay[d + c] * gain;
+            }
+            delay[d + c] = src[offset + c];
+        }
+        delayPosition = delayPosition + 1 == latency ? 0 : delayPosition + 1;
+        frame++;
+        return ready;
+    }
+
+    // Largest magnitude among the four interpolated points around the frame CENTER frames back, in any channel
+    private float truePeak() {
+        float peak = 0.0f;
+        int start = historyPosition; // oldest frame of the window
+        for (int c = 0; c < channels; c++) {
+            int base = c * 2 * TAPS + start;
+            for (int p = 0; p < OVERSAMPLE; p++) {
+                float sum = 0.0f;
+                int coefficients = p * TAPS;
+                for (int k = 0; k < TAPS; k++) {
+                    // Newest frame pairs with coefficient 0
+                    sum += history[base + TAPS - 1 - k] * PHASES[coefficients + k];
+                }
+                peak = Math.max(peak, Math.abs(sum));
+            }
+        }
+        return peak;
+    }
+
+    // Phase p, tap k: prototype coefficient 4k + p of a 4x interpolation filter centred on tap 4 * CENTER,
+    // so phase 0 is a pure delay of CENTER frames and phases 1-3 fall between that frame and the next one
+    private static float[] buildPhases() {
+        int length = OVERSAMPLE * TAPS;
+        float[] phases = new float[length];
+        for (int p = 0; p < OVERSAMPLE; p++) {
+            double sum = 0.0;
+            double[] taps = new double[TAPS];
+            for (int k = 0; k < TAPS; k++) {
+                int m = OVERSAMPLE * k + p;
+                double x = (m - OVERSAMPLE * CENTER) / (double) OVERSAMPLE;
+                double window = 0.5 + 0.5 * Math.cos(Math.PI * (m - OVERSAMPLE * CENTER) / (OVERSAMPLE * CENTER + 1.0));
+                taps[k] = (x == 0.0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x)) * window;
+                sum += taps[k];
+            }
+            for (int k = 0; k < TAPS; k++) {
+                phases[p * TAPS + k] = (float) (taps[k] / sum);
+            }
+        }
+        return phases;
+    }
+
+    private static float maxAbsSum(float[] phases) {
+        float max = 0.0f;
+        for (int p = 0; p < OVERSAMPLE; p++) {
+            float sum = 0.0f;
+            for (int k = 0; k < TAPS; k++) {
+                sum += Math.abs(phases[p * TAPS + k]);
+            }
+            max = Math.max(max, sum);
+        }
+        return max;
+    }
+}
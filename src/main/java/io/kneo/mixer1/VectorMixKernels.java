@@ -0,0 +1,88 @@
+package io.kneo.mixer1;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+// Only loaded through MixKernels.get(), so the rest of the code runs without the incubator module
+class VectorMixKernels extends MixKernels {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public String name() {
+        return "vector-" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    boolean isUseful() {
+        // Narrower than 128 bits means no usable SIMD on this CPU
+        return SPECIES.length() >= 4;
+    }
+
+    @Override
+    public void scale(float[] samples, int offset, int length, float gain) {
+        FloatVector gains = FloatVector.broadcast(SPECIES, gain);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, samples, offset + i).mul(gains).intoArray(samples, offset + i);
+        }
+        for (; i < length; i++) {
+            samples[offset + i] *= gain;
+        }
+    }
+
+    @Override
+    public void multiply(float[] samples, int offset, float[] gains, int gainOffset, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            FloatVector v = FloatVector.fromArray(SPECIES, samples, offset + i);
+            v.mul(FloatVector.fromArray(SPECIES, gains, gainOffset + i)).intoArray(samples, offset + i);
+        }
+        for (; i < length; i++) {
+            samples[offset + i] *= gains[gainOffset + i];
+        }
+    }
+
+    @Override
+    public void mix(float[] dst, int dstOffset, float[] dstGains,
+                    float[] src, int srcOffset, float[] srcGains, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            // mul then add (no fma) so results match the scalar kernel bit for bit
+            FloatVector a = FloatVector.fromArray(SPECIES, dst, dstOffset + i)
+                    .mul(FloatVector.fromArray(SPECIES, dstGains, i));
+            FloatVector b = FloatVector.fromArray(SPECIES, src, srcOffset + i)
+                    .mul(FloatVector.fromArray(SPECIES, srcGains, i));
+            a.add(b).intoArray(dst, dstOffset + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOffset + i] = dst[dstOffset + i] * dstGains[i] + src[srcOffset + i] * srcGains[i];
+        }
+    }
+
+    @Override
+    public void add(float[] dst, int dstOffset, float[] src, int srcOffset, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, dst, dstOffset + i)
+                    .add(FloatVector.fromArray(SPECIES, src, srcOffset + i))
+                    .intoArray(dst, dstOffset + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOffset + i] += src[srcOffset + i];
+        }
+    }
+
+    @Override
+    public void clamp(float[] samples, int offset, int length, float min, float max) {
+        FloatVector lower = FloatVector.broadcast(SPECIES, min);
+        FloatVector upper = FloatVector.broadcast(SPECIES, max);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, samples, offset + i).min(upper).max(lower).intoArray(samples, offset + i);
+        }
+        for (; i < length; i++) {
+            samples[offset + i] = Math.max(min, Math.min(max, samples[offset + i]));
+        }
+    }
+}
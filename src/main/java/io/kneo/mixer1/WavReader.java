@@ -0,0 +1,290 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// WAV reader working directly on the file's RIFF chunks through a FileChannel.
+// Handles RIFF and RF64 (ds64) files, fmt with WAVE_FORMAT_EXTENSIBLE, and skips fact/LIST/JUNK and unknown chunks.
+// The data chunk is accessed through memory-mapped windows, with no copy through an InputStream.
+public class WavReader implements SampleReader {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_IEEE_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+    private static final long WINDOW_BYTES = 64L << 20;
+
+    private final FileChannel channel;
+    private final AudioFormat format;
+    private final PcmCodec codec;
+    private final int frameSize;
+    private final int channels;
+    private final long dataOffset;
+    private final long dataLength;
+    private final long factSampleLength;
+    private byte[] buffer;
+
+    private long position; // byte position inside the data chunk
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private WavReader(FileChannel channel, AudioFormat format, long dataOffset, long dataLength, long factSampleLength) {
+        this.channel = channel;
+        this.format = format;
+        this.codec = new PcmCodec(format);
+        this.frameSize = format.getFrameSize();
+        this.channels = format.getChannels();
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength - dataLength % frameSize;
+        this.factSampleLength = factSampleLength;
+        this.buffer = BufferPool.bytes(BLOCK_SIZE * frameSize);
+    }
+
+    public static boolean isWav(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            ByteBuffer id = ByteBuffer.allocate(12);
+            if (channel.read(id, 0) < 12) {
+                return false;
+            }
+            String riff = new String(id.array(), 0, 4, StandardCharsets.US_ASCII);
+            String wave = new String(id.array(), 8, 4, StandardCharsets.US_ASCII);
+            return (riff.equals("RIFF") || riff.equals("RF64")) && wave.equals("WAVE");
+        }
+    }
+
+    public static WavReader open(String filePath) throws IOException, UnsupportedAudioFileException {
+        FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ);
+        try {
+            return parse(channel, filePath);
+        } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static WavReader parse(FileChannel channel, String filePath) throws IOException, UnsupportedAudioFileException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        String riff = fourCC(header, 0);
+        if (!(riff.equals("RIFF") || riff.equals("RF64")) || !fourCC(header, 8).equals("WAVE")) {
+            throw new UnsupportedAudioFileException("Not a WAV file: " + filePath);
+        }
+        boolean rf64 = riff.equals("RF64");
+
+        AudioFormat format = null;
+        long ds64DataSize = -1;
+        long factSampleLength = -1;
+        long offset = 12;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (offset + 8 <= fileSize) {
+            chunkHeader.clear();
+            readFully(channel, chunkHeader, offset);
+            String id = fourCC(chunkHeader, 0);
+            long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+            long body = offset + 8;
+
+            switch (id) {
+                case "ds64" -> {
+                    ByteBuffer ds64 = readChunk(channel, body, (int) Math.min(size, 28));
+                    ds64DataSize = ds64.getLong(8);
+                }
+                case "fmt " -> {
+                    if (size < 16) {
+                        throw new UnsupportedAudioFileException("Truncated fmt chunk: " + filePath);
+                    }
+                    format = parseFormat(readChunk(channel, body, (int) Math.min(size, 40)), filePath);
+                }
+                case "fact" -> factSampleLength = readChunk(channel, body, 4).getInt(0) & 0xFFFFFFFFL;
+                case "data" -> {
+                    if (format == null) {
+                        throw new UnsupportedAudioFileException("data chunk before fmt chunk: " + filePath);
+                    }
+                    if (rf64 && size == 0xFFFFFFFFL && ds64DataSize >= 0) {
+                        size = ds64DataSize;
+                    }
+                    // Files from interrupted writers can carry a stale size
+                    size = Math.min(size, fileSize - body);
+                    return new WavReader(channel, format, body, size, factSampleLength);
+                }
+                default -> {
+                    // LIST, JUNK, bext, cue and anything else we do not need
+                }
+            }
+            offset = body + size + (size & 1); // chunks are word aligned
+        }
+        throw new UnsupportedAudioFileException("No data chunk: " + filePath);
+    }
+
+    private static AudioFormat parseFormat(ByteBuffer fmt, String filePath) throws UnsupportedAudioFileException {
+        int tag = fmt.getShort(0) & 0xFFFF;
+        int channels = fmt.getShort(2) & 0xFFFF;
+        int sampleRate = fmt.getInt(4);
+        int blockAlign = fmt.getShort(12) & 0xFFFF;
+        int bits = fmt.getShort(14) & 0xFFFF;
+        if (tag == FORMAT_EXTENSIBLE && fmt.limit() >= 26) {
+            // First two bytes of the SubFormat GUID carry the actual format tag
+            tag = fmt.getShort(24) & 0xFFFF;
+        }
+
+        AudioFormat.Encoding encoding;
+        if (tag == FORMAT_IEEE_FLOAT) {
+            encoding = AudioFormat.Encoding.PCM_FLOAT;
+        } else if (tag == FORMAT_PCM) {
+            encoding = bits == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+        } else {
+            throw new UnsupportedAudioFileException("Unsupported WAV format tag 0x" + Integer.toHexString(tag) + ": " + filePath);
+        }
+
+        AudioFormat format = new AudioFormat(encoding, sampleRate, bits, channels, blockAlign, sampleRate, false);
+        if (channels < 1 || blockAlign != channels * bits / 8 || !PcmCodec.isSupported(format)) {
+            throw new UnsupportedAudioFileException("Unsupported WAV sample format " + format + ": " + filePath);
+        }
+        return format;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long length() {
+        return dataLength / frameSize;
+    }
+
+    // Sample count from the fact chunk, or -1 if the file has none
+    public long factSampleLength() {
+        return factSampleLength;
+    }
+
+    public long dataOffset() {
+        return dataOffset;
+    }
+
+    public long dataLength() {
+        return dataLength;
+    }
+
+    // Read-only view of frames [frameOffset, frameOffset + frames) of the data chunk, mapped straight from the file
+    public MappedByteBuffer mapFrames(long frameOffset, int frames) throws IOException {
+        long start = Math.min(frameOffset * frameSize, dataLength);
+        long length = Math.min((long) frames * frameSize, dataLength - start);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + start, length);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        return mapped;
+    }
+
+    @Override
+    public int read(float[] dst, int offset, int frames) throws IOException {
+        int produced = 0;
+        while (produced < frames && position < dataLength) {
+            int count = (int) Math.min(Math.min(BLOCK_SIZE, frames - produced), (dataLength - position) / frameSize);
+            int bytes = count * frameSize;
+            ByteBuffer source = window(bytes);
+            source.get((int) (position - windowStart), buffer, 0, bytes);
+            position += bytes;
+
+            codec.decode(buffer, 0, dst, offset + produced * channels, count * channels);
+            produced += count;
+        }
+        return produced == 0 && frames > 0 ? -1 : produced;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long frames = Math.min(count, (dataLength - position) / frameSize);
+        position += frames * frameSize;
+        return frames;
+    }
+
+    // Current position in frames
+    public long position() {
+        return position / frameSize;
+    }
+
+    public void seek(long frame) {
+        position = Math.max(0, Math.min(frame * frameSize, dataLength));
+    }
+
+    // Copies the next frames frames to target as raw data chunk bytes, without decoding, and moves past them.
+    // Returns the number of frames copied.
+    public long transferTo(long frames, WritableByteChannel target) throws IOException {
+        long bytes = Math.min(frames, (dataLength - position) / frameSize) * frameSize;
+        long done = 0;
+        while (done < bytes) {
+            long n = channel.transferTo(dataOffset + position + done, bytes - done, target);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of WAV data");
+            }
+            done += n;
+        }
+        position += bytes;
+        return bytes / frameSize;
+    }
+
+    // As transferTo, but writes at targetPosition of target and leaves target's own position alone, so several readers
+    // can fill regions of one file at once
+    public long transferTo(long frames, FileChannel target, long targetPosition) throws IOException {
+        long bytes = Math.min(frames, (dataLength - position) / frameSize) * frameSize;
+        long done = 0;
+        while (done < bytes) {
+            long n = target.transferFrom(channel.position(dataOffset + position + done), targetPosition + done,
+                    bytes - done);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of WAV data");
+            }
+            done += n;
+        }
+        position += bytes;
+        return bytes / frameSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        BufferPool.release(buffer);
+        buffer = null;
+        channel.close();
+    }
+
+    // Mapped window covering [position, position + bytes)
+    private ByteBuffer window(int bytes) throws IOException {
+        if (window == null || position < windowStart || position + bytes > windowStart + window.capacity()) {
+            windowStart = position;
+            long size = Math.min(Math.max(WINDOW_BYTES - WINDOW_BYTES % frameSize, bytes), dataLength - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + windowStart, size);
+        }
+        return window;
+    }
+
+    private static ByteBuffer readChunk(FileChannel channel, long offset, int size) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, chunk, offset);
+        return chunk;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer target, long offset) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, offset + target.position()) < 0) {
+                throw new IOException("Unexpected end of WAV file");
+            }
+        }
+        target.flip();
+    }
+
+    private static String fourCC(ByteBuffer buffer, int index) {
+        byte[] id = new byte[4];
+        buffer.get(index, id);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,301 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Streaming PCM WAV writer for any format PcmCodec can encode, on top of a FileChannel.
+// The header is written with placeholder sizes and patched on close, so the sample count is not needed up front.
+// A JUNK chunk reserves room for a ds64 chunk; outputs over 4 GB are turned into RF64 on close.
+// More than two channels or more than 16 bits are written as WAVE_FORMAT_EXTENSIBLE.
+// For parallel rendering, reserve() sets aside the data of a known number of samples and region() gives writers that
+// fill parts of it with positional writes, from any thread.
+public class WavStreamWriter extends AudioFileWriter {
+
+    private static final int BUFFER_SAMPLES = 16384;
+    private static final int DS64_SIZE = 28;
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+    private static final byte[] SUBFORMAT_GUID_TAIL = {
+            0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71
+    };
+
+    private final FileChannel channel;
+    private final PcmCodec codec;
+    private final int bytesPerSample;
+    private byte[] buffer;
+    private ByteBuffer bufferView; // buffer as a ByteBuffer, wrapped once rather than per write
+    private final int headerSize;
+    private long dataLength;
+
+    public WavStreamWriter(String outputPath, AudioFormat format) throws IOException {
+        super(format);
+        if (format.isBigEndian() && format.getSampleSizeInBits() > 8) {
+            throw new IllegalArgumentException("WAV data is little-endian: " + format);
+        }
+        if (format.getSampleSizeInBits() == 8 && !AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding())) {
+            throw new IllegalArgumentException("8-bit WAV data is unsigned: " + format);
+        }
+        this.codec = new PcmCodec(format);
+        this.bytesPerSample = codec.bytesPerSample();
+        this.channel = FileChannel.open(Path.of(outputPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        byte[] header = header(0);
+        this.headerSize = header.length;
+        writeFully(ByteBuffer.wrap(header));
+        this.buffer = BufferPool.bytes(BUFFER_SAMPLES * bytesPerSample);
+        this.bufferView = ByteBuffer.wrap(buffer);
+    }
+
+    @Override
+    protected void encode(float[] samples, int offset, int length) throws IOException {
+        long start = metrics.start();
+        metrics.countClips(samples, offset, length);
+        long total = length;
+        while (length > 0) {
+            int n = Math.min(length, BUFFER_SAMPLES);
+            codec.encode(samples, offset, buffer, 0, n);
+            writeFully(bufferView.clear().limit(n * bytesPerSample));
+            dataLength += (long) n * bytesPerSample;
+            offset += n;
+            length -= n;
+        }
+        metrics.stop(MixMetrics.Stage.ENCODE, start, total);
+    }
+
+    // True if reader is a WAV file whose data chunk bytes are valid data for this file as they are;
+    // never while a limiter is set, since copied bytes would bypass it
+    @Override
+    public boolean canCopyFrom(SampleReader reader) {
+        if (!(reader instanceof WavReader) || hasLimiter()) {
+            return false;
+        }
+        AudioFormat source = reader.getFormat();
+        return source.getEncoding().equals(format.getEncoding())
+                && source.getSampleSizeInBits() == format.getSampleSizeInBits()
+                && source.getChannels() == format.getChannels()
+                && source.getSampleRate() == format.getSampleRate();
+    }
+
+    // Appends the reader's next frames frames byte for byte, skipping decode and encode; see canCopyFrom.
+    // Unlike write(), untouched source samples come out bit-exact instead of re-quantized.
+    @Override
+    public long copyFrom(SampleReader reader, long frames) throws IOException {
+        if (!canCopyFrom(reader)) {
+            throw new IllegalArgumentException("Cannot copy " + reader.getFormat() + " data into " + format);
+        }
+        long start = metrics.start();
+        long copied = ((WavReader) reader).transferTo(frames, channel);
+        dataLength += copied * format.getChannels() * bytesPerSample;
+        metrics.stop(MixMetrics.Stage.COPY, start, copied * format.getChannels());
+        return copied;
+    }
+
+    @Override
+    public long samplesWritten() {
+        return dataLength / bytesPerSample;
+    }
+
+    // Counts count more samples as written and sizes the file for them, to be filled in through region(); returns
+    // the first of them
+    public long reserve(long count) throws IOException {
+        if (hasLimiter()) {
+            throw new IllegalStateException("Regions would bypass the limiter");
+        }
+        long first = samplesWritten();
+        dataLength += count * bytesPerSample;
+        if (count > 0) {
+            // Sized up front, since copies into a region (FileChannel.transferFrom) stop at the end of the file
+            channel.write(ByteBuffer.wrap(new byte[1]), headerSize + dataLength - 1);
+        }
+        channel.position(headerSize + dataLength);
+        return first;
+    }
+
+    // Writer of the count reserved samples from sample first on; closing it checks that they were all written
+    public AudioFileWriter region(long first, long count) {
+        return new Region(headerSize + first * bytesPerSample, count);
+    }
+
+    @Override
+    public void truncate(long count) throws IOException {
+        flushLimiter();
+        if (count < 0 || count > samplesWritten()) {
+            throw new IllegalArgumentException("Cannot truncate " + samplesWritten() + " samples to " + count);
+        }
+        dataLength = count * bytesPerSample;
+        channel.truncate(headerSize + dataLength);
+        channel.position(headerSize + dataLength);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        try {
+            if ((dataLength & 1) != 0) {
+                writeFully(ByteBuffer.wrap(new byte[1])); // pad byte, not counted in the data size
+            }
+            channel.write(ByteBuffer.wrap(header(dataLength)), 0);
+        } finally {
+            BufferPool.release(buffer);
+            buffer = null;
+            bufferView = null;
+            channel.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    // Part of the reserved data, written at its own file position with its own buffer
+    private final class Region extends AudioFileWriter {
+        private final long start; // file position of the region's first byte
+        private final long count;
+        private long position; // file position of the next byte
+        private long written;
+        private byte[] buffer = BufferPool.bytes(BUFFER_SAMPLES * bytesPerSample);
+        private ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+
+        private Region(long position, long count) {
+            super(WavStreamWriter.this.format);
+            this.start = position;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        protected void encode(float[] samples, int offset, int length) throws IOException {
+            if (written + length > count) {
+                throw new IllegalStateException("Region of " + count + " samples overrun");
+            }
+            long start = metrics.start();
+            metrics.countClips(samples, offset, length);
+            long total = length;
+            while (length > 0) {
+                int n = Math.min(length, BUFFER_SAMPLES);
+                codec.encode(samples, offset, buffer, 0, n);
+                bufferView.clear().limit(n * bytesPerSample);
+                while (bufferView.hasRemaining()) {
+                    position += channel.write(bufferView, position);
+                }
+                written += n;
+                offset += n;
+                length -= n;
+            }
+            metrics.stop(MixMetrics.Stage.ENCODE, start, total);
+        }
+
+        @Override
+        public boolean canCopyFrom(SampleReader reader) {
+            return WavStreamWriter.this.canCopyFrom(reader);
+        }
+
+        @Override
+        public long copyFrom(SampleReader reader, long frames) throws IOException {
+            if (!canCopyFrom(reader)) {
+                throw new IllegalArgumentException("Cannot copy " + reader.getFormat() + " data into " + format);
+            }
+            int channels = format.getChannels();
+            if (written + frames * channels > count) {
+                throw new IllegalStateException("Region of " + count + " samples overrun");
+            }
+            long start = metrics.start();
+            long copied = ((WavReader) reader).transferTo(frames, channel, position);
+            position += copied * channels * bytesPerSample;
+            written += copied * channels;
+            metrics.stop(MixMetrics.Stage.COPY, start, copied * channels);
+            return copied;
+        }
+
+        @Override
+        public long samplesWritten() {
+            return written;
+        }
+
+        // Later writes go over the dropped samples; the region must still be filled to count before it is closed
+        @Override
+        public void truncate(long count) {
+            if (count < 0 || count > written) {
+                throw new IllegalArgumentException("Cannot truncate " + written + " samples to " + count);
+            }
+            written = count;
+            position = start + count * bytesPerSample;
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            BufferPool.release(buffer);
+            buffer = null;
+            bufferView = null;
+            if (written != count) {
+                throw new IOException("Region got " + written + " of " + count + " samples");
+            }
+        }
+    }
+
+    private byte[] header(long dataLength) {
+        int sampleRate = (int) format.getSampleRate();
+        int channels = format.getChannels();
+        int bitsPerSample = format.getSampleSizeInBits();
+        int byteRate = sampleRate * channels * bitsPerSample / 8;
+        int blockAlign = channels * bitsPerSample / 8;
+        boolean isFloat = AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding());
+        boolean extensible = channels > 2 || bitsPerSample > 16;
+        int formatTag = isFloat ? 3 : 1;
+        int fmtSize = extensible ? 40 : 16;
+
+        int size = 12 + (8 + DS64_SIZE) + (8 + fmtSize) + 8;
+        long riffSize = size - 8 + dataLength + (dataLength & 1);
+        boolean rf64 = riffSize > MAX_RIFF_SIZE;
+
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+        // RIFF header
+        header.put((rf64 ? "RF64" : "RIFF").getBytes());
+        header.putInt(rf64 ? -1 : (int) riffSize); // File size - 8
+        header.put("WAVE".getBytes());
+
+        // ds64 chunk for RF64, otherwise a JUNK chunk of the same size holding its place
+        header.put((rf64 ? "ds64" : "JUNK").getBytes());
+        header.putInt(DS64_SIZE);
+        header.putLong(rf64 ? riffSize : 0);
+        header.putLong(rf64 ? dataLength : 0);
+        header.putLong(rf64 ? dataLength / blockAlign : 0); // sample count
+        header.putInt(0); // table length
+
+        // fmt chunk
+        header.put("fmt ".getBytes());
+        header.putInt(fmtSize);
+        header.putShort((short) (extensible ? 0xFFFE : formatTag));
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(byteRate);
+        header.putShort((short) blockAlign);
+        header.putShort((short) bitsPerSample);
+        if (extensible) {
+            header.putShort((short) 22); // extension size
+            header.putShort((short) bitsPerSample); // valid bits
+            header.putInt(channelMask(channels));
+            header.putShort((short) formatTag);
+            header.put(SUBFORMAT_GUID_TAIL);
+        }
+
+        // data chunk
+        header.put("data".getBytes());
+        header.putInt(rf64 ? -1 : (int) dataLength);
+        return header.array();
+    }
+
+    private static int channelMask(int channels) {
+        return switch (channels) {
+            case 1 -> 0x4; // front center
+            case 2 -> 0x3; // front left, front right
+            default -> (1 << Math.min(channels, 18)) - 1;
+        };
+    }
+}
@@ -0,0 +1,36 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// A track that cannot be spilled is dropped from memory instead of failing the request that evicted it
+class DecodedTrackCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void spillFailureIsCountedNotThrown() throws Exception {
+        String first = TestAudio.wav(directory.resolve("first.wav"), 1.0f, 220.0, 2);
+        String second = TestAudio.wav(directory.resolve("second.wav"), 1.0f, 330.0, 2);
+        // A file where the spill directory should be, so creating it fails
+        Path spillDirectory = Files.createFile(directory.resolve("spills"));
+        DecodedTrackCache cache = new DecodedTrackCache(1, spillDirectory);
+
+        SampleBuffer expected = new DecodedTrackCache(0, null).read(second, TestAudio.SAMPLE_RATE, Resampler.Quality.HIGH);
+        cache.read(first, TestAudio.SAMPLE_RATE, Resampler.Quality.HIGH);
+        SampleBuffer samples = cache.read(second, TestAudio.SAMPLE_RATE, Resampler.Quality.HIGH);
+
+        assertArrayEquals(expected.array(), samples.array());
+        DecodedTrackCache.Stats stats = cache.stats();
+        assertEquals(0, stats.spills);
+        assertEquals(2, stats.spillFailures);
+        assertEquals(0, stats.usedBytes);
+    }
+}
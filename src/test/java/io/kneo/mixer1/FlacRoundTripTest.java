@@ -0,0 +1,123 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// FlacStreamWriter output decoded again by FlacReader: every sample comes back as the integer the writer quantized it
+// to, and STREAMINFO carries the sample count and the MD5 of those integers.
+class FlacRoundTripTest {
+
+    enum Signal { SILENCE, CONSTANT, FULL_SCALE, NOISY_SINE }
+
+    @TempDir
+    Path directory;
+
+    static Stream<Arguments> formats() {
+        // Frame counts: one short block, an exact block, and tails one frame either side of a block edge
+        int[] lengths = {1, 1000, FlacStreamWriter.BLOCK_SIZE, 2 * FlacStreamWriter.BLOCK_SIZE + 1,
+                3 * FlacStreamWriter.BLOCK_SIZE - 1};
+        Stream.Builder<Arguments> cases = Stream.builder();
+        for (int bits : new int[]{8, 16, 24}) {
+            for (int channels : new int[]{1, 2, 5}) {
+                for (Signal signal : Signal.values()) {
+                    for (int frames : lengths) {
+                        cases.add(Arguments.of(bits, channels, signal, frames));
+                    }
+                }
+            }
+        }
+        return cases.build();
+    }
+
+    @ParameterizedTest(name = "{0}-bit {1} ch {2} {3} frames")
+    @MethodSource("formats")
+    void roundTrip(int bits, int channels, Signal signal, int frames) throws Exception {
+        AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100, bits, channels,
+                channels * bits / 8, 44100, false);
+        float[] samples = signal(signal, frames, channels);
+        Path path = directory.resolve("round-trip.flac");
+        try (FlacStreamWriter writer = new FlacStreamWriter(path.toString(), format)) {
+            // Uneven writes, so blocks fill across write calls
+            for (int offset = 0; offset < samples.length; ) {
+                int n = Math.min(samples.length - offset, 777 * channels);
+                writer.write(samples, offset, n);
+                offset += n;
+            }
+        }
+
+        int[] expected = new int[samples.length];
+        new PcmCodec(format).quantize(samples, 0, expected, 0, samples.length);
+
+        int[] decoded = new int[samples.length + channels];
+        int read = 0;
+        try (FlacReader reader = FlacReader.open(path.toString())) {
+            assertEquals(channels, reader.channels());
+            assertEquals(44100.0f, reader.sampleRate());
+            assertEquals(frames, reader.length());
+            float[] block = new float[SampleReader.BLOCK_SIZE * channels];
+            float scale = 1 << (bits - 1);
+            int n;
+            while ((n = reader.read(block, 0, SampleReader.BLOCK_SIZE)) != -1) {
+                for (int i = 0; i < n * channels; i++) {
+                    decoded[read++] = (int) (block[i] * scale);
+                }
+            }
+        }
+        assertEquals(samples.length, read);
+        assertArrayEquals(expected, Arrays.copyOf(decoded, read));
+
+        byte[] file = Files.readAllBytes(path);
+        assertEquals(frames, streamInfoTotalFrames(file));
+        assertArrayEquals(md5(expected, bits / 8), Arrays.copyOfRange(file, 26, 42));
+    }
+
+    private static float[] signal(Signal signal, int frames, int channels) {
+        float[] samples = new float[frames * channels];
+        Random random = new Random(frames * 31L + channels);
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) {
+                samples[f * channels + c] = switch (signal) {
+                    case SILENCE -> 0.0f;
+                    case CONSTANT -> 0.25f - 0.1f * c;
+                    // Past full scale both ways, so clipping is covered too
+                    case FULL_SCALE -> (f + c) % 3 == 0 ? 1.5f : (f + c) % 3 == 1 ? -1.0f : 1.0f;
+                    case NOISY_SINE -> (float) (0.7 * Math.sin(2 * Math.PI * 440 * f / 44100.0 + c)
+                            + 0.05 * random.nextGaussian());
+                };
+            }
+        }
+        return samples;
+    }
+
+    // 36-bit total sample count at byte 21 of the file: 4 marker, 4 block header, 13 into STREAMINFO
+    private static long streamInfoTotalFrames(byte[] file) {
+        long value = file[21] & 0x0F;
+        for (int i = 22; i < 26; i++) {
+            value = value << 8 | file[i] & 0xFF;
+        }
+        return value;
+    }
+
+    private static byte[] md5(int[] samples, int bytes) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int sample : samples) {
+            for (int b = 0; b < bytes; b++) {
+                md5.update((byte) (sample >> (8 * b)));
+            }
+        }
+        return md5.digest();
+    }
+}
@@ -0,0 +1,40 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The BS.1770 calibration signal: a 997 Hz sine at -20 dBFS on one channel reads -23.0 LUFS, whatever the sample
+// rate and however many silent channels are next to it
+class LoudnessMeterTest {
+
+    @ParameterizedTest(name = "{0} channels")
+    @ValueSource(ints = {1, 2, 5})
+    void calibrationSineReadsMinus23(int channels) {
+        assertEquals(-23.0, measureSine(44100.0f, channels), 0.05);
+    }
+
+    @ParameterizedTest(name = "{0} Hz")
+    @ValueSource(floats = {32000.0f, 48000.0f, 96000.0f})
+    void calibrationHoldsAtOtherRates(float sampleRate) {
+        assertEquals(-23.0, measureSine(sampleRate, 2), 0.05);
+    }
+
+    private static double measureSine(float sampleRate, int channels) {
+        LoudnessMeter meter = new LoudnessMeter(sampleRate, channels);
+        double amplitude = Math.pow(10.0, -20.0 / 20.0);
+        int frames = (int) (10 * sampleRate);
+        float[] block = new float[SampleReader.BLOCK_SIZE * channels];
+        for (int done = 0; done < frames; ) {
+            int n = Math.min(SampleReader.BLOCK_SIZE, frames - done);
+            for (int f = 0; f < n; f++) {
+                // First channel only; the others stay silent
+                block[f * channels] = (float) (amplitude * Math.sin(2 * Math.PI * 997.0 * (done + f) / sampleRate));
+            }
+            meter.process(block, 0, n);
+            done += n;
+        }
+        return meter.integratedLufs();
+    }
+}
@@ -0,0 +1,57 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// A job is reported once, to every listener, however often it is finished and whatever a listener throws, and its
+// report is valid JSON whatever its error message holds
+class MixMetricsTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void finishReportsOnceDespiteThrowingListener() {
+        List<MixMetrics.Report> reports = new ArrayList<>();
+        MixMetricsListener failing = report -> {
+            throw new IllegalStateException("listener failed");
+        };
+        MixMetricsListener recording = reports::add;
+        MixMetrics.addListener(failing);
+        MixMetrics.addListener(recording);
+        try {
+            MixMetrics metrics = MixMetrics.begin("test", directory.resolve("out.wav").toString());
+            try {
+                metrics.finish(null);
+            } catch (Throwable e) {
+                metrics.finish(e);
+                throw e;
+            }
+            metrics.finish(new IllegalStateException("finished again"));
+        } finally {
+            MixMetrics.removeListener(failing);
+            MixMetrics.removeListener(recording);
+        }
+
+        assertEquals(1, reports.size());
+        assertNull(reports.get(0).error);
+    }
+
+    @Test
+    void reportJsonEscapesControlCharacters() {
+        MixMetrics.Report report = new MixMetrics.Report("test", "C:\\out \"1\".wav", 0,
+                new long[MixMetrics.Stage.values().length], new long[MixMetrics.Stage.values().length], 0, 0, 0, 0,
+                "line 1\nline 2\u0001");
+
+        assertEquals("{\"operation\":\"test\",\"output\":\"C:\\\\out \\\"1\\\".wav\",\"totalMs\":0.000,"
+                + "\"stages\":{},\"clippedSamples\":0,\"peakHeapBytes\":0,\"inputBytes\":0,\"outputBytes\":0,"
+                + "\"error\":\"line 1\\nline 2\\u0001\"}", report.toJson());
+    }
+}
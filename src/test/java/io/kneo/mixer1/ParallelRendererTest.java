@@ -0,0 +1,86 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+// A parallel render writes the same file as a sequential one, byte for byte, on both merge paths
+class ParallelRendererTest {
+
+    @TempDir
+    static Path directory;
+
+    private static String song1;
+    private static String song2;
+
+    @BeforeAll
+    static void inputs() throws Exception {
+        // Long enough for several chunks even on a machine with many cores
+        song1 = TestAudio.wav(directory.resolve("song1.wav"), 25.0f, 440.0, 2);
+        song2 = TestAudio.wav(directory.resolve("song2.wav"), 23.5f, 330.0, 2);
+    }
+
+    static Stream<Arguments> settings() {
+        Consumer<AudioMerger.MixSettings> trimmed = s -> {
+            s.song1StartTime = 3.3f;
+            s.song1EndTime = 21.1f;
+            s.song2StartTime = 1.7f;
+            s.song2EndTime = 20.0f;
+        };
+        Consumer<AudioMerger.MixSettings> gapped = s -> {
+            s.crossfadeSeconds = 0;
+            s.gapSeconds = 1.5f;
+        };
+        Consumer<AudioMerger.MixSettings> reencoded = s -> s.copyThrough = false;
+        Stream.Builder<Arguments> cases = Stream.builder();
+        for (boolean streaming : new boolean[]{false, true}) {
+            for (AudioMerger.MixProfile profile : AudioMerger.MixProfile.values()) {
+                cases.add(Arguments.of(profile + " copy-through", profile, (Consumer<AudioMerger.MixSettings>) s -> {
+                }, streaming));
+                cases.add(Arguments.of(profile + " re-encoded", profile, reencoded, streaming));
+            }
+            cases.add(Arguments.of("trimmed", AudioMerger.MixProfile.DJ_CROSSFADE, trimmed, streaming));
+            cases.add(Arguments.of("trimmed re-encoded", AudioMerger.MixProfile.DJ_CROSSFADE,
+                    trimmed.andThen(reencoded), streaming));
+            cases.add(Arguments.of("gapped", AudioMerger.MixProfile.MANUAL, gapped, streaming));
+            cases.add(Arguments.of("trimmed and gapped", AudioMerger.MixProfile.MANUAL, trimmed.andThen(gapped),
+                    streaming));
+        }
+        return cases.build();
+    }
+
+    @ParameterizedTest(name = "{0}, streaming {3}")
+    @MethodSource("settings")
+    void parallelMatchesSequential(String name, AudioMerger.MixProfile profile,
+                                   Consumer<AudioMerger.MixSettings> edit, boolean streaming) throws Exception {
+        Path sequential = directory.resolve("sequential.wav");
+        Path parallel = directory.resolve("parallel.wav");
+
+        AudioMerger.MixSettings settings = profile.getSettings();
+        edit.accept(settings);
+        merge(settings, sequential, streaming);
+        settings = profile.getSettings();
+        edit.accept(settings);
+        settings.parallel = true;
+        merge(settings, parallel, streaming);
+
+        assertArrayEquals(Files.readAllBytes(sequential), Files.readAllBytes(parallel));
+    }
+
+    private static void merge(AudioMerger.MixSettings settings, Path output, boolean streaming) throws Exception {
+        if (streaming) {
+            AudioMerger.mergeAudioFilesStreaming(song1, song2, output.toString(), settings);
+        } else {
+            AudioMerger.mergeAudioFiles(song1, song2, output.toString(), settings);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A playlist assembled from SegmentStore segments is the file the single pass writes, before and after an edit, and
+// a playlist transition is the mix the two-file entry point writes
+class PlaylistRendererTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void segmentsMatchSinglePass() throws Exception {
+        AudioMerger.MixSettings crossfade = AudioMerger.MixProfile.DJ_CROSSFADE.getSettings();
+        AudioMerger.MixSettings overlap = AudioMerger.MixProfile.OVERLAP_MIX.getSettings();
+        overlap.song1EndTime = 14.5f;
+        overlap.song2StartTime = 1.2f;
+        AudioOutroIntro.OutroIntroSettings ducked = new AudioOutroIntro.OutroIntroSettings();
+        ducked.duck = true;
+        List<PlaylistRenderer.Track> playlist = List.of(
+                PlaylistRenderer.Track.append(TestAudio.wav(directory.resolve("a.wav"), 20.0f, 220.0, 2)),
+                PlaylistRenderer.Track.crossfade(TestAudio.wav(directory.resolve("b.wav"), 18.0f, 330.0, 2),
+                        crossfade),
+                PlaylistRenderer.Track.outroIntro(TestAudio.wav(directory.resolve("c.wav"), 16.0f, 440.0, 2),
+                        new AudioOutroIntro.OutroIntroSettings()),
+                // Keyed on from before c's own intro ends: its window is clamped to c's tail
+                PlaylistRenderer.Track.outroIntro(TestAudio.wav(directory.resolve("g.wav"), 10.0f, 990.0, 2), ducked),
+                PlaylistRenderer.Track.crossfade(TestAudio.wav(directory.resolve("d.wav"), 17.0f, 550.0, 2),
+                        AudioMerger.MixProfile.RADIO_STYLE),
+                PlaylistRenderer.Track.append(TestAudio.wav(directory.resolve("e.wav"), 12.0f, 660.0, 2)),
+                PlaylistRenderer.Track.crossfade(TestAudio.wav(directory.resolve("f.wav"), 15.0f, 770.0, 2),
+                        overlap));
+        SegmentStore store = new SegmentStore(directory.resolve("segments"));
+
+        assertSameAsSinglePass(playlist, store);
+        SegmentStore.Stats first = store.stats();
+        assertEquals(0, first.hits);
+
+        // Unchanged: every segment comes from the store
+        assertSameAsSinglePass(playlist, store);
+        assertEquals(first.misses, store.stats().misses);
+
+        // One transition edited: only the segments it touches are rendered again
+        crossfade.crossfadeSeconds = 5;
+        assertSameAsSinglePass(playlist, store);
+        long rendered = store.stats().misses - first.misses;
+        assertTrue(rendered > 0 && rendered < first.misses, "re-rendered " + rendered + " of " + first.misses);
+    }
+
+    @Test
+    void limitedAndNormalizedSegmentsMatchSinglePass() throws Exception {
+        AudioMerger.MixSettings limited = AudioMerger.MixProfile.OVERLAP_MIX.getSettings();
+        limited.truePeakLimit = true;
+        limited.targetLufs = -9.0f;
+        AudioOutroIntro.OutroIntroSettings normalized = new AudioOutroIntro.OutroIntroSettings();
+        normalized.targetLufs = -12.0f;
+        normalized.truePeakLimit = true;
+        normalized.limiterCeilingDb = -2.0f;
+        List<PlaylistRenderer.Track> playlist = List.of(
+                PlaylistRenderer.Track.append(TestAudio.wav(directory.resolve("a.wav"), 14.0f, 220.0, 2)),
+                PlaylistRenderer.Track.crossfade(TestAudio.wav(directory.resolve("b.wav"), 13.0f, 330.0, 2), limited),
+                PlaylistRenderer.Track.append(TestAudio.wav(directory.resolve("c.wav"), 9.0f, 440.0, 2)),
+                PlaylistRenderer.Track.outroIntro(TestAudio.wav(directory.resolve("d.wav"), 12.0f, 550.0, 2),
+                        normalized));
+        SegmentStore store = new SegmentStore(directory.resolve("segments"));
+
+        assertSameAsSinglePass(playlist, store);
+        long misses = store.stats().misses;
+        assertSameAsSinglePass(playlist, store);
+        assertEquals(misses, store.stats().misses);
+
+        // A new loudness target renders the segments of the tracks it applies to again
+        normalized.targetLufs = -14.0f;
+        assertSameAsSinglePass(playlist, store);
+        assertTrue(store.stats().misses > misses);
+    }
+
+    @Test
+    void flacSegmentsMatchSinglePass() throws Exception {
+        List<PlaylistRenderer.Track> playlist = List.of(
+                PlaylistRenderer.Track.append(TestAudio.wav(directory.resolve("a.wav"), 12.0f, 220.0, 2)),
+                PlaylistRenderer.Track.crossfade(TestAudio.wav(directory.resolve("b.wav"), 11.0f, 330.0, 2),
+                        AudioMerger.MixProfile.DJ_CROSSFADE),
+                PlaylistRenderer.Track.append(TestAudio.wav(directory.resolve("c.wav"), 9.0f, 440.0, 2)));
+        SegmentStore store = new SegmentStore(directory.resolve("segments"));
+
+        assertSameAsSinglePass(playlist, store, ".flac");
+        assertSameAsSinglePass(playlist, store, ".flac");
+        assertEquals(0, store.stats().misses - store.stats().hits);
+    }
+
+    @ParameterizedTest(name = "duck {0}")
+    @ValueSource(booleans = {false, true})
+    void outroIntroMatchesCreateOutroIntroMix(boolean duck) throws Exception {
+        AudioOutroIntro.OutroIntroSettings settings = new AudioOutroIntro.OutroIntroSettings();
+        settings.duck = duck;
+        settings.copyThrough = false;
+        String main = TestAudio.wav(directory.resolve("main.wav"), 20.0f, 220.0, 2);
+        String intro = TestAudio.wav(directory.resolve("intro.wav"), 12.0f, 880.0, 2);
+        Path mix = directory.resolve("mix.wav");
+        Path playlist = directory.resolve("playlist.wav");
+
+        AudioOutroIntro.createOutroIntroMix(main, intro, mix.toString(), settings);
+        PlaylistRenderer.render(List.of(PlaylistRenderer.Track.append(main),
+                PlaylistRenderer.Track.outroIntro(intro, settings)), playlist.toString(), Resampler.Quality.HIGH, null);
+
+        assertArrayEquals(Files.readAllBytes(mix), Files.readAllBytes(playlist));
+    }
+
+    private void assertSameAsSinglePass(List<PlaylistRenderer.Track> playlist, SegmentStore store) throws Exception {
+        assertSameAsSinglePass(playlist, store, ".wav");
+    }
+
+    private void assertSameAsSinglePass(List<PlaylistRenderer.Track> playlist, SegmentStore store, String extension)
+            throws Exception {
+        Path single = directory.resolve("single" + extension);
+        Path segmented = directory.resolve("segmented" + extension);
+        PlaylistRenderer.render(playlist, single.toString(), Resampler.Quality.HIGH, null);
+        PlaylistRenderer.render(playlist, segmented.toString(), Resampler.Quality.HIGH, store);
+        assertArrayEquals(Files.readAllBytes(single), Files.readAllBytes(segmented));
+    }
+}
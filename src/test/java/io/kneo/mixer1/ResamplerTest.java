@@ -0,0 +1,103 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A sine taken to another rate and back keeps its frequency and amplitude, and length() is what read() delivers
+class ResamplerTest {
+
+    private static final float SOURCE_RATE = 44100.0f;
+    private static final double FREQUENCY = 997.0;
+    private static final double AMPLITUDE = 0.5;
+
+    static Stream<Arguments> conversions() {
+        Stream.Builder<Arguments> cases = Stream.builder();
+        for (Resampler.Quality quality : Resampler.Quality.values()) {
+            // 47999 Hz has a ratio too large for a kernel per phase
+            for (float rate : new float[]{48000.0f, 22050.0f, 96000.0f, 47999.0f}) {
+                cases.add(Arguments.of(quality, rate));
+            }
+        }
+        return cases.build();
+    }
+
+    @ParameterizedTest(name = "{0} 44100 -> {1} -> 44100")
+    @MethodSource("conversions")
+    void roundTripKeepsSine(Resampler.Quality quality, float rate) throws Exception {
+        int channels = 2;
+        SampleBuffer source = sine(SOURCE_RATE, channels, (int) (2 * SOURCE_RATE));
+
+        SampleBuffer there = resample(source, rate, quality);
+        assertEquals(Math.round(source.frames() * (double) rate / SOURCE_RATE), there.frames(), 1.0);
+        assertSine(there, quality);
+
+        SampleBuffer back = resample(there, SOURCE_RATE, quality);
+        assertEquals(source.frames(), back.frames(), 1.0);
+        assertSine(back, quality);
+    }
+
+    // Reads all of reader and checks it delivered the frames length() announced
+    private static SampleBuffer resample(SampleBuffer samples, float rate, Resampler.Quality quality) throws Exception {
+        try (Resampler resampler = new Resampler(new SampleBufferReader(samples), rate, quality)) {
+            long length = resampler.length();
+            SampleBuffer out = new SampleBuffer(samples.channels(), rate);
+            float[] block = new float[1000 * samples.channels()];
+            int n;
+            // Odd read sizes, so reads end in the middle of the resampler's internal window
+            while ((n = resampler.read(block, 0, 1000)) != -1) {
+                out.add(block, 0, n * samples.channels());
+            }
+            assertEquals(length, out.frames());
+            return out;
+        }
+    }
+
+    // Projects the middle of each channel onto a sine and cosine at FREQUENCY: the amplitude found must match, and
+    // what is left after subtracting the fitted sine (a shifted frequency, distortion, aliases) must be small
+    private static void assertSine(SampleBuffer samples, Resampler.Quality quality) {
+        float rate = samples.sampleRate();
+        int channels = samples.channels();
+        int from = (int) (0.25 * rate);
+        int to = samples.frames() - (int) (0.25 * rate);
+        double amplitudeTolerance = quality == Resampler.Quality.PREVIEW ? 0.01 : 0.002;
+        double residualTolerance = quality == Resampler.Quality.PREVIEW ? 0.01 : 0.001;
+        for (int c = 0; c < channels; c++) {
+            double sin = 0.0;
+            double cos = 0.0;
+            for (int f = from; f < to; f++) {
+                double phase = 2 * Math.PI * FREQUENCY * f / rate;
+                sin += samples.get(f * channels + c) * Math.sin(phase);
+                cos += samples.get(f * channels + c) * Math.cos(phase);
+            }
+            sin *= 2.0 / (to - from);
+            cos *= 2.0 / (to - from);
+            assertEquals(AMPLITUDE, Math.hypot(sin, cos), AMPLITUDE * amplitudeTolerance, "amplitude, channel " + c);
+
+            double residual = 0.0;
+            for (int f = from; f < to; f++) {
+                double phase = 2 * Math.PI * FREQUENCY * f / rate;
+                double error = samples.get(f * channels + c) - sin * Math.sin(phase) - cos * Math.cos(phase);
+                residual = Math.max(residual, Math.abs(error));
+            }
+            assertTrue(residual < AMPLITUDE * residualTolerance, "residual " + residual + ", channel " + c);
+        }
+    }
+
+    private static SampleBuffer sine(float rate, int channels, int frames) {
+        SampleBuffer samples = new SampleBuffer(channels, rate, frames * channels);
+        float[] frame = new float[channels];
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) {
+                frame[c] = (float) (AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * f / rate + c));
+            }
+            samples.add(frame, 0, channels);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,38 @@
+package io.kneo.mixer1;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Input files for the tests: a few seconds of a sine with some noise on it, so no two blocks are alike
+final class TestAudio {
+
+    static final float SAMPLE_RATE = 44100.0f;
+
+    private TestAudio() {
+    }
+
+    // 16-bit WAV of seconds seconds at SAMPLE_RATE; channels are phase shifted from one another
+    static String wav(Path path, float seconds, double frequency, int channels) throws IOException {
+        AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, SAMPLE_RATE, 16, channels,
+                channels * 2, SAMPLE_RATE, false);
+        int frames = (int) (seconds * SAMPLE_RATE);
+        float[] block = new float[SampleReader.BLOCK_SIZE * channels];
+        Random random = new Random(Double.doubleToLongBits(frequency));
+        try (AudioFileWriter writer = new WavStreamWriter(path.toString(), format)) {
+            for (int done = 0; done < frames; ) {
+                int n = Math.min(SampleReader.BLOCK_SIZE, frames - done);
+                for (int f = 0; f < n; f++) {
+                    double phase = 2 * Math.PI * frequency * (done + f) / SAMPLE_RATE;
+                    for (int c = 0; c < channels; c++) {
+                        block[f * channels + c] = (float) (0.5 * Math.sin(phase + c) + 0.05 * random.nextGaussian());
+                    }
+                }
+                writer.write(block, 0, n * channels);
+                done += n;
+            }
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,147 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Output written through a writer's limiter stays under limiterCeilingDb: every sample, and the peaks between them
+// as 4x oversampling finds them. Nothing is lost to the limiter's delay line.
+// The signals are band-limited and faded in and out: the limiter estimates peaks with a short interpolator, which
+// reads the ringing of a hard step or of content near Nyquist lower than ideal reconstruction does.
+class TruePeakLimiterTest {
+
+    enum Signal { SINE, LOUD_SINE, PARTIALS, BURSTS }
+
+    private static final float SAMPLE_RATE = 44100.0f;
+    private static final int CHANNELS = 2;
+
+    @TempDir
+    Path directory;
+
+    static Stream<Arguments> cases() {
+        Stream.Builder<Arguments> cases = Stream.builder();
+        for (float ceilingDb : new float[]{-0.1f, -1.0f, -6.0f}) {
+            for (Signal signal : Signal.values()) {
+                cases.add(Arguments.of(ceilingDb, signal));
+            }
+        }
+        return cases.build();
+    }
+
+    @ParameterizedTest(name = "{0} dBTP {1}")
+    @MethodSource("cases")
+    void outputStaysUnderCeiling(float ceilingDb, Signal signal) throws Exception {
+        float[] input = signal(signal, (int) (3 * SAMPLE_RATE));
+        // Float output, so whatever the limiter lets through is stored rather than clipped
+        AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, SAMPLE_RATE, 32, CHANNELS,
+                4 * CHANNELS, SAMPLE_RATE, false);
+        Path path = directory.resolve("limited.wav");
+        try (AudioFileWriter writer = new WavStreamWriter(path.toString(), format)) {
+            writer.setLimiter(new TruePeakLimiter(SAMPLE_RATE, CHANNELS, ceilingDb));
+            for (int offset = 0; offset < input.length; ) {
+                int n = Math.min(input.length - offset, 1001 * CHANNELS);
+                writer.write(input, offset, n);
+                offset += n;
+            }
+        }
+
+        SampleBuffer output;
+        try (WavReader reader = WavReader.open(path.toString())) {
+            output = reader.readAll();
+        }
+        assertEquals(input.length, output.size());
+
+        double ceiling = Math.pow(10.0, ceilingDb / 20.0);
+        double samplePeak = 0.0;
+        for (int i = 0; i < output.size(); i++) {
+            samplePeak = Math.max(samplePeak, Math.abs(output.array()[i]));
+        }
+        assertTrue(samplePeak <= ceiling * 1.0001, "sample peak " + dB(samplePeak) + " dBFS");
+        // The limiter's interpolator and this one differ by a few hundredths of a dB
+        double truePeakDb = dB(oversampledPeak(output.array(), output.size()));
+        assertTrue(truePeakDb <= ceilingDb + 0.05, "true peak " + truePeakDb + " dBTP");
+    }
+
+    private static float[] signal(Signal signal, int frames) {
+        float[] samples = new float[frames * CHANNELS];
+        // A dense mix of partials below 8 kHz, with random frequencies and phases
+        Random random = new Random(signal.ordinal());
+        double[] partials = new double[2 * 24];
+        for (int p = 0; p < partials.length; p += 2) {
+            partials[p] = 50.0 + 7950.0 * random.nextDouble();
+            partials[p + 1] = 2 * Math.PI * random.nextDouble();
+        }
+        int fade = (int) (0.01 * SAMPLE_RATE);
+        for (int f = 0; f < frames; f++) {
+            double t = f / (double) SAMPLE_RATE;
+            double envelope = ramp(Math.min(f, frames - 1 - f), fade);
+            for (int c = 0; c < CHANNELS; c++) {
+                double value = switch (signal) {
+                    case SINE -> 0.99 * Math.sin(2 * Math.PI * 997.0 * t + c);
+                    // +6 dBFS, at a frequency whose peaks fall between samples
+                    case LOUD_SINE -> 2.0 * Math.sin(2 * Math.PI * 11025.0 * t + Math.PI / 4 + c);
+                    case PARTIALS -> partials(partials, t, c);
+                    // Quiet with loud bursts, so the gain has to come down and recover again
+                    case BURSTS -> (0.1 + 1.7 * ramp(Math.min(f % 11025, 2205 - f % 11025), fade))
+                            * Math.sin(2 * Math.PI * 3000.0 * t + c);
+                };
+                samples[f * CHANNELS + c] = (float) (envelope * value);
+            }
+        }
+        return samples;
+    }
+
+    private static double partials(double[] partials, double t, int channel) {
+        double sum = 0.0;
+        for (int p = 0; p < partials.length; p += 2) {
+            sum += Math.sin(2 * Math.PI * partials[p] * t + partials[p + 1] + channel);
+        }
+        return 0.3 * sum;
+    }
+
+    // Raised cosine from 0 at position 0 to 1 at length; 1 beyond it, 0 before it
+    private static double ramp(int position, int length) {
+        if (position <= 0) {
+            return 0.0;
+        }
+        return position >= length ? 1.0 : 0.5 - 0.5 * Math.cos(Math.PI * position / length);
+    }
+
+    // Largest magnitude of the signal interpolated 4x with a Hann-windowed sinc, channel by channel
+    private static double oversampledPeak(float[] samples, int size) {
+        int taps = 32;
+        double peak = 0.0;
+        int frames = size / CHANNELS;
+        for (int c = 0; c < CHANNELS; c++) {
+            for (int f = 0; f < frames; f++) {
+                for (int phase = 1; phase < 4; phase++) {
+                    double position = f + phase / 4.0;
+                    double sum = 0.0;
+                    for (int k = f - taps / 2 + 1; k <= f + taps / 2; k++) {
+                        if (k < 0 || k >= frames) {
+                            continue;
+                        }
+                        double x = position - k;
+                        double window = 0.5 + 0.5 * Math.cos(Math.PI * x / (taps / 2.0));
+                        sum += samples[k * CHANNELS + c] * window * Math.sin(Math.PI * x) / (Math.PI * x);
+                    }
+                    peak = Math.max(peak, Math.abs(sum));
+                }
+            }
+        }
+        return peak;
+    }
+
+    private static double dB(double value) {
+        return 20 * Math.log10(value);
+    }
+}
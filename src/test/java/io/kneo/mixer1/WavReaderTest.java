@@ -0,0 +1,199 @@
+package io.kneo.mixer1;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// WavReader on hand-built headers: RF64 with ds64, WAVE_FORMAT_EXTENSIBLE, odd-sized chunks with their pad byte and
+// data sizes left stale by an interrupted writer; and on what WavStreamWriter writes
+class WavReaderTest {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_IEEE_FLOAT = 3;
+    private static final short[] SAMPLES = {0, 16384, -16384, 32767, -32768, 1, -1, 12345};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void rf64TakesDataSizeFromDs64() throws Exception {
+        byte[] data = pcm16(SAMPLES);
+        ByteBuffer ds64 = little(28).putLong(0).putLong(data.length).putLong(SAMPLES.length / 2).putInt(0);
+        Path path = write("rf64.wav", "RF64", -1,
+                chunk("ds64", ds64.array()), chunk("fmt ", fmt(FORMAT_PCM, 2, 16)), chunk("data", -1, data));
+
+        try (WavReader reader = WavReader.open(path.toString())) {
+            assertEquals(SAMPLES.length / 2, reader.length());
+            assertArrayEquals(expected16(SAMPLES), readAll(reader));
+        }
+    }
+
+    @Test
+    void extensibleFormatUsesSubFormatTag() throws Exception {
+        // 24-bit PCM, 3 channels
+        byte[] pcm = new byte[3 * 2 * 3];
+        int[] values = {0, 4194304, -4194304, 8388607, -8388608, 1};
+        for (int i = 0; i < values.length; i++) {
+            pcm[3 * i] = (byte) values[i];
+            pcm[3 * i + 1] = (byte) (values[i] >> 8);
+            pcm[3 * i + 2] = (byte) (values[i] >> 16);
+        }
+        Path path = write("extensible-pcm.wav", "RIFF", 0,
+                chunk("fmt ", extensible(FORMAT_PCM, 3, 24)), chunk("data", pcm));
+        try (WavReader reader = WavReader.open(path.toString())) {
+            assertEquals(AudioFormat.Encoding.PCM_SIGNED, reader.getFormat().getEncoding());
+            assertEquals(24, reader.getFormat().getSampleSizeInBits());
+            assertEquals(2, reader.length());
+            float[] expected = new float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                expected[i] = values[i] / 8388608.0f;
+            }
+            assertArrayEquals(expected, readAll(reader));
+        }
+
+        // 32-bit float, stereo
+        float[] floats = {0.25f, -0.5f, 1.5f, -1.0f};
+        ByteBuffer data = little(4 * floats.length);
+        for (float value : floats) {
+            data.putFloat(value);
+        }
+        path = write("extensible-float.wav", "RIFF", 0,
+                chunk("fmt ", extensible(FORMAT_IEEE_FLOAT, 2, 32)), chunk("data", data.array()));
+        try (WavReader reader = WavReader.open(path.toString())) {
+            assertEquals(AudioFormat.Encoding.PCM_FLOAT, reader.getFormat().getEncoding());
+            assertArrayEquals(floats, readAll(reader));
+        }
+    }
+
+    @Test
+    void oddSizedChunksArePadded() throws Exception {
+        // An odd LIST chunk before the data and an odd 8-bit data chunk at the end, each followed by its pad byte
+        byte[] data = {(byte) 0x80, (byte) 0xC0, 0x40};
+        Path path = write("odd.wav", "RIFF", 0, chunk("fmt ", fmt(FORMAT_PCM, 1, 8)),
+                chunk("LIST", "abc".getBytes(StandardCharsets.US_ASCII)), chunk("data", data));
+
+        try (WavReader reader = WavReader.open(path.toString())) {
+            assertEquals(3, reader.length());
+            assertArrayEquals(new float[]{0.0f, 0.5f, -0.5f}, readAll(reader));
+        }
+    }
+
+    @Test
+    void staleDataSizeIsCutToTheFile() throws Exception {
+        // The header claims a second's worth of data; the file holds 4 frames and half of a fifth
+        byte[] data = pcm16(SAMPLES);
+        byte[] partial = new byte[data.length + 2];
+        System.arraycopy(data, 0, partial, 0, data.length);
+        Path path = write("stale.wav", "RIFF", 0, chunk("fmt ", fmt(FORMAT_PCM, 2, 16)),
+                chunk("data", 44100 * 4, partial));
+
+        try (WavReader reader = WavReader.open(path.toString())) {
+            assertEquals(SAMPLES.length / 2, reader.length());
+            assertArrayEquals(expected16(SAMPLES), readAll(reader));
+        }
+    }
+
+    @Test
+    void readsWhatWavStreamWriterWrites() throws Exception {
+        // 5 channels at 24 bits, which the writer stores as WAVE_FORMAT_EXTENSIBLE
+        AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 48000, 24, 5, 15, 48000, false);
+        float[] samples = new float[5 * 1001];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) Math.sin(i * 0.01) * 0.9f;
+        }
+        Path path = directory.resolve("written.wav");
+        try (AudioFileWriter writer = new WavStreamWriter(path.toString(), format)) {
+            writer.write(samples, 0, samples.length);
+        }
+        int[] quantized = new int[samples.length];
+        new PcmCodec(format).quantize(samples, 0, quantized, 0, samples.length);
+
+        try (WavReader reader = WavReader.open(path.toString())) {
+            assertEquals(format.toString(), reader.getFormat().toString());
+            assertEquals(1001, reader.length());
+            float[] expected = new float[samples.length];
+            for (int i = 0; i < samples.length; i++) {
+                expected[i] = quantized[i] / 8388608.0f;
+            }
+            assertArrayEquals(expected, readAll(reader));
+        }
+    }
+
+    private static float[] readAll(WavReader reader) throws Exception {
+        SampleBuffer samples = reader.readAll();
+        float[] values = new float[samples.size()];
+        System.arraycopy(samples.array(), 0, values, 0, values.length);
+        return values;
+    }
+
+    private static byte[] pcm16(short[] samples) {
+        ByteBuffer data = little(2 * samples.length);
+        for (short sample : samples) {
+            data.putShort(sample);
+        }
+        return data.array();
+    }
+
+    private static float[] expected16(short[] samples) {
+        float[] expected = new float[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            expected[i] = samples[i] / 32768.0f;
+        }
+        return expected;
+    }
+
+    private static byte[] fmt(int tag, int channels, int bits) {
+        return little(16).putShort((short) tag).putShort((short) channels).putInt(44100)
+                .putInt(44100 * channels * bits / 8).putShort((short) (channels * bits / 8)).putShort((short) bits)
+                .array();
+    }
+
+    // fmt with cbSize 22: valid bits, channel mask, and the SubFormat GUID whose first two bytes are the real tag
+    private static byte[] extensible(int tag, int channels, int bits) {
+        ByteBuffer fmt = little(40).put(fmt(0xFFFE, channels, bits)).putShort((short) 22).putShort((short) bits)
+                .putInt(0).putShort((short) tag);
+        fmt.put(new byte[]{0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38,
+                (byte) 0x9B, 0x71});
+        return fmt.array();
+    }
+
+    private static byte[] chunk(String id, byte[] body) {
+        return chunk(id, body.length, body);
+    }
+
+    // A chunk whose header states size, padded to an even length as RIFF requires
+    private static byte[] chunk(String id, int size, byte[] body) {
+        ByteBuffer chunk = little(8 + body.length + (body.length & 1));
+        chunk.put(id.getBytes(StandardCharsets.US_ASCII)).putInt(size).put(body);
+        return chunk.array();
+    }
+
+    // riffSize 0 writes the real size
+    private Path write(String name, String riffId, int riffSize, byte[]... chunks) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks) {
+            body.write(chunk);
+        }
+        ByteBuffer header = little(12).put(riffId.getBytes(StandardCharsets.US_ASCII))
+                .putInt(riffSize == 0 ? 4 + body.size() : riffSize).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        Path path = directory.resolve(name);
+        Files.write(path, header.array());
+        Files.write(path, body.toByteArray(), StandardOpenOption.APPEND);
+        return path;
+    }
+
+    private static ByteBuffer little(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}